@@ -0,0 +1,171 @@
+/*
+ * Copyright (c)  2020, David J. Barry
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.calm.slidej;
+
+import net.calm.iaclasslibrary.UtilClasses.GenUtils;
+import net.calm.slidej.io.ImageLoader;
+import net.calm.slidej.utils.Utils;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Processes a list of images in one JVM, sharing the SciJava context and thread pools between them. Each image is
+ * opened in the background while the previous one is being processed.
+ */
+public class BatchRunner {
+    private final File props;
+    private final Path tmpDir;
+    private final int[] neighbourhoodSize;
+    private final File previousOutput;
+
+    public BatchRunner(File props, Path tmpDir, int[] neighbourhoodSize, File previousOutput) {
+        this.props = props;
+        this.tmpDir = tmpDir;
+        this.neighbourhoodSize = neighbourhoodSize;
+        this.previousOutput = previousOutput;
+    }
+
+    /**
+     * @return true if every image was opened and processed without failures
+     */
+    public boolean run(List<Entry> entries) {
+        if (entries.isEmpty()) return true;
+        int nFailed = 0;
+        ExecutorService loader = Executors.newSingleThreadExecutor();
+        Future<ImageLoader<UnsignedShortType>> next = loader.submit(() -> open(entries.get(0)));
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            Utils.timeStampOutput(String.format("Batch item %d of %d: %s (series %d)", i + 1, entries.size(),
+                    entry.file.getAbsolutePath(), entry.series));
+            ImageLoader<UnsignedShortType> il;
+            try {
+                il = next.get();
+            } catch (InterruptedException | ExecutionException e) {
+                GenUtils.logError(e, String.format("Failed to open %s - skipping.", entry.file.getAbsolutePath()));
+                il = null;
+                nFailed++;
+            }
+            if (i + 1 < entries.size()) {
+                Entry nextEntry = entries.get(i + 1);
+                next = loader.submit(() -> open(nextEntry));
+            }
+            if (il == null) continue;
+            try {
+                SlideJ s = new SlideJ(props, tmpDir);
+                s.setPreviousOutput(previousOutput);
+                if (!s.load(il, entry.file, entry.series, neighbourhoodSize)) {
+                    Utils.timeStampOutput(String.format("Processing %s failed: %s", entry.file.getAbsolutePath(),
+                            String.join("; ", s.getFailures())));
+                    nFailed++;
+                }
+            } catch (RuntimeException e) {
+                GenUtils.logError(e, String.format("Failed to process %s.", entry.file.getAbsolutePath()));
+                nFailed++;
+            } finally {
+                il.close();
+            }
+        }
+        loader.shutdown();
+        if (nFailed > 0) Utils.timeStampOutput(String.format("%d of %d batch items failed.", nFailed, entries.size()));
+        return nFailed == 0;
+    }
+
+    private static ImageLoader<UnsignedShortType> open(Entry entry) {
+        ImageLoader<UnsignedShortType> il = new ImageLoader<>();
+        il.open(entry.file, entry.series);
+        return il;
+    }
+
+    /**
+     * Reads the images to process. The specification is either a text file listing one image per line, optionally
+     * followed by a comma and a series index, or a path whose file name contains wildcards, e.g. /data/*.lif. Text
+     * after the last comma is only taken as a series index if it is an integer, so paths may contain commas. Lines
+     * naming files that do not exist are reported and skipped.
+     */
+    public static List<Entry> parse(String spec, int defaultSeries) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        Path path = Paths.get(spec);
+        String name = path.getFileName().toString();
+        if (name.contains("*") || name.contains("?") || name.contains("[") || name.contains("{")) {
+            Path dir = path.getParent() != null ? path.getParent() : Paths.get(".");
+            List<Path> matches = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, name)) {
+                for (Path p : stream) {
+                    matches.add(p);
+                }
+            }
+            matches.sort(null);
+            for (Path p : matches) {
+                entries.add(new Entry(p.toFile(), defaultSeries));
+            }
+            return entries;
+        }
+        List<String> lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            File file = new File(line);
+            int series = defaultSeries;
+            int comma = line.lastIndexOf(',');
+            if (comma > 0) {
+                try {
+                    series = Integer.parseInt(line.substring(comma + 1).trim());
+                    file = new File(line.substring(0, comma).trim());
+                } catch (NumberFormatException e) {
+                    // Not a series index - the comma is part of the path.
+                }
+            }
+            if (series < 0 || !file.exists()) {
+                Utils.timeStampOutput(String.format("%s line %d: cannot use \"%s\" - skipping.", spec, i + 1, line));
+                continue;
+            }
+            entries.add(new Entry(file, series));
+        }
+        return entries;
+    }
+
+    public static class Entry {
+        private final File file;
+        private final int series;
+
+        public Entry(File file, int series) {
+            this.file = file;
+            this.series = series;
+        }
+    }
+}
@@ -25,11 +25,16 @@
 package net.calm.slidej;
 
 import net.calm.iaclasslibrary.UtilClasses.GenUtils;
+import net.calm.slidej.io.SharedContext;
+import net.calm.slidej.server.JobClient;
+import net.calm.slidej.server.JobServer;
 import net.calm.slidej.utils.Utils;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.List;
 
 public class Main {
 
@@ -41,6 +46,11 @@ public class Main {
         Path tmpDir = Paths.get("C:/cache");
         int[] neighbourhoodSize = new int[]{512, 512, 10};
         int series = 0;
+        File previousOutput = null;
+        String batch = null;
+        int daemonPort = -1;
+        int clientPort = -1;
+        int concurrency = 1;
 
         try {
             for (int i = 0; i < args.length - 1; i++) {
@@ -64,6 +74,21 @@ public class Main {
                     case "-t":
                         tmpDir = Paths.get(args[i + 1]);
                         break;
+                    case "-r":
+                        previousOutput = new File(args[i + 1]);
+                        break;
+                    case "-b":
+                        batch = args[i + 1];
+                        break;
+                    case "-d":
+                        daemonPort = Integer.parseInt(args[i + 1]);
+                        break;
+                    case "-c":
+                        clientPort = Integer.parseInt(args[i + 1]);
+                        break;
+                    case "-j":
+                        concurrency = Integer.parseInt(args[i + 1]);
+                        break;
                     default:
 
                 }
@@ -74,22 +99,58 @@ public class Main {
             GenUtils.logError(e, "Invalid filename - aborting.");
         }
 
+        if (neighbourhoodSize.length < 3) {
+            neighbourhoodSize = new int[]{neighbourhoodSize[0], neighbourhoodSize[0], neighbourhoodSize[0]};
+        }
+
+        if (daemonPort > 0) {
+            try {
+                new JobServer(daemonPort, concurrency).run();
+            } catch (IOException e) {
+                GenUtils.logError(e, "Job server failed - aborting.");
+            }
+            SharedContext.dispose();
+            System.exit(0);
+        }
+
+        if (clientPort > 0) {
+            boolean success = false;
+            try {
+                success = JobClient.submitAndWait(clientPort, file, series, props, tmpDir, neighbourhoodSize,
+                        previousOutput);
+            } catch (IOException e) {
+                GenUtils.logError(e, "Failed to submit job.");
+            }
+            System.exit(success ? 0 : 1);
+        }
+
+        if (batch != null) {
+            boolean success = false;
+            try {
+                List<BatchRunner.Entry> entries = BatchRunner.parse(batch, series);
+                Utils.timeStampOutput(String.format("Batch: %d inputs from %s", entries.size(), batch));
+                success = new BatchRunner(props, tmpDir, neighbourhoodSize, previousOutput).run(entries);
+            } catch (IOException e) {
+                GenUtils.logError(e, "Failed to read batch list - aborting.");
+            }
+            SharedContext.dispose();
+            Utils.timeStampOutput("Done");
+            System.exit(success ? 0 : 1);
+        }
+
         if (file == null)
             System.exit(0);
 
         Utils.timeStampOutput(String.format("Input: %s", file.getAbsolutePath()));
 
         SlideJ s = new SlideJ(props, tmpDir);
+        s.setPreviousOutput(previousOutput);
 
-        if (neighbourhoodSize.length < 3) {
-            neighbourhoodSize = new int[]{neighbourhoodSize[0], neighbourhoodSize[0], neighbourhoodSize[0]};
-        }
-
-        s.load(file, series, neighbourhoodSize);
+        boolean success = s.load(file, series, neighbourhoodSize);
 
         Utils.timeStampOutput("Done");
 
-        System.exit(0);
+        System.exit(success ? 0 : 1);
 
     }
 }
\ No newline at end of file
@@ -25,50 +25,53 @@
 package net.calm.slidej;
 
 import ij.ImagePlus;
-import ij.measure.ResultsTable;
 import io.scif.ImageMetadata;
-import io.scif.config.SCIFIOConfig;
-import io.scif.img.ImgSaver;
 import io.scif.ome.OMEMetadata;
 import loci.common.DebugTools;
-import net.calm.iaclasslibrary.IO.DataWriter;
 import net.calm.iaclasslibrary.IO.PropertyWriter;
 import net.calm.iaclasslibrary.TimeAndDate.TimeAndDate;
 import net.calm.iaclasslibrary.UtilClasses.GenUtils;
 import net.calm.slidej.analysis.Analyser;
 import net.calm.slidej.analysis.ObjectAnalyser;
 import net.calm.slidej.analysis.SkeletonAnalyser;
+import net.calm.slidej.concurrent.TaskScheduler;
+import net.calm.slidej.io.AsyncImageWriter;
+import net.calm.slidej.io.CellLayout;
+import net.calm.slidej.io.DiskCacheOptions;
+import net.calm.slidej.io.ImageFormat;
 import net.calm.slidej.io.ImageLoader;
-import net.calm.slidej.io.ImageSaver;
+import net.calm.slidej.io.ImgStorage;
+import net.calm.slidej.io.ResultsFormat;
+import net.calm.slidej.io.ResultsSink;
+import net.calm.slidej.io.TiffCodec;
+import net.calm.slidej.properties.SegmentationFingerprint;
 import net.calm.slidej.properties.SlideJParams;
 import net.calm.slidej.segmentation.ImageThresholder;
+import net.calm.slidej.segmentation.TiledFilter;
+import net.calm.slidej.segmentation.TissueMask;
+import net.calm.slidej.stats.MinMaxFinder;
+import net.calm.slidej.stats.StreamingStatistics;
+import net.calm.slidej.trace.Span;
+import net.calm.slidej.trace.Tracer;
 import net.calm.slidej.transform.DistanceTransformer;
+import net.calm.slidej.utils.StageTimings;
 import net.calm.slidej.utils.Utils;
 import net.imagej.axis.AxisType;
 import net.imagej.axis.CalibratedAxis;
 import net.imagej.axis.DefaultAxisType;
 import net.imagej.axis.DefaultLinearAxis;
-import net.imglib2.Cursor;
-import net.imglib2.Dimensions;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.algorithm.gauss3.Gauss3;
 import net.imglib2.algorithm.labeling.ConnectedComponents;
-import net.imglib2.algorithm.morphology.StructuringElements;
-import net.imglib2.algorithm.morphology.TopHat;
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgView;
-import net.imglib2.img.cell.CellImgFactory;
 import net.imglib2.img.display.imagej.ImageJFunctions;
-import net.imglib2.roi.labeling.ImgLabeling;
-import net.imglib2.roi.labeling.LabelRegion;
-import net.imglib2.roi.labeling.LabelRegions;
-import net.imglib2.roi.labeling.LabelingType;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.logic.BitType;
-import net.imglib2.type.logic.BoolType;
 import net.imglib2.type.numeric.NumericType;
+import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.Util;
 import net.imglib2.view.Views;
 import org.apache.commons.io.FileUtils;
@@ -79,6 +82,11 @@ import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
 public class SlideJ {
 
@@ -88,7 +96,15 @@ public class SlideJ {
     private final SlideJParams props;
     private final ArrayList<RandomAccessibleInterval<FloatType>> maps = new ArrayList<>();
     private final ArrayList<String> channelNames = new ArrayList<>();
-    private final LinkedHashMap<String, ArrayList<RandomAccessibleInterval<BoolType>>> regions = new LinkedHashMap<>();
+    private final LinkedHashMap<String, Img<UnsignedShortType>> labelings = new LinkedHashMap<>();
+    private AsyncImageWriter writer;
+    private File previousOutput;
+    private final StageTimings timings = new StageTimings();
+    private final Tracer tracer = new Tracer();
+    private Span segmentationSpan;
+    private TissueMask tissueMask;
+    private final List<String> failures = Collections.synchronizedList(new ArrayList<>());
+    private final List<ImageLoader<?>> previousLoaders = new ArrayList<>();
 
     public SlideJ(File propsLocation, Path tmpDir) {
         DebugTools.setRootLevel("WARN");
@@ -104,7 +120,65 @@ public class SlideJ {
         this.tmpDir = tmpDir;
     }
 
-    public void load(File file, int series, int[] neighbourhoodSize) {
+    /**
+     * @return true if every stage succeeded; otherwise the failures are listed by {@link #getFailures()}
+     */
+    public boolean load(File file, int series, int[] neighbourhoodSize) {
+        ImageLoader<UnsignedShortType> il = new ImageLoader<>();
+        timings.start("Loading");
+        Utils.timeStampOutput(String.format("Loading %s", file.getAbsolutePath()));
+        try {
+            Span span = tracer.start("Open");
+            il.open(file, series);
+            span.end();
+            return tryProcess(il, file, series, neighbourhoodSize);
+        } finally {
+            il.close();
+            release();
+        }
+    }
+
+    /**
+     * Segments and analyses an image that has already been opened, e.g. in the background while the previous image
+     * in a batch was being processed. Failures of individual stages are logged and the remaining stages still run.
+     *
+     * @return true if every stage succeeded; otherwise the failures are listed by {@link #getFailures()}
+     */
+    public boolean load(ImageLoader<UnsignedShortType> il, File file, int series, int[] neighbourhoodSize) {
+        try {
+            return tryProcess(il, file, series, neighbourhoodSize);
+        } finally {
+            release();
+        }
+    }
+
+    private boolean tryProcess(ImageLoader<UnsignedShortType> il, File file, int series, int[] neighbourhoodSize) {
+        try {
+            return process(il, file, series, neighbourhoodSize);
+        } catch (RuntimeException e) {
+            fail(e, "Processing failed.");
+            return false;
+        }
+    }
+
+    /**
+     * Stops the heap sampler and the output writer and closes the previous segmentation, whether or not the run
+     * succeeded.
+     */
+    private void release() {
+        tracer.close();
+        if (writer != null) writer.shutdown();
+        for (ImageLoader<?> loader : previousLoaders) {
+            loader.close();
+        }
+        previousLoaders.clear();
+    }
+
+    private boolean process(ImageLoader<UnsignedShortType> il, File file, int series, int[] neighbourhoodSize) {
+        Span run = tracer.start("Run");
+        tracer.putInfo("input", file.getAbsolutePath());
+        tracer.putInfo("series", series);
+        tracer.putInfo("version", props.getVersion());
         Utils.timeStampOutput(String.format("%d processors available.", Runtime.getRuntime().availableProcessors()));
 
         props.setProperty(SlideJParams.RAW_INPUT, file.getParent());
@@ -112,11 +186,9 @@ public class SlideJ {
         props.setProperty(SlideJParams.NEIGHBOURHOOD_Y, String.valueOf(neighbourhoodSize[1]));
         props.setProperty(SlideJParams.NEIGHBOURHOOD_Z, String.valueOf(neighbourhoodSize[2]));
 
-        Utils.timeStampOutput(String.format("Loading %s", file.getAbsolutePath()));
-        Utils.timeStampOutput(String.format("%.1f GB of RAM free.", Runtime.getRuntime().freeMemory() / 1e+9));
+        logHeapUsage();
 
-        ImageLoader<UnsignedShortType> il = new ImageLoader<>();
-        Img<UnsignedShortType> img = il.load(file, series, new UnsignedShortType());
+        Img<UnsignedShortType> img = il.getView(new UnsignedShortType());
         ImageMetadata meta = il.getMeta();
         OMEMetadata omeMeta = il.getOmeMeta();
 
@@ -127,12 +199,14 @@ public class SlideJ {
         List<CalibratedAxis> axes = meta.getAxes();
 
         Utils.timeStampOutput(String.format("%s loaded.", file.getAbsolutePath()));
-        Utils.timeStampOutput(String.format("%.1f GB of RAM free.", Runtime.getRuntime().freeMemory() / 1e+9));
+        logHeapUsage();
 
         Utils.timeStampOutput("Img Type: " + img.getClass());
         Utils.timeStampOutput("Pixel Type: " + Util.getTypeFromInterval(img).getClass());
 
+        timings.start("Calibration");
         Utils.timeStampOutput("Calibrating...");
+        Span span = tracer.start("Calibration", run);
 
         if (img.numDimensions() < 4) {
             img = ImgView.wrap(Views.addDimension(img, 0, 0));
@@ -178,6 +252,18 @@ public class SlideJ {
             calNeighbourhood[axisOrder[SlideJParams.Z_AXIS]] = 1;
         calibrations[axisOrder[SlideJParams.C_AXIS]] = 2;
 
+        configureStorage(img, axisOrder[SlideJParams.C_AXIS], calNeighbourhood);
+        span.end();
+
+        if (Boolean.parseBoolean(props.getProperty(SlideJParams.TISSUE_MASK, SlideJParams.DEFAULT_TISSUE_MASK))) {
+            timings.start("Tissue mask");
+            Utils.timeStampOutput("Finding tissue...");
+            span = tracer.start("Tissue mask", run).setThreads(TaskScheduler.getParallelism());
+            tissueMask = TissueMask.compute(img, axisOrder[SlideJParams.C_AXIS],
+                    Integer.parseInt(props.getProperty(SlideJParams.TISSUE_MASK_BIN, SlideJParams.DEFAULT_TISSUE_MASK_BIN)));
+            span.end();
+        }
+
         Utils.timeStampOutput("Creating output directories...");
 
         String output;
@@ -198,17 +284,31 @@ public class SlideJ {
 
 //            FileUtils.copyFile(file, new File(String.format("%S%Sthreshold_3.ome.btf", binaryOutputs, File.separator)));
         } catch (IndexOutOfBoundsException e) {
-            System.out.print("Failed to create output directories- aborting.");
+            fail(e, "Failed to create output directories - aborting.");
+            return false;
         }
 
+        writer = new AsyncImageWriter(Integer.parseInt(props.getProperty(SlideJParams.WRITE_THREADS, SlideJParams.DEFAULT_WRITE_THREADS)),
+                Long.parseLong(props.getProperty(SlideJParams.WRITE_BUFFER, SlideJParams.DEFAULT_WRITE_BUFFER)) * 1024 * 1024,
+                props.getProperty(SlideJParams.MAP_COMPRESSION, SlideJParams.DEFAULT_MAP_COMPRESSION), getOutputFormat(),
+                Integer.parseInt(props.getProperty(SlideJParams.CHUNK_SIZE, SlideJParams.DEFAULT_CHUNK_SIZE)));
+
+        timings.start("Segmentation");
         Utils.timeStampOutput("Thresholding and generating distance maps...");
+        segmentationSpan = tracer.start("Segmentation", run);
 
 //        generateBinariesAndMaps(img,
 //                binaryOutputs,
 //                mapOutputs,
 //                caxis, calibrations);
-        generateDistanceMaps(img, mapOutputs, binaryOutputs, axisOrder[SlideJParams.C_AXIS], calibrations, file,
-                calNeighbourhood, axisOrder);
+        SegmentationFingerprint fingerprint = new SegmentationFingerprint(props, file, series,
+                (int) img.dimension(axisOrder[SlideJParams.C_AXIS]));
+        boolean reused = previousOutput != null && loadPreviousSegmentation(previousOutput, fingerprint);
+        if (!reused) {
+            generateDistanceMaps(img, mapOutputs, binaryOutputs, axisOrder[SlideJParams.C_AXIS], calibrations, file,
+                    calNeighbourhood, axisOrder);
+        }
+        segmentationSpan.end();
 
         Utils.timeStampOutput("Concatenating distance maps...");
 //
@@ -219,11 +319,16 @@ public class SlideJ {
                 maps, axisOrder[SlideJParams.C_AXIS]);
 
         Analyser<FloatType> a = new Analyser<>(calNeighbourhood, dimLabels, calibrations, axisOrder, Boolean.parseBoolean(props.getProperty(SlideJParams.COLOC)));
+        a.setIntegerChannels((int) img.dimension(axisOrder[SlideJParams.C_AXIS]));
+        a.setFloatMedianMode(props.getProperty(SlideJParams.FLOAT_MEDIAN, SlideJParams.DEFAULT_FLOAT_MEDIAN)
+                .equalsIgnoreCase("Exact") ? StreamingStatistics.MedianMode.EXACT : StreamingStatistics.MedianMode.APPROXIMATE);
+        a.setTissueMask(tissueMask);
+        int[] stride = getStride(calNeighbourhood, axisOrder[SlideJParams.C_AXIS]);
+        a.setStride(stride);
 
 //        Utils.timeStampOutput("Loading aux channels and concatanating datset...");
 
-        ImageLoader<FloatType> ilFloat = new ImageLoader<>();
-        Img<FloatType> imgFloat = ilFloat.load(file, series, new FloatType());
+        Img<FloatType> imgFloat = il.getView(new FloatType());
 
         if (imgFloat.numDimensions() < 4) {
             imgFloat = ImgView.wrap(Views.addDimension(imgFloat, 0, 0));
@@ -232,44 +337,240 @@ public class SlideJ {
         RandomAccessibleInterval<FloatType> concat = Views.concatenate(axisOrder[SlideJParams.C_AXIS], imgFloat, auxs);
 
         Utils.timeStampOutput("Done.");
-        Utils.timeStampOutput(String.format("%.1f GB of RAM free.", Runtime.getRuntime().freeMemory() / 1e+9));
+        logHeapUsage();
+        timings.start("Intensity analysis");
         Utils.timeStampOutput("Analysing intensities in all channels...");
+        span = tracer.start("Intensity analysis", run)
+                .setVoxels(Intervals.numElements(concat))
+                .setThreads(TaskScheduler.getParallelism());
 
-        a.analyse(concat);
+        ResultsSink results = openResults(String.format("%s_results", file.getName()));
+        try {
+            a.analyse(concat, results);
+        } catch (RuntimeException e) {
+            fail(e, "Intensity analysis failed.");
+        }
+        span.end();
+
+        if (a.getWindowOutputs() != null) {
+            Utils.timeStampOutput("Queueing sliding-window statistics for output...");
+            List<Img<FloatType>> windowOutputs = a.getWindowOutputs();
+            double[] windowSize = new double[calibrations.length];
+            for (int d = 0, i = 0; d < calibrations.length; d++) {
+                if (d != axisOrder[SlideJParams.C_AXIS]) windowSize[i++] = stride[d] * calibrations[d];
+            }
+            windowSize[windowSize.length - 1] = 1.0;
+            for (int c = 0; c < windowOutputs.size(); c++) {
+                writer.submit(String.format("%s%s%s_window_statistics_%d%s", props.getProperty(SlideJParams.OUTPUT),
+                        File.separator, file.getName(), c, SlideJParams.OUTPUT_FILE_EXT), windowOutputs.get(c), windowSize);
+            }
+        }
+
+        timings.start("Writing outputs");
+        Utils.timeStampOutput("Waiting for outputs to be written...");
+        span = tracer.start("Waiting for outputs", run);
+        writer.flush();
+        span.end();
 
         Utils.timeStampOutput("Saving results...");
+        span = tracer.start("Saving results", run);
 
         try {
-            ResultsTable[] rt = a.getRt();
-            File outputData = new File(String.format("%s%s%s_results.csv", props.getProperty(SlideJParams.OUTPUT), File.separator, file.getName()));
-            if (outputData.exists() && !outputData.delete())
-                throw new IOException("Cannot delete existing output file.");
-            for (int i = 0; i < rt.length; i++) {
-                if (rt[i] != null) DataWriter.saveResultsTable(rt[i], outputData, true, i == 0);
-            }
+            results.close();
+            span.setBytesWritten(results.getFile().length());
         } catch (IOException e) {
-            GenUtils.logError(e, "Could not save results file.");
+            fail(e, "Could not save results file.");
         }
+        span.end();
 
-        for (Map.Entry<String, ArrayList<RandomAccessibleInterval<BoolType>>> entry : regions.entrySet()) {
-            analyseObjects(entry.getValue(), concat, calibrations, axisOrder, dimLabels, file, entry.getKey());
+        timings.start("Object analysis");
+        for (Map.Entry<String, Img<UnsignedShortType>> entry : labelings.entrySet()) {
+            analyseObjects(entry.getValue(), concat, calibrations, axisOrder, dimLabels, file, entry.getKey(),
+                    (int) img.dimension(axisOrder[SlideJParams.C_AXIS]), run);
         }
 
         if (Boolean.parseBoolean(props.getProperty(SlideJParams.COLOC))) {
 
             Img<FloatType>[][] outputs = a.getOutputs();
+            double[] cellSize = new double[3];
+            for (int d = 0; d < cellSize.length; d++) {
+                int axis = axisOrder[SlideJParams.X_AXIS + d];
+                cellSize[d] = calNeighbourhood[axis] * calibrations[axis];
+            }
 
             int index = 0;
             for (int chan = 0; chan < img.dimension(axisOrder[SlideJParams.C_AXIS]) - 1; chan++) {
                 for (int chan2 = chan + 1; chan2 < img.dimension(axisOrder[SlideJParams.C_AXIS]); chan2++) {
-                    ImageSaver.saveImage(String.format("%s%sPC_%d_%d.ome.tiff", props.getProperty(SlideJParams.OUTPUT), File.separator, chan, chan2), outputs[0][index]);
-                    ImageSaver.saveImage(String.format("%s%sSC_%d_%d.ome.tiff", props.getProperty(SlideJParams.OUTPUT), File.separator, chan, chan2), outputs[1][index]);
+                    writer.submit(String.format("%s%sPC_%d_%d.ome.tiff", props.getProperty(SlideJParams.OUTPUT), File.separator, chan, chan2), outputs[0][index], cellSize);
+                    writer.submit(String.format("%s%sSC_%d_%d.ome.tiff", props.getProperty(SlideJParams.OUTPUT), File.separator, chan, chan2), outputs[1][index], cellSize);
                     index++;
                 }
             }
         }
 
-        saveAnalysisParameters();
+        timings.start("Writing outputs");
+        span = tracer.start("Waiting for outputs", run);
+        writer.flush();
+        span.end();
+        Utils.timeStampOutput(String.format("%.1f s spent waiting on output I/O.", writer.getBlockedTime()));
+        Utils.timeStampOutput(String.format("Outputs written at %.1f MB/s per writer thread.", writer.getThroughput()));
+        if (writer.getFailureCount() > 0) {
+            failures.add(String.format("%d output images could not be written.", writer.getFailureCount()));
+        }
+
+        if (!reused) {
+            try {
+                fingerprint.save(new File(props.getProperty(SlideJParams.OUTPUT)));
+            } catch (IOException e) {
+                GenUtils.logError(e, "Failed to save segmentation fingerprint.");
+            }
+        }
+
+        if (!saveAnalysisParameters()) failures.add("Failed to save property file.");
+        timings.stop();
+        Utils.timeStampOutput(String.format("Stage timings: %s", timings));
+
+        run.setVoxels(Intervals.numElements(img))
+                .setBytesWritten(writer.getBytesSubmitted())
+                .setThreads(TaskScheduler.getParallelism());
+        run.end();
+        try {
+            tracer.writeReport(new File(String.format("%s%s%s_run_report.json", props.getProperty(SlideJParams.OUTPUT),
+                    File.separator, file.getName())));
+        } catch (IOException e) {
+            GenUtils.logError(e, "Failed to save run report.");
+        }
+        return failures.isEmpty();
+    }
+
+    private void fail(Exception e, String message) {
+        GenUtils.logError(e, message);
+        failures.add(String.format("%s %s", message, e));
+    }
+
+    /**
+     * Failures recorded so far; empty if every stage has succeeded.
+     */
+    public List<String> getFailures() {
+        synchronized (failures) {
+            return new ArrayList<>(failures);
+        }
+    }
+
+    private void logHeapUsage() {
+        Utils.timeStampOutput(String.format("%.1f GB of %.1f GB heap in use.", Tracer.getHeapUsed() / 1e+9,
+                Tracer.getHeapMax() / 1e+9));
+    }
+
+    /**
+     * Reuses the labellings and distance maps written by an earlier run if its segmentation fingerprint matches this
+     * run. Images are opened lazily, so planes are only read when the analysis reaches them.
+     */
+    private boolean loadPreviousSegmentation(File previousOutput, SegmentationFingerprint fingerprint) {
+        if (!fingerprint.matches(previousOutput)) {
+            Utils.timeStampOutput(String.format("Segmentation parameters differ from %s - segmenting again.", previousOutput));
+            return false;
+        }
+        File binDir = new File(previousOutput, BINARIES);
+        File mapDir = new File(previousOutput, AUX_INPUTS);
+        boolean signed = Boolean.parseBoolean(props.getProperty(SlideJParams.SIGNED_DISTANCE_MAP, SlideJParams.DEFAULT_SIGNED_DISTANCE_MAP));
+        ImageFormat format = getOutputFormat();
+        LinkedHashMap<String, File> labelFiles = new LinkedHashMap<>();
+        LinkedHashMap<String, File> mapFiles = new LinkedHashMap<>();
+        for (int s = 0; s < Integer.parseInt(props.getProperty(SlideJParams.N_STEPS)); s++) {
+            if (!Boolean.parseBoolean(props.getStepProperty(SlideJParams.THRESHOLD_CHANNEL, s, SlideJParams.DEFAULT_THRESHOLD_CHANNEL)))
+                continue;
+            int c = Integer.parseInt(props.getStepProperty(SlideJParams.CHANNEL_FOR_STEP, s, Integer.toString(s)));
+            String regionsName = String.format("step_%d_%s", s, channelNames.get(c));
+            labelFiles.put(regionsName, new File(binDir, format.resolve(String.format("Labeling_%s.ome.btf", regionsName))));
+            if (signed) {
+                mapFiles.put(String.format("%s_SignedDistanceMap", regionsName), new File(mapDir, format.resolve(String.format("SignedDistanceMap_%s%s", regionsName, SlideJParams.OUTPUT_FILE_EXT))));
+            } else {
+                mapFiles.put(String.format("%s_DistanceMap", regionsName), new File(mapDir, format.resolve(String.format("DistanceMap_%s%s", regionsName, SlideJParams.OUTPUT_FILE_EXT))));
+                mapFiles.put(String.format("%s_InvertedDistanceMap", regionsName), new File(mapDir, format.resolve(String.format("InvertedDistanceMap_%s%s", regionsName, SlideJParams.OUTPUT_FILE_EXT))));
+            }
+            if (Boolean.parseBoolean(props.getStepProperty(SlideJParams.SKELETONISE, s, SlideJParams.DEFAULT_SKEL_CHANNEL)))
+                Utils.timeStampOutput(String.format("Skeleton results for step %d are not recomputed - see %s", s, previousOutput));
+        }
+        for (File f : labelFiles.values()) {
+            if (!f.exists()) {
+                Utils.timeStampOutput(String.format("%s not found - segmenting again.", f));
+                return false;
+            }
+        }
+        for (File f : mapFiles.values()) {
+            if (!f.exists()) {
+                Utils.timeStampOutput(String.format("%s not found - segmenting again.", f));
+                return false;
+            }
+        }
+        Utils.timeStampOutput(String.format("Reusing segmentation from %s", previousOutput));
+        for (Map.Entry<String, File> entry : labelFiles.entrySet()) {
+            ImageLoader<UnsignedShortType> loader = new ImageLoader<>();
+            previousLoaders.add(loader);
+            labelings.put(entry.getKey(), loader.load(entry.getValue(), 0, new UnsignedShortType()));
+        }
+        for (Map.Entry<String, File> entry : mapFiles.entrySet()) {
+            ImageLoader<FloatType> loader = new ImageLoader<>();
+            previousLoaders.add(loader);
+            maps.add(loader.load(entry.getValue(), 0, new FloatType()));
+            channelNames.add(entry.getKey());
+        }
+        props.setProperty(SlideJParams.AUX_INPUT, mapDir.getAbsolutePath());
+        props.setProperty(SlideJParams.BIN_INPUT, binDir.getAbsolutePath());
+        return true;
+    }
+
+    /**
+     * Queues a multiresolution BigDataViewer copy of an output for quality control, if pyramids are enabled.
+     */
+    private void queuePyramid(String path, Img<? extends RealType<?>> img, double[] voxelSize, boolean labels) {
+        if (Boolean.parseBoolean(props.getProperty(SlideJParams.PYRAMIDS, SlideJParams.DEFAULT_PYRAMIDS))) {
+            writer.submitPyramid(path, img, voxelSize, labels);
+        }
+    }
+
+    private TiffCodec getLabelCodec() {
+        return TiffCodec.parse(props.getProperty(SlideJParams.LABEL_COMPRESSION, SlideJParams.DEFAULT_LABEL_COMPRESSION));
+    }
+
+    private ImageFormat getOutputFormat() {
+        return ImageFormat.fromProperty(props.getProperty(SlideJParams.OUTPUT_FORMAT, SlideJParams.DEFAULT_OUTPUT_FORMAT));
+    }
+
+    public StageTimings getTimings() {
+        return timings;
+    }
+
+    public Tracer getTracer() {
+        return tracer;
+    }
+
+    public void setPreviousOutput(File previousOutput) {
+        this.previousOutput = previousOutput;
+    }
+
+    private void configureStorage(Img<UnsignedShortType> img, int caxis, int[] calNeighbourhood) {
+        long[] spatialDims = new long[img.numDimensions() - 1];
+        int[] spatialNeighbourhood = new int[img.numDimensions() - 1];
+        for (int d = 0, i = 0; d < img.numDimensions(); d++) {
+            if (d == caxis) continue;
+            spatialDims[i] = img.dimension(d);
+            spatialNeighbourhood[i++] = calNeighbourhood[d];
+        }
+        String cellSize = props.getProperty(SlideJParams.CELL_DIMENSIONS, SlideJParams.DEFAULT_CELL_DIMENSIONS);
+        int[] cellDims = cellSize.equalsIgnoreCase("Auto") ? CellLayout.align(spatialDims, spatialNeighbourhood)
+                : new int[]{Integer.parseInt(cellSize)};
+        Utils.timeStampOutput(String.format("Intermediate images will use cells of %s voxels.", Arrays.toString(cellDims)));
+        if (props.getProperty(SlideJParams.STORAGE, SlideJParams.DEFAULT_STORAGE).equalsIgnoreCase("Disk")) {
+            ImgStorage.useDiskCache((new DiskCacheOptions(tmpDir))
+                    .cellDimensions(cellDims)
+                    .maxCacheSize(Long.parseLong(props.getProperty(SlideJParams.CACHE_SIZE, SlideJParams.DEFAULT_CACHE_SIZE)))
+                    .numIoThreads(Integer.parseInt(props.getProperty(SlideJParams.CACHE_IO_THREADS, SlideJParams.DEFAULT_CACHE_IO_THREADS))));
+            Utils.timeStampOutput(String.format("Intermediate images will be cached on disk in %s", tmpDir));
+        } else {
+            ImgStorage.useHeap(cellDims);
+        }
     }
 
     private void generateDistanceMaps(Img<UnsignedShortType> img,
@@ -278,120 +579,238 @@ public class SlideJ {
         long[] dims = new long[img.numDimensions()];
         img.dimensions(dims);
 
-        ImgSaver saver = new ImgSaver();
-        SCIFIOConfig config = new SCIFIOConfig();
-        config.writerSetCompression("LZW");
-
         double[] channelCals = new double[calibrations.length - 1];
         System.arraycopy(calibrations, 0, channelCals, 0, caxis);
         System.arraycopy(calibrations, caxis + 1, channelCals, caxis, channelCals.length - caxis);
 
+        List<Integer> steps = new ArrayList<>();
         for (int s = 0; s < Integer.parseInt(props.getProperty(SlideJParams.N_STEPS)); s++) {
+            if (Boolean.parseBoolean(props.getStepProperty(SlideJParams.THRESHOLD_CHANNEL, s, SlideJParams.DEFAULT_THRESHOLD_CHANNEL)))
+                steps.add(s);
+        }
+        if (steps.isEmpty()) return;
+
+        long budgetMB = Long.parseLong(props.getProperty(SlideJParams.STEP_MEMORY_BUDGET, SlideJParams.DEFAULT_STEP_MEMORY_BUDGET));
+        if (budgetMB < 1) budgetMB = Runtime.getRuntime().maxMemory() / 2 / (1024 * 1024);
+        long retainedMB = steps.size() * estimateRetainedMemory(img, caxis) / (1024 * 1024);
+        int nThreads = steps.size();
+        if (retainedMB >= budgetMB) {
+            Utils.timeStampOutput(String.format("The outputs kept from all steps (%d MB) exceed the step memory budget (%d MB) - steps will run one at a time.",
+                    retainedMB, budgetMB));
+            nThreads = 1;
+        }
+        int budgetPermits = (int) Math.max(1, Math.min(Integer.MAX_VALUE, budgetMB - retainedMB));
+        Semaphore budget = new Semaphore(budgetPermits);
+        ExecutorService stepExecutor = Executors.newFixedThreadPool(nThreads);
+        List<Future<StepResult>> results = new ArrayList<>();
+        for (int s : steps) {
             int c = Integer.parseInt(props.getStepProperty(SlideJParams.CHANNEL_FOR_STEP, s, Integer.toString(s)));
-            if (!Boolean.parseBoolean(props.getStepProperty(SlideJParams.THRESHOLD_CHANNEL, s, SlideJParams.DEFAULT_THRESHOLD_CHANNEL)))
-                continue;
-            Utils.timeStampOutput(String.format("Processing step %d...", s));
-            RandomAccessibleInterval<UnsignedShortType> channel = Views.hyperSlice(img, caxis, c);
-
-            Utils.timeStampOutput("Filtering...");
-            Img<UnsignedShortType> filtered = (new CellImgFactory<>(new UnsignedShortType(), SlideJParams.CELL_IMG_DIM)).create(channel);
-            Gauss3.gauss(getSigma(channel.numDimensions(), c, channelCals), Views.extendValue(channel, img.firstElement().createVariable()), filtered);
-
-            if (Boolean.parseBoolean(props.getStepProperty(SlideJParams.TOP_HAT, s, SlideJParams.DEFAULT_TH_CHANNEL))) {
-                Utils.timeStampOutput("Top-hat filtering...");
-                Img<UnsignedShortType> thFiltered = TopHat.topHat(filtered, StructuringElements.rectangle(getSpan(channel.numDimensions(), c, channelCals, SlideJParams.TOP_HAT, SlideJParams.DEFAULT_TH_FILTER_RADIUS)), Runtime.getRuntime().availableProcessors());
-//                try {
-//                    saver.saveImg(String.format("%s%stop_hat_filtered_%d.ome.btf", binOutDir, File.separator, c), thFiltered, config);
-//                } catch (Exception e) {
-//                    Utils.timeStampOutput("Saving failed.");
-//                    Utils.timeStampOutput(e.toString());
-//                    Utils.timeStampOutput(e.getMessage());
-//                }
-                filtered = thFiltered;
+            String channelName = channelNames.get(c);
+            int permits = (int) Math.max(1, Math.min(budgetPermits, estimateWorkingMemory(img, caxis, s) / (1024 * 1024)));
+            results.add(stepExecutor.submit(() -> {
+                budget.acquire(permits);
+                try {
+                    return processStep(img, s, c, channelName, mapOutDir, binOutDir, caxis, channelCals, file,
+                            calNeighbourhood, axisOrder);
+                } finally {
+                    budget.release(permits);
+                }
+            }));
+        }
+        stepExecutor.shutdown();
+
+        for (int i = 0; i < results.size(); i++) {
+            try {
+                StepResult result = results.get(i).get();
+                labelings.put(result.regionsName, result.labelled);
+                maps.addAll(result.maps);
+                channelNames.addAll(result.mapNames);
+            } catch (InterruptedException | ExecutionException e) {
+                fail(e, String.format("Step %d failed.", steps.get(i)));
             }
+        }
+    }
+
+    private StepResult processStep(Img<UnsignedShortType> img, int s, int c, String channelName, String mapOutDir, String binOutDir,
+                                   int caxis, double[] channelCals, File file, int[] calNeighbourhood, int[] axisOrder) {
+        Utils.timeStampOutput(String.format("Processing step %d...", s));
+        StepResult result = new StepResult();
+        RandomAccessibleInterval<UnsignedShortType> channel = Views.hyperSlice(img, caxis, c);
+        long nVoxels = Intervals.numElements(channel);
+        Span stepSpan = tracer.start(String.format("Step %d", s), segmentationSpan).setVoxels(nVoxels)
+                .setThreads(TaskScheduler.getParallelism());
+        Span span = tracer.start(String.format("Step %d filter", s), stepSpan).setVoxels(nVoxels)
+                .setThreads(TaskScheduler.getParallelism());
+
+        boolean topHat = Boolean.parseBoolean(props.getStepProperty(SlideJParams.TOP_HAT, s, SlideJParams.DEFAULT_TH_CHANNEL));
+        TiledFilter filter = new TiledFilter(getSigma(channel.numDimensions(), c, channelCals),
+                topHat ? getSpan(channel.numDimensions(), c, channelCals, SlideJParams.TOP_HAT, SlideJParams.DEFAULT_TH_FILTER_RADIUS) : null,
+                getTileSize(channel.numDimensions()));
+        filter.setTissueMask(tissueMask);
+        String method = props.getStepProperty(SlideJParams.THRESHOLD, s, SlideJParams.DEFAULT_THRESHOLD_METHOD);
+        Img<BitType> binary;
 //            String[] methods = AutoThresholder.getMethods();
 //            for (String method : methods) {
 
-            Utils.timeStampOutput(String.format("Applying %s thresholding method...", props.getStepProperty(SlideJParams.THRESHOLD, s, SlideJParams.DEFAULT_THRESHOLD_METHOD)));
-            Img<BitType> binary;
-            if (props.getStepProperty(SlideJParams.THRESHOLD, s, SlideJParams.DEFAULT_THRESHOLD_METHOD).equalsIgnoreCase("Manual")) {
-                binary = thresholdImg(filtered, new UnsignedShortType(
-                        Math.round(65535 * Float.parseFloat(
-                                props.getStepProperty(SlideJParams.MAN_THRESH_VAL, s, "1.0")))));
-            } else
-                binary = thresholdImg(filtered, props.getStepProperty(SlideJParams.THRESHOLD, s, SlideJParams.DEFAULT_THRESHOLD_METHOD));
-
-            Utils.timeStampOutput("Labelling connected components...");
-            Img<UnsignedShortType> labelled = (new CellImgFactory<>(new UnsignedShortType(), SlideJParams.CELL_IMG_DIM)).create(binary);
-            ConnectedComponents.labelAllConnectedComponents(binary, labelled, ConnectedComponents.StructuringElement.EIGHT_CONNECTED);
-            String regionsName = String.format("step_%d_%s", s, channelNames.get(c));
-            regions.put(regionsName, getRegionsList(labelled));
+        if (method.equalsIgnoreCase("Manual")) {
+            int threshold = Math.round(65535 * Float.parseFloat(props.getStepProperty(SlideJParams.MAN_THRESH_VAL, s, "1.0")));
+            stepOutput(s, String.format("%s and binarising with threshold value of %d...",
+                    topHat ? "Filtering, top-hat filtering" : "Filtering", threshold));
+            binary = ImgStorage.create(new BitType(), channel);
+            filter.binarise(channel, binary, threshold);
+            span.end();
+        } else {
+            stepOutput(s, topHat ? "Filtering and top-hat filtering..." : "Filtering...");
+            Img<UnsignedShortType> filtered = ImgStorage.create(new UnsignedShortType(), channel);
+            MinMaxFinder histogram = new MinMaxFinder(Integer.parseInt(props.getProperty(SlideJParams.THRESHOLD_SAMPLE_STRIDE,
+                    SlideJParams.DEFAULT_THRESHOLD_SAMPLE_STRIDE)));
+            filter.setHistogram(histogram);
+            filter.filter(channel, filtered);
+            span.end();
+
+            stepOutput(s, String.format("Applying %s thresholding method...", method));
+            span = tracer.start(String.format("Step %d threshold", s), stepSpan).setVoxels(nVoxels)
+                    .setThreads(TaskScheduler.getParallelism());
+            binary = thresholdImg(filtered, method, histogram);
+            span.end();
+        }
+
+        stepOutput(s, "Labelling connected components...");
+        span = tracer.start(String.format("Step %d labelling", s), stepSpan).setVoxels(nVoxels);
+        Img<UnsignedShortType> labelled = ImgStorage.create(new UnsignedShortType(), binary);
+        ConnectedComponents.labelAllConnectedComponents(binary, labelled, ConnectedComponents.StructuringElement.EIGHT_CONNECTED);
+        span.end();
+        String regionsName = String.format("step_%d_%s", s, channelName);
+        result.regionsName = regionsName;
+        result.labelled = labelled;
 
 //                Img<BitType> binary = thresholdImg(filtered, method);
 //            Utils.timeStampOutput("Converting binary image...");
 //            Img<UnsignedByteType> convertedBinary = ConvertBinary.convertBinary(binary, tmpDir);
 
-            Utils.timeStampOutput("Saving...");
-            try {
-                saver.saveImg(String.format("%s%sLabeling_%s.ome.btf", binOutDir, File.separator, regionsName), labelled, config);
+        stepOutput(s, "Queueing for output...");
+        try {
+            String labelFilename = String.format("%s%sLabeling_%s.ome.btf", binOutDir, File.separator, regionsName);
+            writer.submit(labelFilename, labelled, getLabelCodec(), channelCals);
+            queuePyramid(labelFilename, labelled, channelCals, true);
 //                saver.saveImg(String.format("%s%s%s_threshold_%s.ome.btf", binOutDir, File.separator,
 //                        props.getStepProperty(SlideJParams.THRESHOLD, c, SlideJParams.DEFAULT_THRESHOLD_METHOD), channelNames.get(c)), convertedBinary, config);
-            } catch (Exception e) {
-                Utils.timeStampOutput("Saving failed.");
-                Utils.timeStampOutput(e.toString());
-                Utils.timeStampOutput(e.getMessage());
-            }
-
-            if (Boolean.parseBoolean(props.getStepProperty(SlideJParams.SKELETONISE, s, SlideJParams.DEFAULT_SKEL_CHANNEL))) {
-                Utils.timeStampOutput("Skeletonising...");
-                ImagePlus skelImp = ImageJFunctions.wrapBit(binary, String.format("Binary_%s", regionsName)).duplicate();
-                Skeletonize3D_ skeletoniser = new Skeletonize3D_();
-                skeletoniser.setup("", skelImp);
-                skeletoniser.run(null);
-
-                Utils.timeStampOutput("Saving...");
-                String skel_filename = String.format("%s%sSkeleton_%s%s", binOutDir, File.separator, regionsName, SlideJParams.OUTPUT_FILE_EXT);
-                saver.saveImg(skel_filename, ImageJFunctions.wrap(skelImp), config);
-                analyseSkeleton(ImageJFunctions.wrap(skelImp), file, c, new int[]{
-                                calNeighbourhood[axisOrder[SlideJParams.X_AXIS]],
-                                calNeighbourhood[axisOrder[SlideJParams.Y_AXIS]],
-                                calNeighbourhood[axisOrder[SlideJParams.Z_AXIS]]},
-                        regionsName);
-            }
-            Utils.timeStampOutput("Done.");
-
-            Utils.timeStampOutput("Calculating distance map 1...");
-            Img<FloatType> dm1 = DistanceTransformer.calcDistanceMap(binary, channelCals, tmpDir, false);
+        } catch (Exception e) {
+            stepOutput(s, "Saving failed.");
+            stepOutput(s, e.toString());
+            stepOutput(s, e.getMessage());
+            failures.add(String.format("Step %d: saving %s failed: %s", s, regionsName, e));
+        }
 
-            Utils.timeStampOutput("Saving...");
-            saver.saveImg(String.format("%s%sDistanceMap_%s%s", mapOutDir, File.separator, regionsName, SlideJParams.OUTPUT_FILE_EXT), dm1, config);
+        if (Boolean.parseBoolean(props.getStepProperty(SlideJParams.SKELETONISE, s, SlideJParams.DEFAULT_SKEL_CHANNEL))) {
+            stepOutput(s, "Skeletonising...");
+            span = tracer.start(String.format("Step %d skeletonisation", s), stepSpan).setVoxels(nVoxels);
+            ImagePlus skelImp = ImageJFunctions.wrapBit(binary, String.format("Binary_%s", regionsName)).duplicate();
+            Skeletonize3D_ skeletoniser = new Skeletonize3D_();
+            skeletoniser.setup("", skelImp);
+            skeletoniser.run(null);
+            span.end();
+
+            stepOutput(s, "Queueing for output...");
+            String skel_filename = String.format("%s%sSkeleton_%s%s", binOutDir, File.separator, regionsName, SlideJParams.OUTPUT_FILE_EXT);
+            writer.submit(skel_filename, ImageJFunctions.wrap(skelImp), getLabelCodec(), channelCals);
+            queuePyramid(skel_filename, ImageJFunctions.wrap(skelImp), channelCals, true);
+            analyseSkeleton(ImageJFunctions.wrap(skelImp), file, new int[]{
+                            calNeighbourhood[axisOrder[SlideJParams.X_AXIS]],
+                            calNeighbourhood[axisOrder[SlideJParams.Y_AXIS]],
+                            calNeighbourhood[axisOrder[SlideJParams.Z_AXIS]]},
+                    regionsName, stepSpan);
+        }
+        stepOutput(s, "Done.");
+
+        if (Boolean.parseBoolean(props.getProperty(SlideJParams.SIGNED_DISTANCE_MAP, SlideJParams.DEFAULT_SIGNED_DISTANCE_MAP))) {
+            stepOutput(s, "Calculating signed distance map...");
+            span = tracer.start(String.format("Step %d distance transform", s), stepSpan).setVoxels(nVoxels)
+                    .setThreads(TaskScheduler.getParallelism());
+            Img<FloatType> sdm = DistanceTransformer.calcSignedDistanceMap(binary, channelCals);
+            span.end();
+
+            stepOutput(s, "Queueing for output...");
+            String sdmFilename = String.format("%s%sSignedDistanceMap_%s%s", mapOutDir, File.separator, regionsName, SlideJParams.OUTPUT_FILE_EXT);
+            writer.submit(sdmFilename, sdm, channelCals);
+            queuePyramid(sdmFilename, sdm, channelCals, false);
+
+            result.maps.add(sdm);
+            result.mapNames.add(String.format("%s_SignedDistanceMap", regionsName));
+            stepSpan.end();
+            return result;
+        }
 
-            maps.add(dm1);
-            channelNames.add(String.format("%s_DistanceMap", regionsName));
+        stepOutput(s, "Calculating distance maps...");
+        span = tracer.start(String.format("Step %d distance transform", s), stepSpan).setVoxels(nVoxels)
+                .setThreads(TaskScheduler.getParallelism());
+        List<Img<FloatType>> distanceMaps = DistanceTransformer.calcDistanceMaps(binary, channelCals);
+        span.end();
+        Img<FloatType> dm1 = distanceMaps.get(DistanceTransformer.FOREGROUND);
+        Img<FloatType> dm2 = distanceMaps.get(DistanceTransformer.BACKGROUND);
+
+        stepOutput(s, "Queueing for output...");
+        String dm1Filename = String.format("%s%sDistanceMap_%s%s", mapOutDir, File.separator, regionsName, SlideJParams.OUTPUT_FILE_EXT);
+        writer.submit(dm1Filename, dm1, channelCals);
+        queuePyramid(dm1Filename, dm1, channelCals, false);
+
+        result.maps.add(dm1);
+        result.mapNames.add(String.format("%s_DistanceMap", regionsName));
+
+        stepOutput(s, "Queueing for output...");
+        String dm2Filename = String.format("%s%sInvertedDistanceMap_%s%s", mapOutDir, File.separator, regionsName, SlideJParams.OUTPUT_FILE_EXT);
+        writer.submit(dm2Filename, dm2, channelCals);
+        queuePyramid(dm2Filename, dm2, channelCals, false);
+//            }
+        result.maps.add(dm2);
+        result.mapNames.add(String.format("%s_InvertedDistanceMap", regionsName));
 
-            Utils.timeStampOutput("Calculating distance map 2...");
-            Img<FloatType> dm2 = DistanceTransformer.calcDistanceMap(binary, channelCals, tmpDir, true);
+        stepSpan.end();
+        return result;
+    }
 
-            Utils.timeStampOutput("Saving...");
-            saver.saveImg(String.format("%s%sInvertedDistanceMap_%s%s", mapOutDir, File.separator, regionsName, SlideJParams.OUTPUT_FILE_EXT), dm2, config);
-//            }
-            maps.add(dm2);
-            channelNames.add(String.format("%s_InvertedDistanceMap", regionsName));
+    /**
+     * Rough heap use, in bytes, of the images that only live while a step runs - the filtered channel, binary and,
+     * if requested, the skeleton. With disk-cached storage only the skeleton, which ImageJ holds on the heap, counts;
+     * the other images are bounded by the cache size.
+     */
+    private long estimateWorkingMemory(Img<UnsignedShortType> img, int caxis, int s) {
+        long nVoxels = Intervals.numElements(img) / img.dimension(caxis);
+        double bytesPerVoxel = ImgStorage.isDiskCached() ? 0.0 : 2.0 + 1.0 / 8.0;
+        if (Boolean.parseBoolean(props.getStepProperty(SlideJParams.SKELETONISE, s, SlideJParams.DEFAULT_SKEL_CHANNEL)))
+            bytesPerVoxel += 1.0;
+        return (long) (nVoxels * bytesPerVoxel);
+    }
 
-        }
-        return;
+    /**
+     * Rough heap use, in bytes, of the outputs a step keeps until analysis - the labelling and distance maps. These
+     * are charged against the step memory budget for the whole of segmentation. They are not counted with disk-cached
+     * storage.
+     */
+    private long estimateRetainedMemory(Img<UnsignedShortType> img, int caxis) {
+        if (ImgStorage.isDiskCached()) return 0;
+        long nVoxels = Intervals.numElements(img) / img.dimension(caxis);
+        boolean signed = Boolean.parseBoolean(props.getProperty(SlideJParams.SIGNED_DISTANCE_MAP, SlideJParams.DEFAULT_SIGNED_DISTANCE_MAP));
+        return (long) (nVoxels * (2.0 + (signed ? 4.0 : 2.0 * 4.0)));
     }
 
-    public Img<BitType> thresholdImg(Img<UnsignedShortType> img, String method) {
-        ImageThresholder it = new ImageThresholder(img, tmpDir, method);
-        it.threshold();
+    private void stepOutput(int step, String message) {
+        Utils.timeStampOutput(String.format("Step %d: %s", step, message));
+    }
 
-        return it.getOutput();
+    private static class StepResult {
+        private String regionsName;
+        private Img<UnsignedShortType> labelled;
+        private final List<Img<FloatType>> maps = new ArrayList<>();
+        private final List<String> mapNames = new ArrayList<>();
     }
 
-    public Img<BitType> thresholdImg(Img<UnsignedShortType> img, UnsignedShortType threshold) {
-        ImageThresholder it = new ImageThresholder(img);
-        it.thresholdImage(threshold);
+    public Img<BitType> thresholdImg(Img<UnsignedShortType> img, String method, MinMaxFinder histogram) {
+        ImageThresholder it = new ImageThresholder(img, tmpDir, method);
+        it.setNBins(Integer.parseInt(props.getProperty(SlideJParams.THRESHOLD_BINS, SlideJParams.DEFAULT_THRESHOLD_BINS)));
+        it.setBlockSize(getTileSize(img.numDimensions()));
+        if (tissueMask != null) it.setTissueMask(tissueMask, getTileSize(img.numDimensions()));
+        it.threshold(histogram);
 
         return it.getOutput();
     }
@@ -472,82 +891,96 @@ public class SlideJ {
         return span;
     }
 
-    private ArrayList<RandomAccessibleInterval<BoolType>> getRegionsList(RandomAccessibleInterval<UnsignedShortType> img) {
-        final Dimensions dims = img;
-        final UnsignedShortType t = new UnsignedShortType();
-        final RandomAccessibleInterval<UnsignedShortType> labelImg = Util.getArrayOrCellImgFactory(dims, t).create(dims, t);
-        ImgLabeling<Integer, UnsignedShortType> labelingImg = new ImgLabeling<Integer, UnsignedShortType>(labelImg);
-
-        final Cursor<LabelingType<Integer>> labelCursor = Views.flatIterable(labelingImg).cursor();
-
-        for (final UnsignedShortType input : Views.flatIterable(img)) {
-            final LabelingType<Integer> element = labelCursor.next();
-            if (input.getRealFloat() != 0) {
-                element.add((int) input.getRealFloat());
+    /**
+     * Sliding-window strides in voxels, or null if the neighbourhoods should not overlap. The stride along each axis
+     * is the divisor of the neighbourhood size nearest to the requested fraction of it, so that every window is made
+     * of whole strides.
+     */
+    int[] getStride(int[] calNeighbourhood, int caxis) {
+        double fraction = Double.parseDouble(props.getProperty(SlideJParams.NEIGHBOURHOOD_STRIDE, SlideJParams.DEFAULT_NEIGHBOURHOOD_STRIDE));
+        int[] stride = new int[calNeighbourhood.length];
+        boolean sliding = false;
+        for (int d = 0; d < stride.length; d++) {
+            int size = Math.max(1, calNeighbourhood[d]);
+            stride[d] = size;
+            if (d == caxis) continue;
+            long target = Math.max(1, Math.round(size * fraction));
+            for (int s = 1; s < size; s++) {
+                if (size % s == 0 && Math.abs(s - target) < Math.abs(stride[d] - target)) stride[d] = s;
             }
+            if (stride[d] < size) sliding = true;
         }
+        return sliding ? stride : null;
+    }
 
-        // create list of regions
-        LabelRegions<Integer> labelRegions = new LabelRegions<Integer>(labelingImg);
-        ArrayList<RandomAccessibleInterval<BoolType>> regionsList = new ArrayList<RandomAccessibleInterval<BoolType>>();
-
-        Object[] regionsArr = labelRegions.getExistingLabels().toArray();
-        for (int i = 0; i < labelRegions.getExistingLabels().size(); i++) {
-            LabelRegion<Integer> lr = labelRegions.getLabelRegion((Integer) regionsArr[i]);
-
-            regionsList.add(lr);
-        }
-        return regionsList;
+    long[] getTileSize(int nAxis) {
+        long[] tileSize = new long[nAxis];
+        Arrays.fill(tileSize, Long.parseLong(props.getProperty(SlideJParams.TILE_SIZE, SlideJParams.DEFAULT_TILE_SIZE)));
+        return tileSize;
     }
 
-    void analyseObjects(ArrayList<RandomAccessibleInterval<BoolType>> regions, RandomAccessibleInterval<FloatType> img,
-                        double[] calibrations, int[] axisOrder, String[] dimLabels, File file, String channel) {
+    void analyseObjects(Img<UnsignedShortType> labels, RandomAccessibleInterval<FloatType> img,
+                        double[] calibrations, int[] axisOrder, String[] dimLabels, File file, String channel,
+                        int nIntegerChannels, Span parent) {
         ObjectAnalyser<FloatType> a = new ObjectAnalyser<>(dimLabels, calibrations, axisOrder, channelNames);
-        Utils.timeStampOutput(String.format("%.1f GB of RAM free.", Runtime.getRuntime().freeMemory() / 1e+9));
+        a.setIntegerChannels(nIntegerChannels);
+        a.setMedianBins(Integer.parseInt(props.getProperty(SlideJParams.OBJECT_MEDIAN_BINS, SlideJParams.DEFAULT_OBJECT_MEDIAN_BINS)));
+        a.setBlockSize(getTileSize(labels.numDimensions()));
+        logHeapUsage();
         Utils.timeStampOutput("Analysing objects...");
+        Span span = tracer.start(String.format("Object analysis %s", channel), parent)
+                .setVoxels(Intervals.numElements(img))
+                .setThreads(TaskScheduler.getParallelism());
 
-        a.analyse(img, regions);
+        ResultsSink results = openResults(String.format("%s_%s_object_results", file.getName(), channel));
+        try {
+            a.analyse(img, labels, results);
+        } catch (RuntimeException e) {
+            fail(e, String.format("Object analysis of %s failed.", channel));
+        }
+        span.end();
 
         Utils.timeStampOutput("Saving results...");
 
         try {
-            ResultsTable[] rt = a.getRt();
-            File outputData = new File(String.format("%s%s%s_%s_object_results.csv", props.getProperty(SlideJParams.OUTPUT),
-                    File.separator, file.getName(), channel));
-            if (outputData.exists() && !outputData.delete())
-                throw new IOException("Cannot delete existing output file.");
-            for (int i = 0; i < rt.length; i++) {
-                if (rt[i] != null) DataWriter.saveResultsTable(rt[i], outputData, true, i == 0);
-            }
+            results.close();
         } catch (IOException e) {
-            GenUtils.logError(e, "Could not save results file.");
+            fail(e, "Could not save results file.");
         }
     }
 
-    void analyseSkeleton(Img<UnsignedShortType> img, File file, int channel, int[] calNeighbourhood,
-                         String regionsName) {
+    void analyseSkeleton(Img<UnsignedShortType> img, File file, int[] calNeighbourhood,
+                         String regionsName, Span parent) {
         long[] imgDims = img.dimensionsAsLongArray();
         for (int i = 0; i < imgDims.length; i++) {
             if (calNeighbourhood[i] > imgDims[i]) {
                 calNeighbourhood[i] = (int) imgDims[i];
             }
         }
-        SkeletonAnalyser<UnsignedShortType> a = new SkeletonAnalyser(calNeighbourhood, regionsName, tmpDir.toFile().getAbsolutePath());
-        Utils.timeStampOutput(String.format("%.1f GB of RAM free.", Runtime.getRuntime().freeMemory() / 1e+9));
+        SkeletonAnalyser<UnsignedShortType> a = new SkeletonAnalyser<>(calNeighbourhood);
+        a.setTissueMask(tissueMask);
+        logHeapUsage();
         Utils.timeStampOutput("Analysing skeleton...");
-        a.analyse(img);
+        Span span = tracer.start(String.format("Skeleton analysis %s", regionsName), parent)
+                .setVoxels(Intervals.numElements(img))
+                .setThreads(TaskScheduler.getParallelism());
+        ResultsSink results = openResults(String.format("%s_%s_skeleton_results", file.getName(), regionsName));
+        try {
+            a.analyse(img, results);
+        } catch (RuntimeException e) {
+            fail(e, String.format("Skeleton analysis of %s failed.", regionsName));
+        }
+        span.end();
         Utils.timeStampOutput("Saving results...");
         try {
-            ResultsTable[] rt = a.getRt();
-            File outputData = new File(String.format("%s%s%s_%d_skeleton_results.csv", props.getProperty(SlideJParams.OUTPUT),
-                    File.separator, file.getName(), channel));
-            if (outputData.exists() && !outputData.delete())
-                throw new IOException("Cannot delete existing output file.");
-            for (int i = 0; i < rt.length; i++) {
-                if (rt[i] != null) DataWriter.saveResultsTable(rt[i], outputData, true, i == 0);
-            }
+            results.close();
         } catch (IOException e) {
-            GenUtils.logError(e, "Could not save results file.");
+            fail(e, "Could not save results file.");
         }
     }
+
+    ResultsSink openResults(String name) {
+        return new ResultsSink(props.getProperty(SlideJParams.OUTPUT) + File.separator + name,
+                ResultsFormat.fromProperty(props.getProperty(SlideJParams.RESULTS_FORMAT, SlideJParams.DEFAULT_RESULTS_FORMAT)));
+    }
 }
@@ -24,31 +24,44 @@
 
 package net.calm.slidej.analysis;
 
-import ij.measure.ResultsTable;
+import net.calm.slidej.concurrent.TaskScheduler;
+import net.calm.slidej.io.ImgStorage;
+import net.calm.slidej.io.ResultsPart;
+import net.calm.slidej.io.ResultsSchema;
+import net.calm.slidej.io.ResultsSink;
 import net.calm.slidej.properties.SlideJParams;
-import net.calm.slidej.util.Utils;
-import net.imagej.ImageJ;
-import net.imagej.ops.stats.StatsNamespace;
+import net.calm.slidej.segmentation.TissueMask;
+import net.calm.slidej.stats.StreamingStatistics;
+import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.algorithm.util.Grids;
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
-import net.imglib2.img.cell.CellImgFactory;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.Pair;
+import net.imglib2.view.Views;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class Analyser<T extends RealType<T>> {
     private final int[] neighbourhoodSize;
     private final String[] dimLabels;
     private final double[] calibrations;
-    private ResultsTable[] rt;
     private final int[] dimOrder;
     private Img<FloatType>[][] outputs;
     private final boolean coloc;
+    private int nIntegerChannels = 0;
+    private StreamingStatistics.MedianMode floatMedianMode = StreamingStatistics.MedianMode.APPROXIMATE;
+    private TissueMask tissueMask;
+    private int[] stride;
+    private List<Img<FloatType>> windowOutputs;
 
     public Analyser(int[] neighbourhoodSize, String[] dimLabels, double[] calibrations, int[] dimOrder, boolean coloc) {
         this.neighbourhoodSize = neighbourhoodSize;
@@ -58,7 +71,17 @@ public class Analyser<T extends RealType<T>> {
         this.coloc = coloc;
     }
 
-    public void analyse(RandomAccessibleInterval<T> img) {
+    /**
+     * Measures every neighbourhood and streams one row per neighbourhood to the sink, which the caller closes. If a
+     * tissue mask is set, a final "Tissue" column flags each row, and neighbourhoods outside tissue are not measured -
+     * their statistics are written as NaN.
+     */
+    public void analyse(RandomAccessibleInterval<T> img, ResultsSink sink) {
+
+        if (stride != null && !coloc) {
+            analyseWindows(img, sink);
+            return;
+        }
 
         long[] dims = new long[img.numDimensions()];
 
@@ -66,7 +89,7 @@ public class Analyser<T extends RealType<T>> {
 
         if (coloc) {
 
-            final ImgFactory<FloatType> imgFactory = new CellImgFactory<>(new FloatType(), SlideJParams.CELL_IMG_DIM);
+            final ImgFactory<FloatType> imgFactory = ImgStorage.factory(new FloatType());
 
             outputs = new Img[2][(((int) dims[dimOrder[SlideJParams.C_AXIS]] - 1) * (int) dims[dimOrder[SlideJParams.C_AXIS]]) / 2];
 
@@ -81,44 +104,165 @@ public class Analyser<T extends RealType<T>> {
 
         List<Pair<Interval, long[]>> cells = Grids.collectAllContainedIntervalsWithGridPositions(dims, neighbourhoodSize);
 
-        int nbCPUs = Runtime.getRuntime().availableProcessors();
-        int nThreads = Math.min(nbCPUs, cells.size());
-        float nCellsPerThread = ((float) cells.size()) / nThreads;
-        rt = new ResultsTable[nThreads];
-        Thread[] ats = new Thread[nThreads];
-        int startIndex;
-        int endIndex = 0;
-        StatsNamespace stats = new ImageJ().op().stats();
-        for (int thread = 0; thread < nThreads; thread++) {
-            rt[thread] = new ResultsTable();
-            startIndex = endIndex;
-            if (startIndex >= cells.size()) break;
-            endIndex = Math.min(Math.round((thread + 1) * nCellsPerThread), cells.size());
+        List<String> columns = new ArrayList<>(Arrays.asList(dimLabels));
+        if (!coloc) {
+            columns.addAll(Arrays.asList(AnalyserThread.STATISTICS));
+        } else {
+            int nC = (int) dims[dimOrder[SlideJParams.C_AXIS]];
+            for (int chan = 0; chan < nC - 1; chan++) {
+                for (int chan2 = chan + 1; chan2 < nC; chan2++) {
+                    columns.add(String.format("PC_%d_%d", chan, chan2));
+                    columns.add(String.format("SC_%d_%d", chan, chan2));
+                }
+            }
+        }
+        if (tissueMask != null) columns.add("Tissue");
+        sink.setSchema(new ResultsSchema(columns, false));
+
+        List<List<Pair<Interval, long[]>>> chunks = TaskScheduler.partition(cells, TaskScheduler.getChunkCount(cells.size()));
+        List<Runnable> tasks = new ArrayList<>();
+        for (int chunk = 0; chunk < chunks.size(); chunk++) {
             if (!coloc) {
-                ats[thread] = new AnalyserThread<T>(cells.subList(startIndex, endIndex), img, neighbourhoodSize,
-                        rt[thread], dimLabels, calibrations, stats);
+                tasks.add(new AnalyserThread<T>(chunks.get(chunk), img, neighbourhoodSize,
+                        sink, chunk, calibrations, dimOrder[SlideJParams.C_AXIS], nIntegerChannels,
+                        floatMedianMode, tissueMask));
             } else {
-                ats[thread] = new CorrelationThread<T>(cells.subList(startIndex, endIndex), img, neighbourhoodSize,
-                        rt[thread], dimLabels, calibrations, dimOrder, outputs);
+                tasks.add(new CorrelationThread<T>(chunks.get(chunk), img, neighbourhoodSize,
+                        sink, chunk, calibrations, dimOrder, outputs, tissueMask));
             }
-            ats[thread].start();
         }
-        try {
-            for (int thread = 0; thread < nThreads; thread++) {
-                if (ats[thread] != null) ats[thread].join();
+        TaskScheduler.runAll(tasks);
+    }
+
+    /**
+     * Sliding-window mode: windows of the neighbourhood size start every stride voxels, so neighbouring windows
+     * overlap and windows at the far edge of the image are clipped. Each stride must divide the neighbourhood size,
+     * so that every window is made of whole blocks of an {@link IntegralMoments} table and costs the same whatever its
+     * size. Besides the rows, each channel's statistics are kept as a low-resolution image with one pixel per window
+     * and the statistics along the last axis.
+     */
+    private void analyseWindows(RandomAccessibleInterval<T> img, ResultsSink sink) {
+        int cAxis = dimOrder[SlideJParams.C_AXIS];
+        int nDims = img.numDimensions();
+        long[] blockSize = new long[nDims - 1];
+        long[] blocksPerWindow = new long[nDims - 1];
+        long[] positions = new long[nDims - 1];
+        for (int d = 0, i = 0; d < nDims; d++) {
+            if (d == cAxis) continue;
+            blockSize[i] = stride[d];
+            blocksPerWindow[i] = neighbourhoodSize[d] / stride[d];
+            long dim = img.dimension(d);
+            positions[i] = dim <= neighbourhoodSize[d] ? 1 : (dim - neighbourhoodSize[d] + stride[d] - 1) / stride[d] + 1;
+            i++;
+        }
+
+        List<String> columns = new ArrayList<>(Arrays.asList(dimLabels));
+        columns.addAll(Arrays.asList(IntegralMoments.STATISTICS));
+        if (tissueMask != null) columns.add("Tissue");
+        sink.setSchema(new ResultsSchema(columns, false));
+
+        long[] outputDims = Arrays.copyOf(positions, nDims);
+        outputDims[nDims - 1] = IntegralMoments.STATISTICS.length;
+        ImgFactory<FloatType> imgFactory = ImgStorage.factory(new FloatType());
+        windowOutputs = new ArrayList<>();
+        long nWindows = Intervals.numElements(positions);
+        int partIndex = 0;
+        for (int c = 0; c < img.dimension(cAxis); c++) {
+            IntegralMoments moments = new IntegralMoments(Views.hyperSlice(img, cAxis, c), blockSize);
+            Img<FloatType> output = imgFactory.create(outputDims);
+            windowOutputs.add(output);
+            int nChunks = TaskScheduler.getChunkCount((int) Math.min(Integer.MAX_VALUE, nWindows));
+            List<Runnable> tasks = new ArrayList<>();
+            for (int chunk = 0; chunk < nChunks; chunk++) {
+                long start = chunk * nWindows / nChunks;
+                long end = (chunk + 1) * nWindows / nChunks;
+                int channel = c;
+                int part = partIndex++;
+                tasks.add(() -> measureWindows(img, channel, moments, output, positions, blockSize, blocksPerWindow,
+                        start, end, sink, part));
             }
-        } catch (InterruptedException ie) {
-            Utils.timeStampOutput(String.format("Thread %d was interrupted:\n %s", Thread.currentThread().getId(), ie));
+            TaskScheduler.runAll(tasks);
         }
+    }
 
+    private void measureWindows(RandomAccessibleInterval<T> img, int channel, IntegralMoments moments,
+                                Img<FloatType> output, long[] positions, long[] blockSize, long[] blocksPerWindow,
+                                long start, long end, ResultsSink sink, int partIndex) {
+        int cAxis = dimOrder[SlideJParams.C_AXIS];
+        int nDims = img.numDimensions();
+        long[] position = new long[positions.length];
+        long[] maxBlock = new long[positions.length];
+        long[] windowMin = new long[nDims];
+        long[] windowMax = new long[nDims];
+        long[] outputPos = new long[nDims];
+        double[] sums = new double[IntegralMoments.ORDER + 1];
+        double[] stats = new double[IntegralMoments.STATISTICS.length];
+        RandomAccess<FloatType> out = output.randomAccess();
+        int tissueColumn = sink.getSchema().size() - 1;
+        try (ResultsPart part = sink.openPart(partIndex)) {
+            for (long index = start; index < end; index++) {
+                IntervalIndexer.indexToPosition(index, positions, position);
+                for (int d = 0, i = 0; d < nDims; d++) {
+                    if (d == cAxis) {
+                        windowMin[d] = windowMax[d] = channel;
+                        part.set(d, channel + 1);
+                        continue;
+                    }
+                    maxBlock[i] = position[i] + blocksPerWindow[i];
+                    windowMin[d] = position[i] * blockSize[i];
+                    windowMax[d] = Math.min(img.dimension(d), windowMin[d] + neighbourhoodSize[d]) - 1;
+                    part.set(d, (windowMin[d] + windowMax[d] + 1) * calibrations[d] / 2.0);
+                    outputPos[i] = position[i];
+                    i++;
+                }
+                boolean tissue = tissueMask == null || tissueMask.intersects(new FinalInterval(windowMin, windowMax));
+                if (tissueMask != null) part.set(tissueColumn, tissue ? 1.0 : 0.0);
+                if (tissue) {
+                    moments.sums(position, maxBlock, sums);
+                    moments.statistics(sums, stats);
+                } else {
+                    Arrays.fill(stats, Double.NaN);
+                }
+                for (int s = 0; s < stats.length; s++) {
+                    part.set(positions.length + 1 + s, stats[s]);
+                    outputPos[nDims - 1] = s;
+                    out.setPosition(outputPos);
+                    out.get().setReal(stats[s]);
+                }
+                part.endRow();
+            }
+        }
     }
 
     private void measure() {
 
     }
 
-    public ResultsTable[] getRt() {
-        return rt;
+    public void setIntegerChannels(int nIntegerChannels) {
+        this.nIntegerChannels = nIntegerChannels;
+    }
+
+    public void setFloatMedianMode(StreamingStatistics.MedianMode floatMedianMode) {
+        this.floatMedianMode = floatMedianMode;
+    }
+
+    /**
+     * Strides, in voxels, between sliding windows along each axis; null restores non-overlapping neighbourhoods.
+     * Ignored when colocalising.
+     */
+    public void setStride(int[] stride) {
+        this.stride = stride;
+    }
+
+    /**
+     * Per-channel statistics images from the last sliding-window analysis, or null.
+     */
+    public List<Img<FloatType>> getWindowOutputs() {
+        return windowOutputs;
+    }
+
+    public void setTissueMask(TissueMask tissueMask) {
+        this.tissueMask = tissueMask;
     }
 
     public Img<FloatType>[][] getOutputs() {
@@ -24,88 +24,114 @@
 
 package net.calm.slidej.analysis;
 
-import ij.measure.ResultsTable;
-import net.imagej.ops.stats.StatsNamespace;
+import net.calm.slidej.io.ResultsPart;
+import net.calm.slidej.io.ResultsSink;
+import net.calm.slidej.segmentation.TissueMask;
+import net.calm.slidej.stats.StreamingStatistics;
 import net.imglib2.Cursor;
 import net.imglib2.Interval;
-import net.imglib2.IterableInterval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.util.Pair;
 import net.imglib2.view.Views;
-import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
-import org.apache.commons.math3.stat.descriptive.moment.SecondMoment;
-import org.apache.commons.math3.stat.descriptive.summary.Product;
-import org.apache.commons.math3.stat.descriptive.summary.SumOfLogs;
 
 import java.util.List;
 
-class AnalyserThread<T extends RealType<T>> extends Thread {
+class AnalyserThread<T extends RealType<T>> implements Runnable {
 
-    private final ResultsTable rt;
+    static final String[] STATISTICS = {"Mean", "Median", "Geometric Mean", "Kurtosis", "Max", "Min",
+            "Population Variance", "Quadratic Mean", "Skewness", "Standard Deviation", "Sum", "Sum Squared", "Variance",
+            "Product", "Second Moment", "ImageJ Geometric Mean", "ImageJ Harmonic Mean", "ImageJ Kurtosis",
+            "ImageJ Moment 1 About Mean", "ImageJ Moment 2 About Mean", "ImageJ Moment 3 About Mean",
+            "ImageJ Moment 4 About Mean", "ImageJ Skewness", "ImageJ Sum of Squares"};
+
+    private final ResultsSink sink;
+    private final int partIndex;
     private final List<Pair<Interval, long[]>> cells;
     private final RandomAccessibleInterval<T> img;
     private final int[] neighbourhoodSize;
-    private final String[] dimLabels;
     private final double[] calibrations;
-    private final StatsNamespace statSpace;
+    private final int cAxis;
+    private final int nIntegerChannels;
+    private final StreamingStatistics.MedianMode floatMedianMode;
+    private final TissueMask tissueMask;
 
     public AnalyserThread(final List<Pair<Interval, long[]>> cells, final RandomAccessibleInterval<T> img,
-                          final int[] neighbourhoodSize, final ResultsTable rt, final String[] dimLabels,
-                          final double[] calibrations, StatsNamespace statSpace) {
-        this.rt = rt;
+                          final int[] neighbourhoodSize, final ResultsSink sink, final int partIndex,
+                          final double[] calibrations, final int cAxis, final int nIntegerChannels,
+                          final StreamingStatistics.MedianMode floatMedianMode, final TissueMask tissueMask) {
+        this.sink = sink;
+        this.partIndex = partIndex;
         this.cells = cells;
         this.img = img;
         this.neighbourhoodSize = neighbourhoodSize;
-        this.dimLabels = dimLabels;
         this.calibrations = calibrations;
-        this.statSpace = statSpace;
+        this.cAxis = cAxis;
+        this.nIntegerChannels = nIntegerChannels;
+        this.floatMedianMode = floatMedianMode;
+        this.tissueMask = tissueMask;
     }
 
+    @Override
     public void run() {
-        DescriptiveStatistics stats = new DescriptiveStatistics();
+        StreamingStatistics integerStats = null;
+        StreamingStatistics floatStats = null;
+        StreamingStatistics stats;
         Cursor<T> c;
-        IterableInterval<T> view;
-        int resultsRow = 0;
-        for (Pair<Interval, long[]> p : cells) {
-            view = Views.interval(img, p.getA());
-            c = view.cursor();
-            stats.clear();
-            for (int d = 0; d < p.getB().length; d++) {
-                rt.setValue(dimLabels[d], resultsRow, (p.getB()[d] + 1) * calibrations[d] * neighbourhoodSize[d] / 2.0);
-            }
-            while (c.hasNext()) {
-                c.fwd();
-                stats.addValue(c.get().getRealDouble());
+        int tissueColumn = sink.getSchema().size() - 1;
+        try (ResultsPart part = sink.openPart(partIndex)) {
+            for (Pair<Interval, long[]> p : cells) {
+                int nDims = p.getB().length;
+                for (int d = 0; d < nDims; d++) {
+                    part.set(d, (p.getB()[d] + 1) * calibrations[d] * neighbourhoodSize[d] / 2.0);
+                }
+                if (tissueMask != null) {
+                    boolean tissue = tissueMask.intersects(p.getA());
+                    part.set(tissueColumn, tissue ? 1.0 : 0.0);
+                    if (!tissue) {
+                        part.endRow();
+                        continue;
+                    }
+                }
+                if (p.getA().min(cAxis) < nIntegerChannels) {
+                    if (integerStats == null) integerStats = new StreamingStatistics(StreamingStatistics.MedianMode.HISTOGRAM);
+                    stats = integerStats;
+                } else {
+                    if (floatStats == null) floatStats = new StreamingStatistics(floatMedianMode);
+                    stats = floatStats;
+                }
+                c = Views.interval(img, p.getA()).cursor();
+                stats.clear();
+                while (c.hasNext()) {
+                    stats.addValue(c.next().getRealDouble());
+                }
+                int i = nDims;
+                part.set(i++, stats.getMean());
+                part.set(i++, stats.getMedian());
+                part.set(i++, stats.getGeometricMean());
+                part.set(i++, stats.getKurtosis());
+                part.set(i++, stats.getMax());
+                part.set(i++, stats.getMin());
+                part.set(i++, stats.getPopulationVariance());
+                part.set(i++, stats.getQuadraticMean());
+                part.set(i++, stats.getSkewness());
+                part.set(i++, stats.getStandardDeviation());
+                part.set(i++, stats.getSum());
+                part.set(i++, stats.getSumsq());
+                part.set(i++, stats.getVariance());
+                part.set(i++, stats.getProduct());
+                part.set(i++, stats.getSecondMoment());
+                part.set(i++, stats.getGeometricMean());
+                part.set(i++, stats.getHarmonicMean());
+                part.set(i++, stats.getOpsKurtosis());
+                part.set(i++, stats.getMomentAboutMean(1));
+                part.set(i++, stats.getMomentAboutMean(2));
+                part.set(i++, stats.getMomentAboutMean(3));
+                part.set(i++, stats.getMomentAboutMean(4));
+                part.set(i++, stats.getOpsSkewness());
+                part.set(i, stats.getSumsq());
+                part.endRow();
             }
-            rt.setValue("Mean", resultsRow, stats.getMean());
-            rt.setValue("Median", resultsRow, stats.getPercentile(50.0));
-            rt.setValue("Geometric Mean", resultsRow, stats.getGeometricMean());
-            rt.setValue("Kurtosis", resultsRow, stats.getKurtosis());
-            rt.setValue("Max", resultsRow, stats.getMax());
-            rt.setValue("Min", resultsRow, stats.getMin());
-            rt.setValue("Population Variance", resultsRow, stats.getPopulationVariance());
-            rt.setValue("Quadratic Mean", resultsRow, stats.getQuadraticMean());
-            rt.setValue("Skewness", resultsRow, stats.getSkewness());
-            rt.setValue("Standard Deviation", resultsRow, stats.getStandardDeviation());
-            rt.setValue("Sum", resultsRow, stats.getSum());
-            rt.setValue("Sum Squared", resultsRow, stats.getSumsq());
-            rt.setValue("Variance", resultsRow, stats.getVariance());
-            rt.setValue("Product", resultsRow, (new Product()).evaluate(stats.getValues()));
-//            rt.setValue("Sum of Logs", resultsRow, (new SumOfLogs()).evaluate(stats.getValues()));
-            rt.setValue("Second Moment", resultsRow, (new SecondMoment()).evaluate(stats.getValues()));
-            rt.setValue("ImageJ Geometric Mean", resultsRow, statSpace.geometricMean(view).getRealDouble());
-            rt.setValue("ImageJ Harmonic Mean", resultsRow, statSpace.harmonicMean(view).getRealDouble());
-            rt.setValue("ImageJ Kurtosis", resultsRow, statSpace.kurtosis(view).getRealDouble());
-            rt.setValue("ImageJ Moment 1 About Mean", resultsRow, statSpace.moment1AboutMean(view).getRealDouble());
-            rt.setValue("ImageJ Moment 2 About Mean", resultsRow, statSpace.moment2AboutMean(view).getRealDouble());
-            rt.setValue("ImageJ Moment 3 About Mean", resultsRow, statSpace.moment3AboutMean(view).getRealDouble());
-            rt.setValue("ImageJ Moment 4 About Mean", resultsRow, statSpace.moment4AboutMean(view).getRealDouble());
-            rt.setValue("ImageJ Skewness", resultsRow, statSpace.skewness(view).getRealDouble());
-//            rt.setValue("ImageJ Sum of Inverses", resultsRow, statSpace.sumOfInverses(view).getRealDouble());
-            rt.setValue("ImageJ Sum of Squares", resultsRow, statSpace.sumOfSquares(view).getRealDouble());
-
-            resultsRow++;
         }
     }
 }
@@ -24,108 +24,236 @@
 
 package net.calm.slidej.analysis;
 
-import ij.measure.ResultsTable;
+import net.calm.slidej.io.ResultsPart;
+import net.calm.slidej.io.ResultsSink;
 import net.calm.slidej.properties.SlideJParams;
-import net.imglib2.Cursor;
+import net.calm.slidej.segmentation.TissueMask;
+import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.Pair;
 import net.imglib2.view.Views;
-import org.apache.commons.math3.stat.correlation.PearsonsCorrelation;
-import org.apache.commons.math3.stat.correlation.SpearmansCorrelation;
-import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
-class CorrelationThread<T extends RealType<T>> extends Thread {
+/**
+ * Pearson and Spearman correlation coefficients between every pair of channels in each neighbourhood. Each block is
+ * read once per channel into buffers that are reused for the lifetime of the thread. Spearman coefficients are Pearson
+ * coefficients of the ranks; ranks are counted from a histogram when the values are integers with a narrow range,
+ * sorted exactly otherwise, and binned into {@link #N_RANK_BINS} bins between the block minimum and maximum when the
+ * block holds more than that many voxels.
+ */
+class CorrelationThread<T extends RealType<T>> implements Runnable {
+
+    static final int N_RANK_BINS = 65536;
 
-    private final ResultsTable rt;
+    private final ResultsSink sink;
+    private final int partIndex;
     private final List<Pair<Interval, long[]>> cells;
     private final RandomAccessibleInterval<T> img;
     private final int[] neighbourhoodSize;
-    private final String[] dimLabels;
     private final double[] calibrations;
     private final int[] dimOrder;
     private final Img<FloatType>[][] outputs;
+    private final TissueMask tissueMask;
+    private double[][] values = new double[0][0];
+    private double[][] ranks = new double[0][0];
+    private double[] sorted = new double[0];
+    private int[] histogram;
 
     public CorrelationThread(final List<Pair<Interval, long[]>> cells, final RandomAccessibleInterval<T> img,
-                             final int[] neighbourhoodSize, final ResultsTable rt, final String[] dimLabels,
-                             final double[] calibrations, final int[] dimOrder, final Img<FloatType>[][] outputs) {
-        this.rt = rt;
+                             final int[] neighbourhoodSize, final ResultsSink sink, final int partIndex,
+                             final double[] calibrations, final int[] dimOrder, final Img<FloatType>[][] outputs,
+                             final TissueMask tissueMask) {
+        this.sink = sink;
+        this.partIndex = partIndex;
         this.cells = cells;
         this.img = img;
         this.neighbourhoodSize = neighbourhoodSize;
-        this.dimLabels = dimLabels;
         this.calibrations = calibrations;
         this.dimOrder = dimOrder;
         this.outputs = outputs;
+        this.tissueMask = tissueMask;
     }
 
+    @Override
     public void run() {
-        Cursor<T> c;
-        int resultsRow = 0;
-        for (Pair<Interval, long[]> p : cells) {
-            c = Views.interval(img, p.getA()).localizingCursor();
-            if (c.getIntPosition(dimOrder[SlideJParams.C_AXIS]) == 0) {
+        int cAxis = dimOrder[SlideJParams.C_AXIS];
+        int nC = (int) img.dimension(cAxis);
+        int nPairs = ((nC - 1) * nC) / 2;
+        float[][] coeffs = new float[2][nPairs];
+        double[] means = new double[nC];
+        double[][] coMoments = new double[nC][nC];
+        RandomAccess<FloatType>[][] outputAccess = new RandomAccess[2][nPairs];
+        for (int i = 0; i < outputAccess.length; i++) {
+            for (int j = 0; j < nPairs; j++) {
+                outputAccess[i][j] = outputs[i][j].randomAccess();
+            }
+        }
+        long[] outputPos = new long[3];
+        List<RandomAccessibleInterval<T>> channels = new ArrayList<>();
+        for (int chan = 0; chan < nC; chan++) {
+            channels.add(Views.hyperSlice(img, cAxis, chan));
+        }
+        long[] blockMin = new long[img.numDimensions() - 1];
+        long[] blockMax = new long[img.numDimensions() - 1];
+        int tissueColumn = sink.getSchema().size() - 1;
+        try (ResultsPart part = sink.openPart(partIndex)) {
+            for (Pair<Interval, long[]> p : cells) {
+                Interval cell = p.getA();
+                if (cell.min(cAxis) != 0) continue;
+                for (int d = 0, i = 0; d < cell.numDimensions(); d++) {
+                    if (d == cAxis) continue;
+                    blockMin[i] = cell.min(d);
+                    blockMax[i++] = cell.max(d);
+                }
+                FinalInterval block = new FinalInterval(blockMin, blockMax);
                 for (int d = 0; d < p.getB().length; d++) {
-                    rt.setValue(dimLabels[d], resultsRow, (p.getB()[d] + 1) * calibrations[d] * neighbourhoodSize[d] / 2.0);
+                    part.set(d, (p.getB()[d] + 1) * calibrations[d] * neighbourhoodSize[d] / 2.0);
+                }
+                boolean tissue = tissueMask == null || tissueMask.intersects(block);
+                if (tissueMask != null) part.set(tissueColumn, tissue ? 1.0 : 0.0);
+                if (tissue) {
+                    int n = (int) Intervals.numElements(block);
+                    ensureCapacity(nC, n);
+                    for (int chan = 0; chan < nC; chan++) {
+                        double[] v = values[chan];
+                        int index = 0;
+                        for (T t : Views.flatIterable(Views.interval(channels.get(chan), block))) {
+                            v[index++] = t.getRealDouble();
+                        }
+                        rank(v, ranks[chan], n);
+                    }
+                    correlate(values, n, means, coMoments, coeffs[0]);
+                    correlate(ranks, n, means, coMoments, coeffs[1]);
+                } else {
+                    Arrays.fill(coeffs[0], Float.NaN);
+                    Arrays.fill(coeffs[1], Float.NaN);
                 }
-                float[][] coeffs = calcCorrelations(c, img.randomAccess(), img.numDimensions(), (int) img.dimension(dimOrder[SlideJParams.C_AXIS]));
-                int index = 0;
-                for (int chan = c.getIntPosition(dimOrder[SlideJParams.C_AXIS]); chan < img.dimension(dimOrder[SlideJParams.C_AXIS]) - 1; chan++) {
-                    for (int chan2 = chan + 1; chan2 < img.dimension(dimOrder[SlideJParams.C_AXIS]); chan2++) {
-                        RandomAccess<FloatType> r = outputs[0][index].randomAccess();
-                        r.setPosition(new long[]{p.getB()[dimOrder[SlideJParams.X_AXIS]], p.getB()[dimOrder[SlideJParams.Y_AXIS]], p.getB()[dimOrder[SlideJParams.Z_AXIS]]});
-                        r.get().set(coeffs[0][index]);
-
-                        RandomAccess<FloatType> r2 = outputs[1][index].randomAccess();
-                        r2.setPosition(new long[]{p.getB()[dimOrder[SlideJParams.X_AXIS]], p.getB()[dimOrder[SlideJParams.Y_AXIS]], p.getB()[dimOrder[SlideJParams.Z_AXIS]]});
-                        r2.get().set(coeffs[1][index]);
 
-                        rt.setValue(String.format("PC_%d_%d", chan, chan2), resultsRow, coeffs[0][index]);
-                        rt.setValue(String.format("SC_%d_%d", chan, chan2), resultsRow, coeffs[1][index]);
+                outputPos[0] = p.getB()[dimOrder[SlideJParams.X_AXIS]];
+                outputPos[1] = p.getB()[dimOrder[SlideJParams.Y_AXIS]];
+                outputPos[2] = p.getB()[dimOrder[SlideJParams.Z_AXIS]];
+                int index = 0;
+                for (int chan = 0; chan < nC - 1; chan++) {
+                    for (int chan2 = chan + 1; chan2 < nC; chan2++) {
+                        for (int i = 0; i < outputAccess.length; i++) {
+                            outputAccess[i][index].setPosition(outputPos);
+                            outputAccess[i][index].get().set(coeffs[i][index]);
+                        }
+                        part.set(p.getB().length + 2 * index, coeffs[0][index]);
+                        part.set(p.getB().length + 2 * index + 1, coeffs[1][index]);
                         index++;
                     }
                 }
-                resultsRow++;
+                part.endRow();
             }
         }
     }
 
-    float[][] calcCorrelations(Cursor<T> c, RandomAccess<T> r, int nDims, int nC) {
-        int channel = c.getIntPosition(dimOrder[SlideJParams.C_AXIS]);
-        float[][] coeffs = new float[2][((nC - 1) * nC) / 2];
-        for (float[] coeff : coeffs) {
-            Arrays.fill(coeff, Float.NaN);
+    private void ensureCapacity(int nC, int n) {
+        if (values.length == nC && values[0].length >= n) return;
+        values = new double[nC][n];
+        ranks = new double[nC][n];
+        sorted = new double[n];
+    }
+
+    /**
+     * Pearson coefficients for every pair of rows in data, from the co-moment matrix.
+     */
+    static void correlate(double[][] data, int n, double[] means, double[][] coMoments, float[] coeffs) {
+        int nC = means.length;
+        for (int c = 0; c < nC; c++) {
+            double sum = 0.0;
+            double[] x = data[c];
+            for (int i = 0; i < n; i++) {
+                sum += x[i];
+            }
+            means[c] = sum / n;
         }
-        DescriptiveStatistics[] stats = new DescriptiveStatistics[nC];
-        PearsonsCorrelation pc = new PearsonsCorrelation();
-        SpearmansCorrelation sc = new SpearmansCorrelation();
-        for (int s = 0; s < stats.length; s++) {
-            stats[s] = new DescriptiveStatistics();
+        for (double[] row : coMoments) {
+            Arrays.fill(row, 0.0);
         }
-        while (c.hasNext()) {
-            c.fwd();
-            stats[channel].addValue(c.get().getRealDouble());
-            for (int chan = channel + 1; chan < nC; chan++) {
-                r.setPosition(c);
-                r.setPosition(chan, dimOrder[SlideJParams.C_AXIS]);
-                stats[chan].addValue(r.get().getRealDouble());
+        for (int i = 0; i < n; i++) {
+            for (int c = 0; c < nC; c++) {
+                double dc = data[c][i] - means[c];
+                double[] row = coMoments[c];
+                for (int c2 = c; c2 < nC; c2++) {
+                    row[c2] += dc * (data[c2][i] - means[c2]);
+                }
             }
         }
         int index = 0;
-        for (int chan = channel; chan < nC - 1; chan++) {
-            for (int chan2 = chan + 1; chan2 < nC; chan2++) {
-                coeffs[0][index] = (float) pc.correlation(stats[chan].getValues(), stats[chan2].getValues());
-                coeffs[1][index] = (float) sc.correlation(stats[chan].getValues(), stats[chan2].getValues());
-                index++;
+        for (int c = 0; c < nC - 1; c++) {
+            for (int c2 = c + 1; c2 < nC; c2++) {
+                coeffs[index++] = n < 2 ? Float.NaN
+                        : (float) (coMoments[c][c2] / Math.sqrt(coMoments[c][c] * coMoments[c2][c2]));
             }
         }
-        return coeffs;
+    }
+
+    /**
+     * Fractional ranks (ties share their average rank) of the first n values.
+     */
+    void rank(double[] v, double[] r, int n) {
+        if (n < 1) return;
+        double min = v[0];
+        double max = v[0];
+        boolean integers = true;
+        for (int i = 0; i < n; i++) {
+            double x = v[i];
+            if (x < min) min = x;
+            if (x > max) max = x;
+            if (integers && x != Math.rint(x)) integers = false;
+        }
+        double range = max - min + 1;
+        if (integers && range <= N_RANK_BINS && range <= 8.0 * n) {
+            rankByHistogram(v, r, n, min, 1.0, (int) range);
+        } else if (n <= N_RANK_BINS) {
+            System.arraycopy(v, 0, sorted, 0, n);
+            Arrays.sort(sorted, 0, n);
+            for (int i = 0; i < n; i++) {
+                int first = lowerBound(sorted, n, v[i]);
+                int last = lowerBound(sorted, n, Math.nextUp(v[i])) - 1;
+                r[i] = (first + last) / 2.0 + 1.0;
+            }
+        } else {
+            rankByHistogram(v, r, n, min, max > min ? (max - min) / (N_RANK_BINS - 1) : 1.0, N_RANK_BINS);
+        }
+    }
+
+    private void rankByHistogram(double[] v, double[] r, int n, double min, double width, int nBins) {
+        if (histogram == null) histogram = new int[N_RANK_BINS];
+        Arrays.fill(histogram, 0, nBins, 0);
+        for (int i = 0; i < n; i++) {
+            histogram[(int) ((v[i] - min) / width)]++;
+        }
+        double[] binRanks = sorted.length >= nBins ? sorted : (sorted = new double[Math.max(nBins, values[0].length)]);
+        long cumulative = 0;
+        for (int b = 0; b < nBins; b++) {
+            binRanks[b] = cumulative + (histogram[b] + 1) / 2.0;
+            cumulative += histogram[b];
+        }
+        for (int i = 0; i < n; i++) {
+            r[i] = binRanks[(int) ((v[i] - min) / width)];
+        }
+    }
+
+    private static int lowerBound(double[] a, int n, double key) {
+        int low = 0;
+        int high = n;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (a[mid] < key) low = mid + 1;
+            else high = mid;
+        }
+        return low;
     }
 }
@@ -0,0 +1,201 @@
+/*
+ * Copyright (c)  2020, David J. Barry
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.calm.slidej.analysis;
+
+import net.calm.slidej.concurrent.TaskScheduler;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Summed-area tables of the power sums of one channel, from which the moments of any window made of whole blocks are
+ * read with 2^n lookups, whatever the size of the window. The channel is read once: each block's voxel count and sums
+ * of x, x^2, x^3 and x^4 are accumulated in parallel, then prefix-summed over the block grid. Values are offset by an
+ * estimate of the channel mean before they are raised to powers, so that the higher moments are not lost to rounding.
+ * The tables hold five doubles per block.
+ */
+class IntegralMoments {
+    static final String[] STATISTICS = {"Mean", "Kurtosis", "Population Variance", "Quadratic Mean", "Skewness",
+            "Standard Deviation", "Sum", "Sum Squared", "Variance"};
+    static final int ORDER = 4;
+    private static final int SHIFT_SAMPLE_STRIDE = 8;
+
+    private final long[] gridDims;
+    private final long[] tableDims;
+    private final long[] tableSteps;
+    private final double[][] tables;
+    private final double shift;
+
+    <T extends RealType<T>> IntegralMoments(RandomAccessibleInterval<T> channel, long[] blockSize) {
+        int n = channel.numDimensions();
+        gridDims = new long[n];
+        tableDims = new long[n];
+        tableSteps = new long[n];
+        for (int d = 0; d < n; d++) {
+            gridDims[d] = (channel.dimension(d) + blockSize[d] - 1) / blockSize[d];
+            tableDims[d] = gridDims[d] + 1;
+            tableSteps[d] = d > 0 ? tableSteps[d - 1] * tableDims[d - 1] : 1;
+        }
+        long size = Intervals.numElements(tableDims);
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(String.format("%d blocks are too many for one table; increase the stride.", size));
+        }
+        RandomAccessibleInterval<T> input = Views.zeroMin(channel);
+        shift = sampleMean(input);
+        tables = new double[ORDER + 1][(int) size];
+        accumulate(input, blockSize);
+        for (double[] table : tables) {
+            integrate(table);
+        }
+    }
+
+    private static <T extends RealType<T>> double sampleMean(RandomAccessibleInterval<T> input) {
+        double sum = 0.0;
+        long count = 0;
+        for (T t : Views.iterable(Views.subsample(input, SHIFT_SAMPLE_STRIDE))) {
+            sum += t.getRealDouble();
+            count++;
+        }
+        return count > 0 ? sum / count : 0.0;
+    }
+
+    private <T extends RealType<T>> void accumulate(RandomAccessibleInterval<T> input, long[] blockSize) {
+        int n = gridDims.length;
+        long nBlocks = Intervals.numElements(gridDims);
+        int nChunks = TaskScheduler.getChunkCount((int) Math.min(Integer.MAX_VALUE, nBlocks));
+        List<Runnable> tasks = new ArrayList<>();
+        for (int chunk = 0; chunk < nChunks; chunk++) {
+            long start = chunk * nBlocks / nChunks;
+            long end = (chunk + 1) * nBlocks / nChunks;
+            tasks.add(() -> {
+                long[] block = new long[n];
+                long[] min = new long[n];
+                long[] max = new long[n];
+                for (long index = start; index < end; index++) {
+                    IntervalIndexer.indexToPosition(index, gridDims, block);
+                    int tableIndex = 0;
+                    for (int d = 0; d < n; d++) {
+                        min[d] = block[d] * blockSize[d];
+                        max[d] = Math.min(input.dimension(d), min[d] + blockSize[d]) - 1;
+                        tableIndex += (block[d] + 1) * tableSteps[d];
+                    }
+                    double s1 = 0.0, s2 = 0.0, s3 = 0.0, s4 = 0.0;
+                    long count = 0;
+                    Cursor<T> c = Views.flatIterable(Views.interval(input, min, max)).cursor();
+                    while (c.hasNext()) {
+                        double x = c.next().getRealDouble() - shift;
+                        double x2 = x * x;
+                        s1 += x;
+                        s2 += x2;
+                        s3 += x2 * x;
+                        s4 += x2 * x2;
+                        count++;
+                    }
+                    tables[0][tableIndex] = count;
+                    tables[1][tableIndex] = s1;
+                    tables[2][tableIndex] = s2;
+                    tables[3][tableIndex] = s3;
+                    tables[4][tableIndex] = s4;
+                }
+            });
+        }
+        TaskScheduler.runAll(tasks);
+    }
+
+    /**
+     * Prefix sums along each axis in turn. The first entry along every axis is zero, so no window needs a special case
+     * at the edge of the image.
+     */
+    private void integrate(double[] table) {
+        for (int d = 0; d < tableDims.length; d++) {
+            int step = (int) tableSteps[d];
+            for (int i = 0; i < table.length; i++) {
+                if ((i / step) % tableDims[d] != 0) table[i] += table[i - step];
+            }
+        }
+    }
+
+    long[] getGridDimensions() {
+        return gridDims.clone();
+    }
+
+    /**
+     * Power sums, about the shift, of the voxels in blocks minBlock (inclusive) to maxBlock (exclusive); maxBlock is
+     * clipped to the grid.
+     */
+    void sums(long[] minBlock, long[] maxBlock, double[] sums) {
+        int n = gridDims.length;
+        Arrays.fill(sums, 0.0);
+        for (int corner = 0; corner < 1 << n; corner++) {
+            long index = 0;
+            int sign = (n - Integer.bitCount(corner)) % 2 == 0 ? 1 : -1;
+            for (int d = 0; d < n; d++) {
+                index += ((corner >> d & 1) == 1 ? Math.min(gridDims[d], maxBlock[d]) : minBlock[d]) * tableSteps[d];
+            }
+            for (int k = 0; k <= ORDER; k++) {
+                sums[k] += sign * tables[k][(int) index];
+            }
+        }
+    }
+
+    /**
+     * Converts power sums from {@link #sums} to the {@link #STATISTICS}, following the definitions used by
+     * {@link net.calm.slidej.stats.StreamingStatistics}.
+     */
+    void statistics(double[] sums, double[] stats) {
+        double n = Math.round(sums[0]);
+        if (n < 1) {
+            Arrays.fill(stats, Double.NaN);
+            return;
+        }
+        double mu = sums[1] / n;
+        double mu2 = mu * mu;
+        double m2 = Math.max(0.0, sums[2] - n * mu2);
+        double m3 = sums[3] - 3.0 * mu * sums[2] + 2.0 * n * mu2 * mu;
+        double m4 = sums[4] - 4.0 * mu * sums[3] + 6.0 * mu2 * sums[2] - 3.0 * n * mu2 * mu2;
+        double variance = n > 1 ? m2 / (n - 1) : 0.0;
+        double sumSq = sums[2] + 2.0 * shift * sums[1] + n * shift * shift;
+        int i = 0;
+        stats[i++] = mu + shift;
+        stats[i++] = n <= 3 ? Double.NaN : variance < 10E-20 ? 0.0
+                : (n * (n + 1) * m4) / ((n - 1) * (n - 2) * (n - 3) * variance * variance)
+                - (3.0 * (n - 1) * (n - 1)) / ((n - 2) * (n - 3));
+        stats[i++] = m2 / n;
+        stats[i++] = Math.sqrt(sumSq / n);
+        stats[i++] = n < 3 ? Double.NaN : variance < 10E-20 ? 0.0
+                : (n * m3) / ((n - 1.0) * (n - 2.0) * Math.sqrt(variance) * variance);
+        stats[i++] = Math.sqrt(variance);
+        stats[i++] = sums[1] + n * shift;
+        stats[i++] = sumSq;
+        stats[i] = variance;
+    }
+}
@@ -24,24 +24,50 @@
 
 package net.calm.slidej.analysis;
 
-import ij.measure.ResultsTable;
-import net.calm.slidej.util.Utils;
-import net.imagej.ImageJ;
-import net.imagej.ops.stats.StatsNamespace;
+import net.calm.slidej.concurrent.BlockProcessor;
+import net.calm.slidej.concurrent.TaskScheduler;
+import net.calm.slidej.io.ResultsPart;
+import net.calm.slidej.io.ResultsSchema;
+import net.calm.slidej.io.ResultsSink;
+import net.calm.slidej.properties.SlideJParams;
+import net.calm.slidej.stats.LabelStatistics;
+import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.img.Img;
-import net.imglib2.type.logic.BoolType;
+import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.type.numeric.RealType;
-import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 
+/**
+ * Measures every labelled object in all channels. The label image is walked once, in blocks on the shared pool, with
+ * all channels read alongside it. The blocks are cut into many more chunks than there are threads, so idle workers
+ * can steal work, and each worker thread updates its own accumulators, which are merged at the end. The cost depends
+ * on the number of voxels rather than the number of objects, and each accumulator only holds the labels its thread
+ * has seen. Because the split of voxels between threads depends on scheduling, floating-point results can differ
+ * between runs in the last few digits.
+ * <p>
+ * Medians come from a histogram per object and channel - see {@link LabelStatistics}. They are exact for integer
+ * channels whose range within an object fits in the bins, and otherwise accurate to half a bin width. The number of
+ * bins is set with {@link #setMedianBins}.
+ */
 public class ObjectAnalyser<T extends RealType<T>> {
+    public static final long DEFAULT_BLOCK_SIZE = 256;
+    private static final String[] STATISTICS = {"Mean", "Median", "Geometric Mean", "Kurtosis", "Max", "Min",
+            "Population Variance", "Quadratic Mean", "Skewness", "Standard Deviation", "Sum", "Sum Squared",
+            "Variance", "Product", "Second Moment"};
     private final String[] dimLabels;
     private final double[] calibrations;
-    private ResultsTable[] rt;
     private final int[] dimOrder;
     private final ArrayList<String> channelNames;
+    private int nIntegerChannels;
+    private int nMedianBins = Integer.parseInt(SlideJParams.DEFAULT_OBJECT_MEDIAN_BINS);
+    private long[] blockSize;
 
     public ObjectAnalyser(String[] dimLabels, double[] calibrations, int[] dimOrder, ArrayList<String> channelNames) {
         this.dimLabels = dimLabels;
@@ -50,42 +76,171 @@ public class ObjectAnalyser<T extends RealType<T>> {
         this.channelNames = channelNames;
     }
 
-    public void analyse(RandomAccessibleInterval<T> img, ArrayList<RandomAccessibleInterval<BoolType>> regions) {
+    public <L extends IntegerType<L>> void analyse(RandomAccessibleInterval<T> img, RandomAccessibleInterval<L> labels,
+                                                   ResultsSink sink) {
+        int cAxis = dimOrder[SlideJParams.C_AXIS];
+        int nChannels = (int) img.dimension(cAxis);
+
+        List<RandomAccessibleInterval<T>> channels = new ArrayList<>();
+        for (int c = 0; c < nChannels; c++) {
+            channels.add(Views.hyperSlice(img, cAxis, c));
+        }
+        List<Interval> blocks = BlockProcessor.getBlocks(labels, getBlockSize(labels.numDimensions()));
+        Map<Thread, Accumulator> accumulators = new ConcurrentHashMap<>();
+        Supplier<Accumulator> threadAccumulator = () -> accumulators.computeIfAbsent(Thread.currentThread(),
+                t -> new Accumulator(labels.numDimensions(), nChannels, nMedianBins, nIntegerChannels));
+        List<Runnable> tasks = new ArrayList<>();
+        for (List<Interval> chunk : TaskScheduler.partition(blocks, TaskScheduler.getChunkCount(blocks.size()))) {
+            tasks.add(new ObjectAnalyserThread<>(labels, channels, chunk, threadAccumulator));
+        }
+        TaskScheduler.runAll(tasks);
 
-        long[] dims = new long[img.numDimensions()];
+        Accumulator totals = new Accumulator(labels.numDimensions(), nChannels, nMedianBins, nIntegerChannels);
+        for (Accumulator accumulator : accumulators.values()) {
+            totals.merge(accumulator);
+        }
+        LabelStatistics[] stats = totals.stats;
 
-        img.dimensions(dims);
+        List<String> columns = new ArrayList<>();
+        columns.add("Object ID");
+        for (int d = 0; d < img.numDimensions(); d++) {
+            if (!(dimOrder[d] == SlideJParams.C_AXIS)) {
+                columns.add(dimLabels[d]);
+            }
+        }
+        for (int c = 0; c < nChannels; c++) {
+            for (String statistic : STATISTICS) {
+                columns.add(channelNames.get(c) + "_" + statistic);
+            }
+        }
+        sink.setSchema(new ResultsSchema(columns, false));
 
-        int nbCPUs = Runtime.getRuntime().availableProcessors();
+        try (ResultsPart part = sink.openPart(0)) {
+            for (int label = 1; label <= totals.maxLabel; label++) {
+                long count = totals.getCount(label);
+                if (count < 1) continue;
+                int column = 0;
+                part.set(column++, label);
+                int index = 0;
+                for (int d = 0; d < img.numDimensions(); d++) {
+                    if (!(dimOrder[d] == SlideJParams.C_AXIS)) {
+                        part.set(column++, totals.getPositionSum(index++, label) / count * calibrations[d]);
+                    }
+                }
+                for (int c = 0; c < nChannels; c++) {
+                    LabelStatistics s = stats[c];
+                    part.set(column++, s.getMean(label));
+                    part.set(column++, s.getMedian(label));
+                    part.set(column++, s.getGeometricMean(label));
+                    part.set(column++, s.getKurtosis(label));
+                    part.set(column++, s.getMax(label));
+                    part.set(column++, s.getMin(label));
+                    part.set(column++, s.getPopulationVariance(label));
+                    part.set(column++, s.getQuadraticMean(label));
+                    part.set(column++, s.getSkewness(label));
+                    part.set(column++, s.getStandardDeviation(label));
+                    part.set(column++, s.getSum(label));
+                    part.set(column++, s.getSumsq(label));
+                    part.set(column++, s.getVariance(label));
+                    part.set(column++, s.getProduct(label));
+                    part.set(column++, s.getSecondMoment(label));
+                }
+                part.endRow();
+            }
+        }
+    }
 
-        int nThreads = Math.min(nbCPUs, regions.size());
+    public void setIntegerChannels(int nIntegerChannels) {
+        this.nIntegerChannels = nIntegerChannels;
+    }
 
-        rt = new ResultsTable[nThreads];
+    public void setMedianBins(int nMedianBins) {
+        this.nMedianBins = nMedianBins;
+    }
 
-        Thread[] ats = new Thread[nThreads];
+    /**
+     * Sets the size of the blocks the label image is walked in; the default is 256 along every axis.
+     */
+    public void setBlockSize(long[] blockSize) {
+        this.blockSize = blockSize;
+    }
 
-        int nCellsPerThread = (int) Math.ceil((float) regions.size() / nThreads);
-        StatsNamespace stats = new ImageJ().op().stats();
-        int startIndex = 0;
-        for (int thread = 0; thread < nThreads && startIndex < regions.size(); thread++) {
-            rt[thread] = new ResultsTable();
-            int endIndex = Math.min(startIndex + nCellsPerThread, regions.size() - 1);
-            ats[thread] = new ObjectAnalyserThread<T>(regions.subList(startIndex, endIndex), img,
-                    rt[thread], dimLabels, dimOrder, calibrations, stats, channelNames);
-            ats[thread].start();
-            startIndex += nCellsPerThread;
+    private long[] getBlockSize(int nDims) {
+        if (blockSize != null) return blockSize;
+        long[] size = new long[nDims];
+        Arrays.fill(size, DEFAULT_BLOCK_SIZE);
+        return size;
+    }
+
+    /**
+     * Voxel counts, position sums and per-channel statistics for every label seen by one worker thread. Like
+     * {@link LabelStatistics}, it only holds state for labels it has seen.
+     */
+    static class Accumulator {
+        private static final int INITIAL_CAPACITY = 64;
+        private final LabelStatistics[] stats;
+        private int[] slots = new int[0];
+        private int[] slotLabels = new int[INITIAL_CAPACITY];
+        private long[] counts = new long[INITIAL_CAPACITY];
+        private double[][] positionSums;
+        private int nSlots;
+        private int maxLabel;
+
+        Accumulator(int nDims, int nChannels, int nMedianBins, int nIntegerChannels) {
+            this.positionSums = new double[nDims][INITIAL_CAPACITY];
+            this.stats = new LabelStatistics[nChannels];
+            for (int c = 0; c < nChannels; c++) {
+                stats[c] = new LabelStatistics(nMedianBins, c < nIntegerChannels);
+            }
         }
-        try {
-            for (int thread = 0; thread < nThreads; thread++) {
-                if (ats[thread] != null) ats[thread].join();
+
+        void add(int label, long[] position, double[] values) {
+            int slot = addSlot(label);
+            counts[slot]++;
+            for (int d = 0; d < positionSums.length; d++) {
+                positionSums[d][slot] += position[d];
+            }
+            for (int c = 0; c < stats.length; c++) {
+                stats[c].addValue(label, values[c]);
             }
-        } catch (InterruptedException ie) {
-            Utils.timeStampOutput(String.format("Thread %d was interrupted:\n %s", Thread.currentThread().getId(), ie));
         }
 
-    }
+        void merge(Accumulator other) {
+            for (int otherSlot = 0; otherSlot < other.nSlots; otherSlot++) {
+                int slot = addSlot(other.slotLabels[otherSlot]);
+                counts[slot] += other.counts[otherSlot];
+                for (int d = 0; d < positionSums.length; d++) {
+                    positionSums[d][slot] += other.positionSums[d][otherSlot];
+                }
+            }
+            for (int c = 0; c < stats.length; c++) {
+                stats[c].merge(other.stats[c]);
+            }
+        }
+
+        long getCount(int label) {
+            return label < slots.length && slots[label] > 0 ? counts[slots[label] - 1] : 0;
+        }
 
-    public ResultsTable[] getRt() {
-        return rt;
+        double getPositionSum(int d, int label) {
+            return positionSums[d][slots[label] - 1];
+        }
+
+        private int addSlot(int label) {
+            if (label >= slots.length) slots = Arrays.copyOf(slots, Math.max(label + 1, 2 * slots.length));
+            if (slots[label] > 0) return slots[label] - 1;
+            if (nSlots >= counts.length) {
+                int capacity = 2 * counts.length;
+                slotLabels = Arrays.copyOf(slotLabels, capacity);
+                counts = Arrays.copyOf(counts, capacity);
+                for (int d = 0; d < positionSums.length; d++) {
+                    positionSums[d] = Arrays.copyOf(positionSums[d], capacity);
+                }
+            }
+            if (label > maxLabel) maxLabel = label;
+            slotLabels[nSlots] = label;
+            slots[label] = ++nSlots;
+            return nSlots - 1;
+        }
     }
 }
@@ -24,95 +24,59 @@
 
 package net.calm.slidej.analysis;
 
-import ij.measure.ResultsTable;
-import net.calm.slidej.properties.SlideJParams;
-import net.calm.slidej.utils.Utils;
-import net.imagej.ops.stats.StatsNamespace;
-import net.imglib2.RandomAccess;
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.RealLocalizable;
-import net.imglib2.roi.labeling.LabelRegion;
-import net.imglib2.roi.labeling.LabelRegionCursor;
-import net.imglib2.type.logic.BoolType;
+import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.type.numeric.RealType;
-import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
-import org.apache.commons.math3.stat.descriptive.moment.SecondMoment;
-import org.apache.commons.math3.stat.descriptive.summary.Product;
+import net.imglib2.view.Views;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Supplier;
 
-class ObjectAnalyserThread<T extends RealType<T>> extends Thread {
+/**
+ * Walks a run of blocks of the label image, reading every channel alongside it, and adds each labelled voxel to the
+ * accumulator of the thread it runs on.
+ */
+class ObjectAnalyserThread<T extends RealType<T>, L extends IntegerType<L>> implements Runnable {
 
-    private final ResultsTable rt;
-    private final List<RandomAccessibleInterval<BoolType>> cells;
-    private final RandomAccessibleInterval<T> img;
-    private final String[] dimLabels;
-    private final int[] dimOrder;
-    private final double[] calibrations;
-    private final StatsNamespace statSpace;
-    private final ArrayList<String> channelNames;
+    private final RandomAccessibleInterval<L> labels;
+    private final List<RandomAccessibleInterval<T>> channels;
+    private final List<Interval> blocks;
+    private final Supplier<ObjectAnalyser.Accumulator> accumulators;
 
-    public ObjectAnalyserThread(final List<RandomAccessibleInterval<BoolType>> cells, final RandomAccessibleInterval<T> img,
-                                final ResultsTable rt, final String[] dimLabels, final int[] dimOrder,
-                                final double[] calibrations, StatsNamespace statSpace, ArrayList<String> channelNames) {
-        this.rt = rt;
-        this.cells = cells;
-        this.img = img;
-        this.dimLabels = dimLabels;
-        this.dimOrder = dimOrder;
-        this.calibrations = calibrations;
-        this.statSpace = statSpace;
-        this.channelNames = channelNames;
+    public ObjectAnalyserThread(final RandomAccessibleInterval<L> labels,
+                                final List<RandomAccessibleInterval<T>> channels, final List<Interval> blocks,
+                                final Supplier<ObjectAnalyser.Accumulator> accumulators) {
+        this.labels = labels;
+        this.channels = channels;
+        this.blocks = blocks;
+        this.accumulators = accumulators;
     }
 
+    @Override
     public void run() {
-        DescriptiveStatistics stats = new DescriptiveStatistics();
-        final long[] dims = img.dimensionsAsLongArray();
-        int resultsRow = 0;
-        long[] regionPos = new long[dims.length - 1];
-        for (RandomAccessibleInterval<BoolType> p : cells) {
-            if (p instanceof LabelRegion) {
-                RealLocalizable com = ((LabelRegion<Integer>) p).getCenterOfMass();
-                Integer label = ((LabelRegion<Integer>) p).getLabel();
-                rt.setValue("Object ID", resultsRow, label);
-                int index = 0;
-                for (int d = 0; d < dims.length; d++) {
-                    if (!(dimOrder[d] == SlideJParams.C_AXIS)) {
-                        rt.setValue(dimLabels[d], resultsRow, (com.getDoublePosition(index++) * calibrations[d]));
-                    }
+        ObjectAnalyser.Accumulator accumulator = accumulators.get();
+        long[] position = new long[labels.numDimensions()];
+        double[] values = new double[channels.size()];
+        for (Interval block : blocks) {
+            Cursor<L> labelCursor = Views.flatIterable(Views.interval(labels, block)).localizingCursor();
+            @SuppressWarnings("unchecked")
+            Cursor<T>[] channelCursors = new Cursor[channels.size()];
+            for (int c = 0; c < channelCursors.length; c++) {
+                channelCursors[c] = Views.flatIterable(Views.interval(channels.get(c), block)).cursor();
+            }
+            while (labelCursor.hasNext()) {
+                int label = labelCursor.next().getInteger();
+                for (Cursor<T> channelCursor : channelCursors) {
+                    channelCursor.fwd();
                 }
-                for (int c = 0; c < dims[dimOrder[SlideJParams.C_AXIS]]; c++) {
-                    LabelRegionCursor regionCursor = ((LabelRegion<?>) p).cursor();
-                    RandomAccess<T> imageRA = img.randomAccess();
-                    stats.clear();
-                    while (regionCursor.hasNext()) {
-                        regionCursor.localize(regionPos);
-                        imageRA.setPosition(new long[]{regionPos[0], regionPos[1], c, regionPos[2]});
-                        try {
-                            stats.addValue(imageRA.get().getRealDouble());
-                        } catch (ArrayIndexOutOfBoundsException e) {
-                            Utils.timeStampOutput(String.format("Error accessing location (%d, %d, %d, %d)", regionPos[0], regionPos[1], c, regionPos[2]));
-                        }
-                        regionCursor.fwd();
-                    }
-                    rt.setValue(channelNames.get(c) + "_Mean", resultsRow, stats.getMean());
-                    rt.setValue(channelNames.get(c) + "_Median", resultsRow, stats.getPercentile(50.0));
-                    rt.setValue(channelNames.get(c) + "_Geometric Mean", resultsRow, stats.getGeometricMean());
-                    rt.setValue(channelNames.get(c) + "_Kurtosis", resultsRow, stats.getKurtosis());
-                    rt.setValue(channelNames.get(c) + "_Max", resultsRow, stats.getMax());
-                    rt.setValue(channelNames.get(c) + "_Min", resultsRow, stats.getMin());
-                    rt.setValue(channelNames.get(c) + "_Population Variance", resultsRow, stats.getPopulationVariance());
-                    rt.setValue(channelNames.get(c) + "_Quadratic Mean", resultsRow, stats.getQuadraticMean());
-                    rt.setValue(channelNames.get(c) + "_Skewness", resultsRow, stats.getSkewness());
-                    rt.setValue(channelNames.get(c) + "_Standard Deviation", resultsRow, stats.getStandardDeviation());
-                    rt.setValue(channelNames.get(c) + "_Sum", resultsRow, stats.getSum());
-                    rt.setValue(channelNames.get(c) + "_Sum Squared", resultsRow, stats.getSumsq());
-                    rt.setValue(channelNames.get(c) + "_Variance", resultsRow, stats.getVariance());
-                    rt.setValue(channelNames.get(c) + "_Product", resultsRow, (new Product()).evaluate(stats.getValues()));
-                    rt.setValue(channelNames.get(c) + "_Second Moment", resultsRow, (new SecondMoment()).evaluate(stats.getValues()));
+                if (label < 1) continue;
+                labelCursor.localize(position);
+                for (int c = 0; c < values.length; c++) {
+                    values[c] = channelCursors[c].get().getRealDouble();
                 }
-                resultsRow++;
+                accumulator.add(label, position, values);
             }
         }
     }
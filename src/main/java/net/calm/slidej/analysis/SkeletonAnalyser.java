@@ -24,59 +24,46 @@
 
 package net.calm.slidej.analysis;
 
-import ij.measure.ResultsTable;
-import net.calm.slidej.util.Utils;
+import net.calm.slidej.concurrent.TaskScheduler;
+import net.calm.slidej.io.ResultsSchema;
+import net.calm.slidej.io.ResultsSink;
+import net.calm.slidej.segmentation.TissueMask;
 import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.algorithm.util.Grids;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.util.Pair;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class SkeletonAnalyser<T extends RealType<T>> {
     private final int[] neighbourhoodSize;
-    private ResultsTable[] rt;
-    private final String regionsName;
-    private final String tmpDir;
+    private TissueMask tissueMask;
 
-    public SkeletonAnalyser(int[] neighbourhoodSize, final String regionsName, final String tmpDir) {
+    public SkeletonAnalyser(int[] neighbourhoodSize) {
         this.neighbourhoodSize = neighbourhoodSize;
-        this.regionsName = regionsName;
-        this.tmpDir = tmpDir;
     }
 
-    public void analyse(RandomAccessibleInterval<T> img) {
+    public void analyse(RandomAccessibleInterval<T> img, ResultsSink sink) {
         long[] dims = new long[img.numDimensions()];
         img.dimensions(dims);
         List<Pair<Interval, long[]>> cells = Grids.collectAllContainedIntervalsWithGridPositions(dims, neighbourhoodSize);
-        int nbCPUs = Runtime.getRuntime().availableProcessors();
-        int nThreads = Math.min(nbCPUs, cells.size());
-        float nCellsPerThread = ((float) cells.size()) / nThreads;
-        rt = new ResultsTable[nThreads];
-        Thread[] ats = new Thread[nThreads];
-        int startIndex;
-        int endIndex = 0;
-        for (int thread = 0; thread < nThreads; thread++) {
-            rt[thread] = new ResultsTable();
-            startIndex = endIndex;
-            if (startIndex >= cells.size()) break;
-            endIndex = Math.min(Math.round((thread + 1) * nCellsPerThread), cells.size());
-            ats[thread] = new SkeletonAnalyserThread<>(cells.subList(startIndex, endIndex),
-                    img, rt[thread], regionsName, tmpDir);
-            ats[thread].start();
+        if (tissueMask != null) cells.removeIf(p -> !tissueMask.intersects(p.getA()));
+        List<List<Pair<Interval, long[]>>> chunks = TaskScheduler.partition(cells, TaskScheduler.getChunkCount(cells.size()));
+        sink.setSchema(new ResultsSchema(Arrays.asList("X", "Y", "Z"), true));
+        List<Runnable> tasks = new ArrayList<>();
+        for (int chunk = 0; chunk < chunks.size(); chunk++) {
+            tasks.add(new SkeletonAnalyserThread<>(chunks.get(chunk), img, sink, chunk));
         }
-        try {
-            for (int thread = 0; thread < nThreads; thread++) {
-                if (ats[thread] != null) ats[thread].join();
-            }
-        } catch (InterruptedException ie) {
-            Utils.timeStampOutput(String.format("Thread %d was interrupted:\n %s", Thread.currentThread().getId(), ie));
-        }
-
+        TaskScheduler.runAll(tasks);
     }
 
-    public ResultsTable[] getRt() {
-        return rt;
+    /**
+     * Neighbourhoods that lie entirely outside tissue are skipped.
+     */
+    public void setTissueMask(TissueMask tissueMask) {
+        this.tissueMask = tissueMask;
     }
 }
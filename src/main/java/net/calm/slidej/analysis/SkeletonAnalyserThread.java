@@ -24,88 +24,112 @@
 
 package net.calm.slidej.analysis;
 
-import ij.IJ;
-import ij.ImagePlus;
-import ij.measure.ResultsTable;
-import net.calm.slidej.io.ImageSaver;
-import net.calm.slidej.util.Utils;
+import net.calm.slidej.io.ResultsPart;
+import net.calm.slidej.io.ResultsSink;
 import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.img.ImgView;
-import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.Pair;
 import net.imglib2.view.Views;
-import org.apache.commons.io.FileUtils;
-import sc.fiji.analyzeSkeleton.AnalyzeSkeleton_;
-import sc.fiji.analyzeSkeleton.Point;
-import sc.fiji.analyzeSkeleton.SkeletonResult;
 
-import java.io.File;
-import java.io.IOException;
-import java.util.ArrayList;
 import java.util.List;
 
-class SkeletonAnalyserThread<T extends RealType<T>> extends Thread {
+/**
+ * Classifies skeleton voxels by the number of skeleton voxels among their 26 (or 8, in 2D) neighbours - fewer than two
+ * makes an end point and more than two a junction. Each cell is copied into a buffer with a one-voxel halo taken from
+ * the surrounding image, so voxels on cell boundaries are classified as they would be in the whole skeleton.
+ */
+class SkeletonAnalyserThread<T extends RealType<T>> implements Runnable {
 
-    private final ResultsTable rt;
+    private final ResultsSink sink;
+    private final int partIndex;
     private final List<Pair<Interval, long[]>> cells;
     private final RandomAccessibleInterval<T> img;
-    private final String regionsName;
-    private final String tmpDir;
 
     public SkeletonAnalyserThread(final List<Pair<Interval, long[]>> cells, final RandomAccessibleInterval<T> img,
-                                  final ResultsTable rt, final String regionsName, String tmpDir) {
-        this.rt = rt;
+                                  final ResultsSink sink, final int partIndex) {
+        this.sink = sink;
+        this.partIndex = partIndex;
         this.cells = cells;
         this.img = img;
-        this.regionsName = regionsName;
-        this.tmpDir = tmpDir;
     }
 
+    @Override
     public void run() {
-        int row = 0;
-        RandomAccessibleInterval<T> view;
-        int index = 0;
-        for (Pair<Interval, long[]> p : cells) {
-            long[] offsets = p.getA().minAsLongArray();
-            view = Views.interval(img, p.getA());
-//            ImageJFunctions.show(view);
-//            ImagePlus skelImp = ImageJFunctions.wrapBit(view, String.format("Binary_%s", regionsName));
-            String tmpFileName = String.format("%s%stemp_skel_imp_file_%d_%d.ome.tiff", tmpDir, File.separator,
-                    Thread.currentThread().getId(), index);
-            IJ.save(ImageJFunctions.wrapBit(view, String.format("Binary_%s", regionsName)), tmpFileName);
-            //ImageSaver.saveImage(tmpFileName, ImgView.wrap(view));
-            ImagePlus skelImp = IJ.openImage(tmpFileName);
-            AnalyzeSkeleton_ analyser = new AnalyzeSkeleton_();
-            analyser.setup("", skelImp);
-            SkeletonResult skelResult = analyser.run(AnalyzeSkeleton_.NONE, false, false, null,
-                    true, true);
-            ArrayList<Point> junctions = skelResult.getListOfJunctionVoxels();
-            for (Point pt : junctions) {
-                rt.setValue("X", row, pt.x + offsets[0]);
-                rt.setValue("Y", row, pt.y + offsets[1]);
-                rt.setValue("Z", row, pt.z + offsets[2]);
-                rt.setLabel("Junction", row);
-                row++;
-            }
+        int nDims = img.numDimensions();
+        long[] bufferDims = new long[nDims];
+        int[] strides = new int[nDims];
+        int[] corePos = new int[nDims];
+        long[] position = new long[nDims];
+        byte[] buffer = new byte[0];
+        try (ResultsPart part = sink.openPart(partIndex)) {
+            for (Pair<Interval, long[]> p : cells) {
+                Interval core = p.getA();
+                Interval expanded = Intervals.expand(core, 1);
+                expanded.dimensions(bufferDims);
+                int size = 1;
+                for (int d = 0; d < nDims; d++) {
+                    strides[d] = size;
+                    size *= (int) bufferDims[d];
+                }
+                if (buffer.length < size) buffer = new byte[size];
+                int index = 0;
+                for (T v : Views.flatIterable(Views.interval(Views.extendZero(img), expanded))) {
+                    buffer[index++] = (byte) (v.getRealDouble() != 0.0 ? 1 : 0);
+                }
+                int[] neighbours = getNeighbourOffsets(strides);
 
-            ArrayList<Point> ends = skelResult.getListOfEndPoints();
-            for (Point pt : ends) {
-                rt.setValue("X", row, pt.x + offsets[0]);
-                rt.setValue("Y", row, pt.y + offsets[1]);
-                rt.setValue("Z", row, pt.z + offsets[2]);
-                rt.setLabel("End", row);
-                row++;
+                int startIndex = 0;
+                for (int d = 0; d < nDims; d++) {
+                    startIndex += strides[d];
+                    corePos[d] = 0;
+                }
+                long nVoxels = Intervals.numElements(core);
+                index = startIndex;
+                for (long i = 0; i < nVoxels; i++) {
+                    if (buffer[index] != 0) {
+                        int count = 0;
+                        for (int offset : neighbours) {
+                            count += buffer[index + offset];
+                        }
+                        if (count != 2) {
+                            for (int d = 0; d < nDims; d++) {
+                                position[d] = core.min(d) + corePos[d];
+                            }
+                            part.set(0, position[0]);
+                            part.set(1, nDims > 1 ? position[1] : 0);
+                            part.set(2, nDims > 2 ? position[2] : 0);
+                            part.setLabel(count > 2 ? "Junction" : "End");
+                            part.endRow();
+                        }
+                    }
+                    for (int d = 0; d < nDims; d++) {
+                        index += strides[d];
+                        if (++corePos[d] < core.dimension(d)) break;
+                        index -= corePos[d] * strides[d];
+                        corePos[d] = 0;
+                    }
+                }
             }
-            Utils.timeStampOutput(String.format("Thread %d: %.1f%% done.\n", Thread.currentThread().getId(),
-                    (100.0 * ++index / cells.size())));
-            skelImp.close();
-            try {
-                FileUtils.delete(new File(tmpFileName));
-            } catch (IOException e) {
-                Utils.timeStampOutput("Could not delete temporary file.");
+        }
+    }
+
+    private static int[] getNeighbourOffsets(int[] strides) {
+        int nDims = strides.length;
+        int nNeighbours = 1;
+        for (int d = 0; d < nDims; d++) nNeighbours *= 3;
+        int[] offsets = new int[nNeighbours - 1];
+        int i = 0;
+        for (int n = 0; n < nNeighbours; n++) {
+            int offset = 0;
+            int code = n;
+            for (int d = 0; d < nDims; d++) {
+                offset += (code % 3 - 1) * strides[d];
+                code /= 3;
             }
+            if (offset != 0) offsets[i++] = offset;
         }
+        return offsets;
     }
 }
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c)  2020, David J. Barry
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.calm.slidej.concurrent;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.algorithm.util.Grids;
+import net.imglib2.parallel.Parallelization;
+import net.imglib2.util.Intervals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Walks a volume block by block on the shared {@link TaskScheduler} pool. Each block runs single-threaded, so at
+ * most one block-sized working buffer per worker is resident at any time.
+ */
+public class BlockProcessor {
+
+    public interface BlockOperation {
+        void process(Interval block);
+    }
+
+    public static List<Interval> getBlocks(Interval image, long[] blockSize) {
+        long[] clippedSize = new long[image.numDimensions()];
+        for (int d = 0; d < clippedSize.length; d++) {
+            clippedSize[d] = Math.max(1, Math.min(blockSize[d], image.dimension(d)));
+        }
+        List<Interval> blocks = new ArrayList<>();
+        for (Interval block : Grids.collectAllContainedIntervals(Intervals.dimensionsAsLongArray(image),
+                toIntArray(clippedSize))) {
+            blocks.add(Intervals.translate(new FinalInterval(block), image.minAsLongArray()));
+        }
+        return blocks;
+    }
+
+    public static Interval expand(Interval block, long[] halo, Interval bounds) {
+        return Intervals.intersect(Intervals.expand(block, halo), bounds);
+    }
+
+    public static void process(Interval image, long[] blockSize, BlockOperation operation) {
+        List<Runnable> tasks = new ArrayList<>();
+        for (Interval block : getBlocks(image, blockSize)) {
+            tasks.add(() -> Parallelization.runSingleThreaded(() -> operation.process(block)));
+        }
+        TaskScheduler.runAll(tasks);
+    }
+
+    private static int[] toIntArray(long[] values) {
+        int[] output = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            output[i] = (int) values[i];
+        }
+        return output;
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c)  2020, David J. Barry
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.calm.slidej.concurrent;
+
+import net.calm.slidej.util.Utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Shared work-stealing executor for the analysis stages. Work lists are cut into many more chunks than there are
+ * threads so that idle workers can steal from busy ones; each chunk keeps its position in the list, so results
+ * collected per chunk can be merged in a deterministic order. A task that fails does not stop the others, but
+ * {@link #runAll} throws a {@link TaskFailedException} once they have all finished.
+ */
+public class TaskScheduler {
+    public static final int CHUNKS_PER_THREAD = 16;
+    private static ForkJoinPool pool;
+
+    public static synchronized ForkJoinPool getPool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        }
+        return pool;
+    }
+
+    public static synchronized void setParallelism(int parallelism) {
+        if (pool != null && pool.getParallelism() == parallelism) return;
+        if (pool != null) pool.shutdown();
+        pool = new ForkJoinPool(Math.max(1, parallelism));
+    }
+
+    public static int getParallelism() {
+        return getPool().getParallelism();
+    }
+
+    public static int getChunkCount(int nItems) {
+        return Math.max(1, Math.min(nItems, getParallelism() * CHUNKS_PER_THREAD));
+    }
+
+    public static <E> List<List<E>> partition(List<E> items, int nChunks) {
+        List<List<E>> chunks = new ArrayList<>();
+        int endIndex = 0;
+        for (int chunk = 0; chunk < nChunks; chunk++) {
+            int startIndex = endIndex;
+            endIndex = (int) (((long) (chunk + 1) * items.size()) / nChunks);
+            if (endIndex > startIndex) chunks.add(items.subList(startIndex, endIndex));
+        }
+        return chunks;
+    }
+
+    /**
+     * Runs every task on the shared pool and waits for all of them.
+     *
+     * @throws TaskFailedException if any task threw; the first failure is the cause and the rest are suppressed
+     */
+    public static void runAll(List<? extends Runnable> tasks) {
+        if (tasks.isEmpty()) return;
+        Queue<RuntimeException> failures = new ConcurrentLinkedQueue<>();
+        getPool().invoke(new TaskRange(tasks, 0, tasks.size(), failures));
+        if (failures.isEmpty()) return;
+        TaskFailedException exception = new TaskFailedException(String.format("%d of %d tasks failed.",
+                failures.size(), tasks.size()), failures.poll());
+        for (RuntimeException e : failures) {
+            exception.addSuppressed(e);
+        }
+        throw exception;
+    }
+
+    public static class TaskFailedException extends RuntimeException {
+        TaskFailedException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    private static class TaskRange extends RecursiveAction {
+        private final List<? extends Runnable> tasks;
+        private final int start;
+        private final int end;
+        private final Queue<RuntimeException> failures;
+
+        TaskRange(List<? extends Runnable> tasks, int start, int end, Queue<RuntimeException> failures) {
+            this.tasks = tasks;
+            this.start = start;
+            this.end = end;
+            this.failures = failures;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > 1) {
+                int mid = (start + end) >>> 1;
+                invokeAll(new TaskRange(tasks, start, mid, failures), new TaskRange(tasks, mid, end, failures));
+                return;
+            }
+            try {
+                tasks.get(start).run();
+            } catch (RuntimeException e) {
+                Utils.timeStampOutput(String.format("Task %d failed:\n %s", start, e));
+                failures.add(e);
+            }
+        }
+    }
+}
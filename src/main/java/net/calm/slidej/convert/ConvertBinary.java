@@ -24,9 +24,8 @@
 
 package net.calm.slidej.convert;
 
-import net.calm.slidej.properties.SlideJParams;
+import net.calm.slidej.io.ImgStorage;
 import net.imglib2.img.Img;
-import net.imglib2.img.cell.CellImgFactory;
 import net.imglib2.loops.LoopBuilder;
 import net.imglib2.type.BooleanType;
 import net.imglib2.type.logic.BitType;
@@ -37,7 +36,7 @@ import java.nio.file.Path;
 public class ConvertBinary {
     public static <B extends BooleanType<B>> Img<UnsignedByteType> convertBinary(Img<B> input, Path tmpDir) {
 
-        Img<UnsignedByteType> converted = (new CellImgFactory<>(new UnsignedByteType(), SlideJParams.CELL_IMG_DIM)).create(input);
+        Img<UnsignedByteType> converted = ImgStorage.create(new UnsignedByteType(), input);
 
         BitType a = new BitType();
         BitType b = new BitType();
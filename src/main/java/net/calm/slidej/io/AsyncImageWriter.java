@@ -0,0 +1,242 @@
+/*
+ * Copyright (c)  2020, David J. Barry
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.calm.slidej.io;
+
+import net.calm.slidej.concurrent.TaskScheduler;
+import net.calm.slidej.util.Utils;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Util;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Write-behind queue for output images. Images are handed to dedicated I/O threads so that computation can continue
+ * while they are compressed and written; submission blocks once the estimated size of the images waiting to be
+ * written exceeds the byte budget. Images must not be modified after they have been submitted. Chunked formats and
+ * Deflate or uncompressed TIFFs compress their chunks or tiles in parallel on the shared task pool.
+ */
+public class AsyncImageWriter {
+    private static final long BYTES_PER_PERMIT = 1 << 20;
+
+    private final ExecutorService executor;
+    private final Semaphore budget;
+    private final int maxPermits;
+    private final TiffCodec defaultCodec;
+    private final ImageFormat format;
+    private final int chunkSize;
+    private final List<Future<?>> pending = new ArrayList<>();
+    private long blockedNanos;
+    private long bytesSubmitted;
+    private long bytesWritten;
+    private long writeNanos;
+    private int failureCount;
+
+    public AsyncImageWriter(int nThreads, long maxBytesInFlight, String compression) {
+        this(nThreads, maxBytesInFlight, compression, ImageFormat.OME_TIFF, 0);
+    }
+
+    /**
+     * @param compression codec for TIFF outputs submitted without one, as accepted by {@link TiffCodec#parse}
+     * @param format    paths passed to {@link #submit} are mapped onto this format with {@link ImageFormat#resolve}
+     * @param chunkSize edge length of the chunks written by chunked formats
+     */
+    public AsyncImageWriter(int nThreads, long maxBytesInFlight, String compression, ImageFormat format, int chunkSize) {
+        this.executor = Executors.newFixedThreadPool(Math.max(1, nThreads), r -> {
+            Thread t = new Thread(r, "slidej-writer");
+            t.setDaemon(true);
+            return t;
+        });
+        this.maxPermits = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxBytesInFlight / BYTES_PER_PERMIT));
+        this.budget = new Semaphore(maxPermits);
+        this.defaultCodec = TiffCodec.parse(compression);
+        this.format = format;
+        this.chunkSize = chunkSize;
+    }
+
+    public void submit(String path, Img<? extends RealType<?>> img) {
+        submit(path, img, defaultCodec, null);
+    }
+
+    public void submit(String path, Img<? extends RealType<?>> img, double[] voxelSize) {
+        submit(path, img, defaultCodec, voxelSize);
+    }
+
+    public void submit(String path, Img<? extends RealType<?>> img, TiffCodec codec) {
+        submit(path, img, codec, null);
+    }
+
+    /**
+     * Queues the image for writing, compressing TIFF outputs with the given codec.
+     *
+     * @param voxelSize physical voxel size along each axis, recorded by chunked formats; may be null
+     */
+    public void submit(String path, Img<? extends RealType<?>> img, TiffCodec codec, double[] voxelSize) {
+        String target = format.resolve(path);
+        long bytes = img.size() * Math.max(1, Util.getTypeFromInterval(img).getBitsPerPixel()) / 8;
+        int permits = (int) Math.max(1, Math.min(maxPermits, bytes / BYTES_PER_PERMIT));
+        long start = System.nanoTime();
+        budget.acquireUninterruptibly(permits);
+        addBlockedTime(System.nanoTime() - start);
+        addBytes(bytes);
+        Future<?> future = executor.submit(() -> {
+            try {
+                long writeStart = System.nanoTime();
+                if (format.isChunked()) {
+                    ChunkedImageStore.write(target, (RandomAccessibleInterval) img, format, chunkSize, voxelSize,
+                            TaskScheduler.getPool());
+                } else {
+                    ImageSaver.saveImage(target, (Img) img, codec);
+                }
+                long nanos = System.nanoTime() - writeStart;
+                addWrite(bytes, nanos);
+                Utils.timeStampOutput(String.format("Wrote %s at %.1f MB/s.", target, bytes / (nanos / 1e3)));
+            } catch (Exception e) {
+                addFailure();
+                Utils.timeStampOutput(String.format("Saving %s failed.", target));
+                Utils.timeStampOutput(e.toString());
+            } finally {
+                budget.release(permits);
+            }
+        });
+        synchronized (pending) {
+            pending.add(future);
+        }
+    }
+
+    /**
+     * Queues a multiresolution BigDataViewer export of the image, written next to {@code path} with the suffix
+     * "_pyramid". It runs alongside the full-resolution write and reads the same image, so the pyramid does not need
+     * the written file to be read back.
+     */
+    public void submitPyramid(String path, Img<? extends RealType<?>> img, double[] voxelSize, boolean labels) {
+        File base = new File(ImageFormat.stripExtension(path) + "_pyramid");
+        long bytes = img.size() * Math.max(1, Util.getTypeFromInterval(img).getBitsPerPixel()) / 8 / 4;
+        int permits = (int) Math.max(1, Math.min(maxPermits, bytes / BYTES_PER_PERMIT));
+        long start = System.nanoTime();
+        budget.acquireUninterruptibly(permits);
+        addBlockedTime(System.nanoTime() - start);
+        Future<?> future = executor.submit(() -> {
+            try {
+                long writeStart = System.nanoTime();
+                BigDataViewerExporter.export((RandomAccessibleInterval) img, base.getParent(), base.getName(),
+                        voxelSize, labels, TaskScheduler.getPool());
+                Utils.timeStampOutput(String.format("Wrote pyramid %s in %.1f s.", base,
+                        (System.nanoTime() - writeStart) / 1e9));
+            } catch (Exception e) {
+                addFailure();
+                Utils.timeStampOutput(String.format("Saving pyramid %s failed.", base));
+                Utils.timeStampOutput(e.toString());
+            } finally {
+                budget.release(permits);
+            }
+        });
+        synchronized (pending) {
+            pending.add(future);
+        }
+    }
+
+    /**
+     * Waits until every image submitted so far has been written.
+     */
+    public void flush() {
+        List<Future<?>> futures;
+        synchronized (pending) {
+            futures = new ArrayList<>(pending);
+            pending.clear();
+        }
+        long start = System.nanoTime();
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                addFailure();
+                Utils.timeStampOutput(e.getCause().toString());
+            }
+        }
+        addBlockedTime(System.nanoTime() - start);
+    }
+
+    public void shutdown() {
+        flush();
+        executor.shutdown();
+    }
+
+    private synchronized void addBlockedTime(long nanos) {
+        blockedNanos += nanos;
+    }
+
+    private synchronized void addBytes(long bytes) {
+        bytesSubmitted += bytes;
+    }
+
+    private synchronized void addFailure() {
+        failureCount++;
+    }
+
+    /**
+     * Number of images, or pyramids, that could not be written.
+     */
+    public synchronized int getFailureCount() {
+        return failureCount;
+    }
+
+    private synchronized void addWrite(long bytes, long nanos) {
+        bytesWritten += bytes;
+        writeNanos += nanos;
+    }
+
+    /**
+     * Uncompressed megabytes per second achieved by each writer thread, averaged over the images written so far.
+     */
+    public synchronized double getThroughput() {
+        return writeNanos > 0 ? bytesWritten / (writeNanos / 1e3) : 0.0;
+    }
+
+    /**
+     * Uncompressed size, in bytes, of every image submitted so far.
+     */
+    public synchronized long getBytesSubmitted() {
+        return bytesSubmitted;
+    }
+
+    /**
+     * Total time, in seconds, that callers have spent waiting for output to be written.
+     */
+    public synchronized double getBlockedTime() {
+        return blockedNanos / 1e9;
+    }
+}
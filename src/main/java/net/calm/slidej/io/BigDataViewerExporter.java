@@ -24,49 +24,142 @@
 
 package net.calm.slidej.io;
 
-import bdv.export.ExportMipmapInfo;
-import bdv.export.WriteSequenceToHdf5;
-import bdv.img.hdf5.Partition;
-import mpicbg.spim.data.generic.sequence.BasicViewSetup;
-import mpicbg.spim.data.sequence.FinalVoxelDimensions;
-import mpicbg.spim.data.sequence.TimePoint;
+import net.calm.slidej.transform.Downsampler;
+import net.calm.slidej.util.Utils;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 
+/**
+ * Writes a 3D image as a multiresolution BigDataViewer dataset: an N5 container in BigDataViewer's layout holding
+ * every level, and the XML file that BigDataViewer opens. Each level is downsampled from the one before it, so the
+ * full-resolution image is read once. Label images are mode-downsampled, everything else is averaged.
+ */
 public class BigDataViewerExporter {
+    public static final int CHUNK_SIZE = 64;
+    private static final int MAX_LEVELS = 10;
 
-    public static void export(RandomAccessibleInterval<UnsignedShortType> img, String outputDir, String filename) {
-        long[] auxDims = new long[img.numDimensions()];
-        img.dimensions(auxDims);
-
-        double[] auxDoubleDims = new double[auxDims.length];
-
-        for (int i = 0; i < auxDims.length; i++) {
-            auxDoubleDims[i] = auxDims[i];
+    public static <T extends RealType<T> & NativeType<T>> void export(RandomAccessibleInterval<T> img, String outputDir,
+                                                                     String filename, double[] voxelSize,
+                                                                     boolean labels, ExecutorService executor)
+            throws IOException, InterruptedException, ExecutionException {
+        if (img.numDimensions() == 2) {
+            img = Views.addDimension(img, 0, 0);
         }
+        if (img.numDimensions() != 3) {
+            Utils.timeStampOutput(String.format("Cannot export %d-dimensional image %s to BigDataViewer.",
+                    img.numDimensions(), filename));
+            return;
+        }
+        double[] voxels = Arrays.copyOf(voxelSize, 3);
+        for (int d = voxelSize.length; d < 3; d++) voxels[d] = 1.0;
+        long[] dims = img.dimensionsAsLongArray();
+        int[][] factors = getMipmapFactors(dims, voxels);
 
-        ArrayList<TimePoint> tp = new ArrayList<>();
-        tp.add(new TimePoint(1));
-
-        ArrayList<BasicViewSetup> bvs = new ArrayList<>();
-        bvs.add(new BasicViewSetup(0, filename, img, new FinalVoxelDimensions("Microns", auxDoubleDims)));
+        String n5Name = filename + ".n5";
+        try (N5Writer n5 = new N5FSWriter(new File(outputDir, n5Name).getAbsolutePath())) {
+            RandomAccessibleInterval<T> level = img;
+            for (int s = 0; s < factors.length; s++) {
+                if (s > 0) {
+                    int[] relative = new int[3];
+                    for (int d = 0; d < 3; d++) relative[d] = factors[s][d] / factors[s - 1][d];
+                    level = Downsampler.downsample(level, relative, labels);
+                }
+                int[] chunk = new int[3];
+                for (int d = 0; d < 3; d++) chunk[d] = (int) Math.min(CHUNK_SIZE, level.dimension(d));
+                String dataset = String.format("setup0/timepoint0/s%d", s);
+                N5Utils.save(level, n5, dataset, chunk, new GzipCompression(), executor);
+                n5.setAttribute(dataset, "downsamplingFactors", factors[s]);
+            }
+            n5.setAttribute("setup0", "downsamplingFactors", factors);
+            n5.setAttribute("setup0", "dataType", N5Utils.dataType(Util.getTypeFromInterval(img)).toString());
+        }
 
-        ArrayList<Partition> partitions = Partition.split(tp, bvs, 0, 0, String.format("%s%s%s", outputDir, File.separator, filename));
+        try (PrintWriter xml = new PrintWriter(new File(outputDir, filename + ".xml"), StandardCharsets.UTF_8.name())) {
+            xml.print(getXml(n5Name, filename, dims, voxels));
+        }
+    }
 
-        WriteSequenceToHdf5.writeViewToHdf5PartitionFile(img,
-                partitions.get(0),
-                0,
-                0,
-                new ExportMipmapInfo(new int[][]{{1, 1, 1}, {2, 2, 2}, {4, 4, 4}, {8, 8, 8}}, new int[][]{{16, 16, 16}, {16, 16, 16}, {16, 16, 16}, {8, 8, 8}}),
-                true,
-                true,
-                null,
-                null,
-                Runtime.getRuntime().availableProcessors() - 1,
-                null);
+    /**
+     * Proposes downsampling factors for each level. Each level doubles the factor of every axis whose downsampled voxel
+     * size is within a factor of two of the finest, so anisotropic axes are only downsampled once the others have
+     * caught up. Levels stop when the image fits in a single chunk or no axis can be halved further.
+     */
+    public static int[][] getMipmapFactors(long[] dims, double[] voxelSize) {
+        int nDims = dims.length;
+        List<int[]> levels = new ArrayList<>();
+        int[] factors = new int[nDims];
+        Arrays.fill(factors, 1);
+        levels.add(factors.clone());
+        while (levels.size() < MAX_LEVELS) {
+            boolean fits = true;
+            double finest = Double.MAX_VALUE;
+            for (int d = 0; d < nDims; d++) {
+                if (dims[d] / factors[d] > CHUNK_SIZE) fits = false;
+                if (dims[d] / factors[d] > 1) finest = Math.min(finest, voxelSize[d] * factors[d]);
+            }
+            if (fits) break;
+            boolean changed = false;
+            for (int d = 0; d < nDims; d++) {
+                if (dims[d] / factors[d] > 1 && voxelSize[d] * factors[d] < 2.0 * finest) {
+                    factors[d] *= 2;
+                    changed = true;
+                }
+            }
+            if (!changed) break;
+            levels.add(factors.clone());
+        }
+        return levels.toArray(new int[0][]);
     }
 
+    private static String getXml(String n5Name, String name, long[] dims, double[] voxelSize) {
+        return String.format("<?xml version=\"1.0\" encoding=\"UTF-8\"?>%n"
+                        + "<SpimData version=\"0.2\">%n"
+                        + "  <BasePath type=\"relative\">.</BasePath>%n"
+                        + "  <SequenceDescription>%n"
+                        + "    <ImageLoader format=\"bdv.n5\" version=\"1.0\">%n"
+                        + "      <n5 type=\"relative\">%s</n5>%n"
+                        + "    </ImageLoader>%n"
+                        + "    <ViewSetups>%n"
+                        + "      <ViewSetup>%n"
+                        + "        <id>0</id>%n"
+                        + "        <name>%s</name>%n"
+                        + "        <size>%d %d %d</size>%n"
+                        + "        <voxelSize>%n"
+                        + "          <unit>micron</unit>%n"
+                        + "          <size>%s %s %s</size>%n"
+                        + "        </voxelSize>%n"
+                        + "      </ViewSetup>%n"
+                        + "    </ViewSetups>%n"
+                        + "    <Timepoints type=\"pattern\">%n"
+                        + "      <integerpattern>0</integerpattern>%n"
+                        + "    </Timepoints>%n"
+                        + "  </SequenceDescription>%n"
+                        + "  <ViewRegistrations>%n"
+                        + "    <ViewRegistration timepoint=\"0\" setup=\"0\">%n"
+                        + "      <ViewTransform type=\"affine\">%n"
+                        + "        <affine>%s 0.0 0.0 0.0 0.0 %s 0.0 0.0 0.0 0.0 %s 0.0</affine>%n"
+                        + "      </ViewTransform>%n"
+                        + "    </ViewRegistration>%n"
+                        + "  </ViewRegistrations>%n"
+                        + "</SpimData>%n",
+                n5Name, name, dims[0], dims[1], dims[2], voxelSize[0], voxelSize[1], voxelSize[2],
+                voxelSize[0], voxelSize[1], voxelSize[2]);
+    }
 }
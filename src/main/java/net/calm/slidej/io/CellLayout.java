@@ -0,0 +1,65 @@
+/*
+ * Copyright (c)  2020, David J. Barry
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.calm.slidej.io;
+
+/**
+ * Chooses cell dimensions for intermediate images so that cells tile the analysis neighbourhoods exactly. Axes no
+ * deeper than {@link #MAX_FULL_DEPTH} (typically Z) are held whole in each cell; on other axes the cell edge is the
+ * largest divisor of the neighbourhood size that does not exceed {@link #MAX_EDGE}, or a multiple of it when the
+ * neighbourhood is small.
+ */
+public class CellLayout {
+    public static final int MAX_EDGE = 256;
+    public static final int MIN_EDGE = 32;
+    public static final int MAX_FULL_DEPTH = 64;
+
+    public static int[] align(long[] dims, int[] neighbourhood) {
+        int[] cellDims = new int[dims.length];
+        for (int d = 0; d < dims.length; d++) {
+            cellDims[d] = alignAxis(dims[d], neighbourhood[d]);
+        }
+        return cellDims;
+    }
+
+    private static int alignAxis(long size, int neighbourhood) {
+        if (size <= MAX_FULL_DEPTH) return (int) Math.max(1, size);
+        if (neighbourhood < 1) return (int) Math.min(size, MAX_EDGE);
+        int edge;
+        if (neighbourhood <= MAX_EDGE) {
+            edge = neighbourhood * Math.max(1, MAX_EDGE / neighbourhood);
+        } else {
+            edge = largestDivisor(neighbourhood, MAX_EDGE);
+            if (edge < MIN_EDGE) edge = MAX_EDGE;
+        }
+        return (int) Math.min(size, edge);
+    }
+
+    private static int largestDivisor(int n, int max) {
+        for (int k = 2; k <= n; k++) {
+            if (n % k == 0 && n / k <= max) return n / k;
+        }
+        return 1;
+    }
+}
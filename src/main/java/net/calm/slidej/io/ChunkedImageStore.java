@@ -0,0 +1,120 @@
+/*
+ * Copyright (c)  2020, David J. Barry
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.calm.slidej.io;
+
+import com.google.gson.GsonBuilder;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.type.NativeType;
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSReader;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.janelia.saalfeldlab.n5.zarr.N5ZarrReader;
+import org.janelia.saalfeldlab.n5.zarr.N5ZarrWriter;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Reads and writes images as chunked N5 or OME-Zarr containers holding a single full-resolution dataset. Chunks are
+ * compressed and written in parallel on the supplied executor, and images are opened lazily, so only the chunks that
+ * are accessed are read; the reader must therefore stay open until the image is no longer used.
+ */
+public class ChunkedImageStore {
+    public static final String DATASET = "0";
+    private static final String[] AXIS_NAMES = {"x", "y", "z", "c", "t"};
+
+    /**
+     * @param voxelSize physical size of a voxel along each axis, recorded in the OME-Zarr metadata; axes it does not
+     *                  cover, or all axes if it is null, are given a scale of 1
+     */
+    public static <T extends NativeType<T>> void write(String path, RandomAccessibleInterval<T> img, ImageFormat format,
+                                                       int chunkSize, double[] voxelSize, ExecutorService executor)
+            throws InterruptedException, ExecutionException {
+        try (N5Writer n5 = format == ImageFormat.ZARR ? new N5ZarrWriter(path, new GsonBuilder(), "/")
+                : new N5FSWriter(path)) {
+            Compression compression = new GzipCompression();
+            N5Utils.save(img, n5, DATASET, getChunkDimensions(img, chunkSize), compression, executor);
+            if (format == ImageFormat.ZARR) {
+                n5.setAttribute("/", "multiscales",
+                        Collections.singletonList(getMultiscales(img.numDimensions(), voxelSize)));
+            }
+        }
+    }
+
+    public static N5Reader openReader(File file) {
+        return ImageFormat.of(file) == ImageFormat.ZARR ? new N5ZarrReader(file.getAbsolutePath())
+                : new N5FSReader(file.getAbsolutePath());
+    }
+
+    public static <T extends NativeType<T>> Img<T> open(N5Reader n5) {
+        return N5Utils.open(n5, DATASET);
+    }
+
+    static int[] getChunkDimensions(RandomAccessibleInterval<?> img, int chunkSize) {
+        int[] chunk = new int[img.numDimensions()];
+        for (int d = 0; d < chunk.length; d++) {
+            chunk[d] = (int) Math.min(img.dimension(d), chunkSize);
+        }
+        return chunk;
+    }
+
+    /**
+     * OME-Zarr (0.4) metadata for a single-level image. Zarr stores dimensions in reverse order, so the axes are
+     * listed slowest first.
+     */
+    private static Map<String, Object> getMultiscales(int nDims, double[] voxelSize) {
+        List<Map<String, String>> axes = new ArrayList<>();
+        List<Double> scale = new ArrayList<>();
+        for (int d = nDims - 1; d >= 0; d--) {
+            Map<String, String> axis = new LinkedHashMap<>();
+            axis.put("name", d < AXIS_NAMES.length ? AXIS_NAMES[d] : String.format("dim_%d", d));
+            axis.put("type", d < 3 ? "space" : d == 3 ? "channel" : "time");
+            axes.add(axis);
+            scale.add(voxelSize != null && d < voxelSize.length && voxelSize[d] > 0.0 ? voxelSize[d] : 1.0);
+        }
+        Map<String, Object> transform = new LinkedHashMap<>();
+        transform.put("type", "scale");
+        transform.put("scale", scale);
+        Map<String, Object> dataset = new LinkedHashMap<>();
+        dataset.put("path", DATASET);
+        dataset.put("coordinateTransformations", Collections.singletonList(transform));
+        Map<String, Object> multiscales = new LinkedHashMap<>();
+        multiscales.put("version", "0.4");
+        multiscales.put("axes", axes);
+        multiscales.put("datasets", Collections.singletonList(dataset));
+        return multiscales;
+    }
+}
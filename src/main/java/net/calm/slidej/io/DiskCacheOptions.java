@@ -51,6 +51,29 @@ public class DiskCacheOptions {
         //options = options.deleteCacheDirectoryOnExit(false);
     }
 
+    public DiskCacheOptions cellDimensions(int... cellDimensions) {
+        options = options.cellDimensions(cellDimensions);
+        return this;
+    }
+
+    /**
+     * Bounds the number of cells held in memory - beyond this, least recently used cells are written to the
+     * temporary directory.
+     */
+    public DiskCacheOptions maxCacheSize(long maxCells) {
+        options = options.cacheType(DiskCachedCellImgOptions.CacheType.BOUNDED).maxCacheSize(maxCells);
+        return this;
+    }
+
+    public DiskCacheOptions numIoThreads(int numIoThreads) {
+        options = options.numIoThreads(numIoThreads);
+        return this;
+    }
+
+    public Path getTmpDir() {
+        return tmpDir;
+    }
+
     public DiskCachedCellImgOptions getOptions() {
         return options;
     }
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c)  2020, David J. Barry
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.calm.slidej.io;
+
+import java.io.File;
+
+/**
+ * Formats for output images. OME_TIFF images are written by SCIFIO as single files; N5 and ZARR images are chunked
+ * containers, written by {@link ChunkedImageStore}, whose chunks are compressed and written in parallel and can be
+ * read back independently.
+ */
+public enum ImageFormat {
+    OME_TIFF(".ome.btf"),
+    N5(".n5"),
+    ZARR(".ome.zarr");
+
+    private static final String[] TIFF_EXTENSIONS = {".ome.btf", ".ome.tiff", ".ome.tif", ".tiff", ".tif"};
+
+    private final String extension;
+
+    ImageFormat(String extension) {
+        this.extension = extension;
+    }
+
+    public String getExtension() {
+        return extension;
+    }
+
+    public boolean isChunked() {
+        return this != OME_TIFF;
+    }
+
+    /**
+     * Maps a TIFF output path onto this format, replacing the extension of chunked formats.
+     */
+    public String resolve(String path) {
+        if (!isChunked()) return path;
+        return stripExtension(path) + extension;
+    }
+
+    public static String stripExtension(String path) {
+        String lower = path.toLowerCase();
+        for (String ext : TIFF_EXTENSIONS) {
+            if (lower.endsWith(ext)) return path.substring(0, path.length() - ext.length());
+        }
+        return path;
+    }
+
+    public static ImageFormat of(File file) {
+        String name = file.getName().toLowerCase();
+        if (name.endsWith(N5.extension)) return N5;
+        if (name.endsWith(".zarr")) return ZARR;
+        return OME_TIFF;
+    }
+
+    public static ImageFormat fromProperty(String value) {
+        String v = value.trim();
+        if (v.equalsIgnoreCase("N5")) return N5;
+        if (v.equalsIgnoreCase("Zarr") || v.equalsIgnoreCase("OME-Zarr")) return ZARR;
+        return OME_TIFF;
+    }
+}
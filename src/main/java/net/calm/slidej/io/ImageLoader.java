@@ -28,7 +28,6 @@
 package net.calm.slidej.io;
 
 import io.scif.ImageMetadata;
-import io.scif.Metadata;
 import io.scif.SCIFIO;
 import io.scif.config.SCIFIOConfig;
 import io.scif.img.ImgOpener;
@@ -36,18 +35,15 @@ import io.scif.img.SCIFIOImgPlus;
 import io.scif.ome.OMEMetadata;
 import io.scif.services.DatasetIOService;
 import loci.common.DebugTools;
-import net.calm.slidej.properties.SlideJParams;
-import net.imagej.ImageJ;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converters;
 import net.imglib2.img.Img;
-import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.img.ImgView;
 import net.imglib2.type.numeric.RealType;
-import net.imglib2.type.numeric.integer.UnsignedByteType;
-import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.view.Views;
+import org.janelia.saalfeldlab.n5.N5Reader;
 
 import java.io.File;
-import java.io.IOException;
 import java.util.ArrayList;
 
 /**
@@ -55,50 +51,73 @@ import java.util.ArrayList;
  * @author david.barry@crick.ac.uk
  *
  */
-public class ImageLoader<T extends RealType<T>> {
+public class ImageLoader<T extends RealType<T>> implements AutoCloseable {
 
     private ImageMetadata meta;
     private OMEMetadata omeMeta;
+    private Img<? extends RealType<?>> img;
+    private N5Reader chunkedReader;
 
     public ImageLoader() {
 
     }
 
     public Img<T> load(File file, int series, T t) {
+        open(file, series);
+        return getView(t);
+    }
+
+    /**
+     * Opens the given series of the file. N5 and Zarr containers are opened lazily, chunk by chunk, and carry no
+     * metadata.
+     */
+    public void open(File file, int series) {
+        if (ImageFormat.of(file).isChunked()) {
+            this.chunkedReader = ChunkedImageStore.openReader(file);
+            this.img = (Img) ChunkedImageStore.open(chunkedReader);
+            this.meta = null;
+            this.omeMeta = null;
+            return;
+        }
         DebugTools.setRootLevel("WARN");
         SCIFIOConfig config = new SCIFIOConfig();
         config.imgOpenerSetIndex(series);
         config.imgOpenerSetImgModes(SCIFIOConfig.ImgMode.CELL);
-        ImageJ imagej = new ImageJ();
-        SCIFIO scifio = new SCIFIO();
-        net.imagej.Dataset data = null;
+        SCIFIO scifio = SharedContext.getScifio();
+
+        SCIFIOImgPlus<?> sciImg = new ImgOpener(scifio.getContext()).openImgs(file.getAbsolutePath(), config).get(0);
+        //Img<T> img = (new ImgOpener()).openImg(file.getAbsolutePath(), new CellImgFactory<T>(100), t);
+        this.meta = sciImg.getImageMetadata();
+        this.img = (Img<? extends RealType<?>>) sciImg.getImg();
 
         try {
-            data = scifio.datasetIO().open(file.getAbsolutePath(), config);
-            Metadata globalMeta = (Metadata) data.getProperties().get("scifio.metadata.global");
-            Object imageMeta = data.getProperties().get("scifio.metadata.image");
-            omeMeta = new OMEMetadata((new ImageJ()).getContext());
-            scifio.translator().translate(globalMeta, omeMeta, true);
-        } catch (IOException e) {
+            omeMeta = new OMEMetadata(scifio.getContext());
+            scifio.translator().translate(sciImg.getMetadata(), omeMeta, true);
+        } catch (Exception e) {
             System.out.println("Failed to read OME metadata.");
         }
+    }
 
-        SCIFIOImgPlus<?> sciImg = new ImgOpener().openImgs(file.getAbsolutePath(), config).get(0);
-        //Img<T> img = (new ImgOpener()).openImg(file.getAbsolutePath(), new CellImgFactory<T>(100), t);
-        this.meta = sciImg.getImageMetadata();
+    /**
+     * Returns the backing image as the requested type. No pixels are copied - if the types differ, values are
+     * converted on access.
+     */
+    public <S extends RealType<S>> Img<S> getView(S t) {
+        return convert((Img) img, t);
+    }
 
-        if (data.getType().createVariable() instanceof UnsignedByteType) {
-            return (Img<T>) imagej.op().convert().uint16((new CellImgFactory<>(new UnsignedShortType(), SlideJParams.CELL_IMG_DIM)).create(sciImg.getImg()),
-                    (Img<T>) sciImg.getImg());
-        } else {
-            return (Img<T>) sciImg.getImg();
+    private static <A extends RealType<A>, S extends RealType<S>> Img<S> convert(Img<A> input, S t) {
+        if (t.getClass().isInstance(input.firstElement())) {
+            return (Img<S>) input;
         }
+        return ImgView.wrap(Converters.convert((RandomAccessibleInterval<A>) input,
+                (in, out) -> out.setReal(in.getRealDouble()), t));
     }
 
     public RandomAccessibleInterval<T> loadAndConcatenate(File dir, int concatAxis, T t) {
         File[] inputs = dir.listFiles();
         ArrayList<RandomAccessibleInterval<T>> imgs = new ArrayList<>();
-        DatasetIOService io = (new SCIFIO()).datasetIO();
+        DatasetIOService io = SharedContext.getScifio().datasetIO();
         for (File f : inputs) {
             if (io.canOpen(f.getAbsolutePath())) {
                 imgs.add(Views.addDimension(load(f, 0, t.createVariable()), 0, 0));
@@ -124,4 +143,15 @@ public class ImageLoader<T extends RealType<T>> {
     public OMEMetadata getOmeMeta() {
         return omeMeta;
     }
+
+    /**
+     * Releases the container behind a chunked image. The image cannot be read afterwards.
+     */
+    @Override
+    public void close() {
+        if (chunkedReader != null) {
+            chunkedReader.close();
+            chunkedReader = null;
+        }
+    }
 }
\ No newline at end of file
@@ -26,15 +26,30 @@ package net.calm.slidej.io;
 
 import io.scif.config.SCIFIOConfig;
 import io.scif.img.ImgSaver;
+import net.calm.slidej.concurrent.TaskScheduler;
 import net.imglib2.img.Img;
 import net.imglib2.type.numeric.RealType;
 
+import java.io.IOException;
+
 public class ImageSaver {
     public static <T extends RealType> void saveImage(String path, Img<T> img) {
         SCIFIOConfig config = new SCIFIOConfig();
         config.writerSetCompression("LZW");
         //config.parserSetSaveOriginalMetadata(true);
 
-        (new ImgSaver()).saveImg(path, img, config);
+        (new ImgSaver(SharedContext.getScifio().getContext())).saveImg(path, img, config);
+    }
+
+    /**
+     * Saves an OME-TIFF with the given codec. LZW images are written by SCIFIO; other codecs use
+     * {@link TiledTiffWriter}, compressing tiles in parallel on the shared task pool.
+     */
+    public static <T extends RealType<T>> void saveImage(String path, Img<T> img, TiffCodec codec) throws IOException {
+        if (codec.getKind() == TiffCodec.Kind.LZW) {
+            saveImage(path, img);
+        } else {
+            TiledTiffWriter.write(path, img, codec, TaskScheduler.getPool(), TaskScheduler.getParallelism());
+        }
     }
 }
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c)  2020, David J. Barry
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.calm.slidej.io;
+
+import net.calm.slidej.properties.SlideJParams;
+import net.imglib2.Dimensions;
+import net.imglib2.cache.img.DiskCachedCellImgFactory;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgFactory;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.type.NativeType;
+
+/**
+ * Storage backend for intermediate images. By default images are held on the heap as cell images; once
+ * {@link #useDiskCache(DiskCacheOptions)} has been called, new images are disk-cached cell images that keep a bounded
+ * number of cells in memory and spill the rest to the temporary directory.
+ */
+public class ImgStorage {
+    private static int[] cellDimensions = new int[]{SlideJParams.CELL_IMG_DIM};
+    private static DiskCacheOptions diskCacheOptions;
+
+    public static synchronized void useHeap(int... cellDimensions) {
+        ImgStorage.cellDimensions = cellDimensions;
+        ImgStorage.diskCacheOptions = null;
+    }
+
+    public static synchronized void useDiskCache(DiskCacheOptions diskCacheOptions) {
+        ImgStorage.diskCacheOptions = diskCacheOptions;
+    }
+
+    public static synchronized boolean isDiskCached() {
+        return diskCacheOptions != null;
+    }
+
+    public static synchronized <T extends NativeType<T>> ImgFactory<T> factory(T type) {
+        if (diskCacheOptions != null) {
+            return new DiskCachedCellImgFactory<>(type, diskCacheOptions.getOptions());
+        }
+        return new CellImgFactory<>(type, cellDimensions);
+    }
+
+    public static <T extends NativeType<T>> Img<T> create(T type, Dimensions dimensions) {
+        return factory(type).create(dimensions);
+    }
+}
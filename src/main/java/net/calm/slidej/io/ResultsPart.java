@@ -0,0 +1,170 @@
+/*
+ * Copyright (c)  2020, David J. Barry
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.calm.slidej.io;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Rows written by one task. Values are held in a fixed-size primitive buffer and appended to the part file whenever
+ * it fills, so memory use does not grow with the number of rows. A part must only be used by one thread.
+ */
+public class ResultsPart implements AutoCloseable {
+    private static final int BLOCK_VALUES = 1 << 16;
+
+    private final ResultsSink sink;
+    private final ResultsFormat format;
+    private final OutputStream out;
+    private final int nColumns;
+    private final int blockRows;
+    private final double[] values;
+    private final String[] labels;
+    private final StringBuilder text = new StringBuilder();
+    private ByteBuffer bytes;
+    private int row;
+    private long rowCount;
+
+    ResultsPart(ResultsSink sink, File file, ResultsSchema schema, ResultsFormat format) throws IOException {
+        this.sink = sink;
+        this.format = format;
+        this.out = new FileOutputStream(file);
+        this.nColumns = schema.size();
+        this.blockRows = Math.max(1, BLOCK_VALUES / Math.max(1, nColumns));
+        this.values = new double[blockRows * nColumns];
+        this.labels = schema.isLabelled() ? new String[blockRows] : null;
+        clearRow();
+    }
+
+    public void set(int column, double value) {
+        values[row * nColumns + column] = value;
+    }
+
+    public void setLabel(String label) {
+        labels[row] = label;
+    }
+
+    /**
+     * Completes the current row. Columns that were not set are written as NaN.
+     */
+    public void endRow() {
+        row++;
+        rowCount++;
+        if (row == blockRows) flush();
+        clearRow();
+    }
+
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    private void clearRow() {
+        if (row < blockRows) {
+            Arrays.fill(values, row * nColumns, (row + 1) * nColumns, Double.NaN);
+            if (labels != null) labels[row] = "";
+        }
+    }
+
+    private void flush() {
+        if (row == 0) return;
+        try {
+            if (format == ResultsFormat.CSV) {
+                writeText();
+            } else {
+                writeColumns();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        row = 0;
+    }
+
+    private void writeText() throws IOException {
+        text.setLength(0);
+        for (int r = 0; r < row; r++) {
+            if (labels != null) text.append(ResultsSink.quote(labels[r])).append(',');
+            for (int c = 0; c < nColumns; c++) {
+                if (c > 0) text.append(',');
+                appendValue(values[r * nColumns + c]);
+            }
+            text.append('\n');
+        }
+        out.write(text.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void appendValue(double v) {
+        if (v == Math.rint(v) && Math.abs(v) < 1e15) {
+            text.append((long) v);
+        } else {
+            text.append(v);
+        }
+    }
+
+    private void writeColumns() throws IOException {
+        int size = 4 + row * nColumns * 8;
+        byte[][] encoded = null;
+        if (labels != null) {
+            encoded = new byte[row][];
+            for (int r = 0; r < row; r++) {
+                encoded[r] = labels[r].getBytes(StandardCharsets.UTF_8);
+                size += 4 + encoded[r].length;
+            }
+        }
+        if (bytes == null || bytes.capacity() < size) {
+            bytes = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        bytes.clear();
+        bytes.putInt(row);
+        for (int c = 0; c < nColumns; c++) {
+            for (int r = 0; r < row; r++) {
+                bytes.putDouble(values[r * nColumns + c]);
+            }
+        }
+        if (encoded != null) {
+            for (byte[] label : encoded) {
+                bytes.putInt(label.length);
+                bytes.put(label);
+            }
+        }
+        out.write(bytes.array(), 0, bytes.position());
+    }
+
+    @Override
+    public void close() {
+        try {
+            flush();
+            out.close();
+            sink.addRows(rowCount);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
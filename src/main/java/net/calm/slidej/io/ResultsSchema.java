@@ -0,0 +1,68 @@
+/*
+ * Copyright (c)  2020, David J. Barry
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.calm.slidej.io;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Ordered column names of a results file, fixed before any rows are written. An optional text label column comes
+ * first.
+ */
+public class ResultsSchema {
+    public static final String LABEL = "Label";
+
+    private final List<String> columns;
+    private final boolean labelled;
+
+    public ResultsSchema(List<String> columns, boolean labelled) {
+        this.columns = Collections.unmodifiableList(new ArrayList<>(columns));
+        this.labelled = labelled;
+    }
+
+    public ResultsSchema(String... columns) {
+        this(Arrays.asList(columns), false);
+    }
+
+    public int size() {
+        return columns.size();
+    }
+
+    public List<String> getColumns() {
+        return columns;
+    }
+
+    public boolean isLabelled() {
+        return labelled;
+    }
+
+    public int indexOf(String column) {
+        int index = columns.indexOf(column);
+        if (index < 0) throw new IllegalArgumentException(String.format("No column %s", column));
+        return index;
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c)  2020, David J. Barry
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.calm.slidej.io;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streams the rows of one results file to disk as they are produced. Each task writes its rows to its own part file
+ * through {@link #openPart(int)}; {@link #close()} writes the header and concatenates the parts in index order, so
+ * the row order does not depend on which task finished first.
+ */
+public class ResultsSink implements AutoCloseable {
+    private static final byte[] MAGIC = "SLIDEJC1".getBytes(StandardCharsets.US_ASCII);
+
+    private final File file;
+    private final ResultsFormat format;
+    private final List<File> parts = new ArrayList<>();
+    private ResultsSchema schema;
+    private long rowCount;
+
+    /**
+     * @param base output path without extension; the format's extension is appended
+     */
+    public ResultsSink(String base, ResultsFormat format) {
+        this.file = new File(base + format.getExtension());
+        this.format = format;
+    }
+
+    /**
+     * Declares the columns. Must be called once, before any part is opened.
+     */
+    public synchronized void setSchema(ResultsSchema schema) {
+        this.schema = schema;
+    }
+
+    public synchronized ResultsPart openPart(int index) {
+        if (schema == null) throw new IllegalStateException("No results schema declared.");
+        while (parts.size() <= index) {
+            parts.add(new File(String.format("%s.part%d", file.getAbsolutePath(), parts.size())));
+        }
+        try {
+            return new ResultsPart(this, parts.get(index), schema, format);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public ResultsSchema getSchema() {
+        return schema;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    synchronized void addRows(long rows) {
+        rowCount += rows;
+    }
+
+    /**
+     * Rows written by the parts closed so far.
+     */
+    public synchronized long getRowCount() {
+        return rowCount;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (schema == null) return;
+        try (FileOutputStream out = new FileOutputStream(file);
+             FileChannel target = out.getChannel()) {
+            out.write(header());
+            for (File part : parts) {
+                if (!part.exists()) continue;
+                try (FileInputStream in = new FileInputStream(part);
+                     FileChannel source = in.getChannel()) {
+                    long position = 0;
+                    long size = source.size();
+                    while (position < size) {
+                        position += source.transferTo(position, size - position, target);
+                    }
+                }
+                if (!part.delete()) part.deleteOnExit();
+            }
+        }
+        parts.clear();
+    }
+
+    private byte[] header() {
+        if (format == ResultsFormat.CSV) {
+            StringBuilder sb = new StringBuilder();
+            if (schema.isLabelled()) sb.append(quote(ResultsSchema.LABEL)).append(',');
+            for (int c = 0; c < schema.size(); c++) {
+                if (c > 0) sb.append(',');
+                sb.append(quote(schema.getColumns().get(c)));
+            }
+            return sb.append('\n').toString().getBytes(StandardCharsets.UTF_8);
+        }
+        List<byte[]> names = new ArrayList<>();
+        int size = MAGIC.length + 4 + 1;
+        for (String column : schema.getColumns()) {
+            byte[] name = column.getBytes(StandardCharsets.UTF_8);
+            names.add(name);
+            size += 4 + name.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(MAGIC);
+        buffer.putInt(schema.size());
+        buffer.put((byte) (schema.isLabelled() ? 1 : 0));
+        for (byte[] name : names) {
+            buffer.putInt(name.length);
+            buffer.put(name);
+        }
+        return buffer.array();
+    }
+
+    static String quote(String s) {
+        if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0) return s;
+        return '"' + s.replace("\"", "\"\"") + '"';
+    }
+}
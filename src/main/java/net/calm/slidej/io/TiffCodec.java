@@ -0,0 +1,105 @@
+/*
+ * Copyright (c)  2020, David J. Barry
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.calm.slidej.io;
+
+import net.calm.slidej.util.Utils;
+
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Compression for OME-TIFF outputs, given as a property value such as "Deflate:6", "Deflate", "None" or "LZW".
+ * Deflate and uncompressed images are written by {@link TiledTiffWriter}; LZW images are written by SCIFIO. Zstd and
+ * LZ4 are not supported by the TIFF readers the outputs are opened with, so they fall back to Deflate at level 1.
+ */
+public class TiffCodec {
+    public enum Kind {
+        NONE(1), LZW(5), DEFLATE(8);
+
+        private final int tag;
+
+        Kind(int tag) {
+            this.tag = tag;
+        }
+    }
+
+    public static final int DEFAULT_DEFLATE_LEVEL = 6;
+
+    private final Kind kind;
+    private final int level;
+
+    public TiffCodec(Kind kind, int level) {
+        this.kind = kind;
+        this.level = level;
+    }
+
+    public static TiffCodec parse(String value) {
+        String[] parts = value.trim().split(":");
+        String name = parts[0].trim();
+        int level = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : DEFAULT_DEFLATE_LEVEL;
+        if (name.equalsIgnoreCase("None")) return new TiffCodec(Kind.NONE, 0);
+        if (name.equalsIgnoreCase("LZW")) return new TiffCodec(Kind.LZW, 0);
+        if (name.equalsIgnoreCase("Deflate") || name.equalsIgnoreCase("Zip")) {
+            return new TiffCodec(Kind.DEFLATE, Math.max(Deflater.BEST_SPEED, Math.min(Deflater.BEST_COMPRESSION, level)));
+        }
+        Utils.timeStampOutput(String.format("%s compression is not supported - using Deflate:1.", name));
+        return new TiffCodec(Kind.DEFLATE, Deflater.BEST_SPEED);
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public int getTag() {
+        return kind.tag;
+    }
+
+    /**
+     * Compresses the first {@code length} bytes of {@code raw}. Only NONE and DEFLATE can be encoded here.
+     */
+    public byte[] encode(byte[] raw, int length) {
+        if (kind == Kind.NONE) return Arrays.copyOf(raw, length);
+        if (kind != Kind.DEFLATE) throw new UnsupportedOperationException(kind + " tiles are written by SCIFIO.");
+        Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(raw, 0, length);
+            deflater.finish();
+            byte[] out = new byte[Math.max(64, length / 2)];
+            int size = 0;
+            while (!deflater.finished()) {
+                if (size == out.length) out = Arrays.copyOf(out, out.length * 2);
+                size += deflater.deflate(out, size, out.length - size);
+            }
+            return Arrays.copyOf(out, size);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return kind == Kind.DEFLATE ? String.format("Deflate:%d", level) : kind == Kind.NONE ? "None" : "LZW";
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright (c)  2020, David J. Barry
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.calm.slidej.io;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.BooleanType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Writes images as tiled, little-endian OME BigTIFF files. Each XY plane is one page; tiles are extracted and
+ * compressed in parallel on the supplied executor and written to the file in order, with a bounded number of tiles in
+ * flight. Dimensions 2, 3 and 4 are written as Z, C and T.
+ */
+public class TiledTiffWriter {
+    public static final int TILE_SIZE = 256;
+    private static final int TILES_IN_FLIGHT_PER_THREAD = 4;
+
+    private static final short ASCII = 2;
+    private static final short SHORT = 3;
+    private static final short LONG = 4;
+    private static final short LONG8 = 16;
+
+    private enum PixelType {
+        UINT8(1, 1, "uint8"), UINT16(2, 1, "uint16"), FLOAT(4, 3, "float");
+
+        private final int bytes;
+        private final int sampleFormat;
+        private final String omeType;
+
+        PixelType(int bytes, int sampleFormat, String omeType) {
+            this.bytes = bytes;
+            this.sampleFormat = sampleFormat;
+            this.omeType = omeType;
+        }
+
+        static PixelType of(Object type) {
+            if (type instanceof UnsignedByteType || type instanceof BooleanType) return UINT8;
+            if (type instanceof UnsignedShortType) return UINT16;
+            return FLOAT;
+        }
+
+        void put(ByteBuffer buffer, double value) {
+            switch (this) {
+                case UINT8:
+                    buffer.put((byte) (int) value);
+                    break;
+                case UINT16:
+                    buffer.putShort((short) (int) value);
+                    break;
+                default:
+                    buffer.putFloat((float) value);
+            }
+        }
+    }
+
+    /**
+     * Writes the image and returns the size of the file.
+     */
+    public static <T extends RealType<T>> long write(String path, RandomAccessibleInterval<T> img, TiffCodec codec,
+                                                     ExecutorService executor, int parallelism) throws IOException {
+        PixelType pixelType = PixelType.of(Util.getTypeFromInterval(img));
+        int nDims = img.numDimensions();
+        long width = img.dimension(0);
+        long height = nDims > 1 ? img.dimension(1) : 1;
+        long[] planeDims = new long[Math.max(0, nDims - 2)];
+        int nPages = 1;
+        for (int d = 2; d < nDims; d++) {
+            planeDims[d - 2] = img.dimension(d);
+            nPages *= (int) img.dimension(d);
+        }
+        int tilesAcross = (int) ((width + TILE_SIZE - 1) / TILE_SIZE);
+        int tilesDown = (int) ((height + TILE_SIZE - 1) / TILE_SIZE);
+        int tilesPerPage = tilesAcross * tilesDown;
+        long[] offsets = new long[nPages * tilesPerPage];
+        long[] byteCounts = new long[offsets.length];
+
+        try (FileOutputStream out = new FileOutputStream(path);
+             FileChannel channel = out.getChannel()) {
+            ByteBuffer header = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+            header.put((byte) 'I').put((byte) 'I').putShort((short) 43).putShort((short) 8).putShort((short) 0)
+                    .putLong(0);
+            header.flip();
+            channel.write(header);
+
+            Deque<Future<byte[]>> inFlight = new ArrayDeque<>();
+            int maxInFlight = Math.max(1, parallelism) * TILES_IN_FLIGHT_PER_THREAD;
+            int written = 0;
+            long[] planePos = new long[planeDims.length];
+            for (int page = 0; page < nPages; page++) {
+                if (planePos.length > 0) IntervalIndexer.indexToPosition(page, planeDims, planePos);
+                RandomAccessibleInterval<T> plane = getPlane(img, planePos);
+                for (int tile = 0; tile < tilesPerPage; tile++) {
+                    long x0 = (long) (tile % tilesAcross) * TILE_SIZE;
+                    long y0 = (long) (tile / tilesAcross) * TILE_SIZE;
+                    inFlight.add(executor.submit(() -> codec.encode(readTile(plane, x0, y0, pixelType), tileBytes(pixelType))));
+                    if (inFlight.size() >= maxInFlight) {
+                        writeTile(channel, inFlight.poll(), written++, offsets, byteCounts);
+                    }
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                writeTile(channel, inFlight.poll(), written++, offsets, byteCounts);
+            }
+
+            long firstIfd = align(channel);
+            String description = getOmeXml(img, pixelType);
+            for (int page = 0; page < nPages; page++) {
+                List<Entry> entries = new ArrayList<>();
+                entries.add(new Entry(256, LONG, 1, longs(LONG, width)));
+                entries.add(new Entry(257, LONG, 1, longs(LONG, height)));
+                entries.add(new Entry(258, SHORT, 1, longs(SHORT, pixelType.bytes * 8)));
+                entries.add(new Entry(259, SHORT, 1, longs(SHORT, codec.getTag())));
+                entries.add(new Entry(262, SHORT, 1, longs(SHORT, 1)));
+                if (page == 0) {
+                    byte[] text = (description + '\0').getBytes(StandardCharsets.UTF_8);
+                    entries.add(new Entry(270, ASCII, text.length, text));
+                }
+                entries.add(new Entry(277, SHORT, 1, longs(SHORT, 1)));
+                entries.add(new Entry(284, SHORT, 1, longs(SHORT, 1)));
+                entries.add(new Entry(322, LONG, 1, longs(LONG, TILE_SIZE)));
+                entries.add(new Entry(323, LONG, 1, longs(LONG, TILE_SIZE)));
+                entries.add(new Entry(324, LONG8, tilesPerPage, longs(LONG8, slice(offsets, page, tilesPerPage))));
+                entries.add(new Entry(325, LONG8, tilesPerPage, longs(LONG8, slice(byteCounts, page, tilesPerPage))));
+                entries.add(new Entry(339, SHORT, 1, longs(SHORT, pixelType.sampleFormat)));
+                channel.write(getIfd(entries, align(channel), page < nPages - 1));
+            }
+            ByteBuffer pointer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(firstIfd);
+            pointer.flip();
+            channel.write(pointer, 8);
+            return channel.size();
+        }
+    }
+
+    private static <T extends RealType<T>> RandomAccessibleInterval<T> getPlane(RandomAccessibleInterval<T> img,
+                                                                               long[] planePos) {
+        RandomAccessibleInterval<T> plane = img;
+        for (int d = planePos.length - 1; d >= 0; d--) {
+            plane = Views.hyperSlice(plane, d + 2, img.min(d + 2) + planePos[d]);
+        }
+        return Views.zeroMin(plane);
+    }
+
+    private static int tileBytes(PixelType pixelType) {
+        return TILE_SIZE * TILE_SIZE * pixelType.bytes;
+    }
+
+    /**
+     * Reads one tile, padding any part that lies outside the plane with zeros.
+     */
+    private static <T extends RealType<T>> byte[] readTile(RandomAccessibleInterval<T> plane, long x0, long y0,
+                                                          PixelType pixelType) {
+        byte[] raw = new byte[tileBytes(pixelType)];
+        ByteBuffer buffer = ByteBuffer.wrap(raw).order(ByteOrder.LITTLE_ENDIAN);
+        int w = (int) Math.min(TILE_SIZE, plane.dimension(0) - x0);
+        int h = plane.numDimensions() > 1 ? (int) Math.min(TILE_SIZE, plane.dimension(1) - y0) : 1;
+        RandomAccess<T> ra = plane.randomAccess();
+        for (int y = 0; y < h; y++) {
+            buffer.position(y * TILE_SIZE * pixelType.bytes);
+            ra.setPosition(x0, 0);
+            if (plane.numDimensions() > 1) ra.setPosition(y0 + y, 1);
+            for (int x = 0; x < w; x++) {
+                pixelType.put(buffer, ra.get().getRealDouble());
+                ra.fwd(0);
+            }
+        }
+        return raw;
+    }
+
+    private static void writeTile(FileChannel channel, Future<byte[]> tile, int index, long[] offsets,
+                                  long[] byteCounts) throws IOException {
+        byte[] data;
+        try {
+            data = tile.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing tiles.");
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        offsets[index] = channel.position();
+        byteCounts[index] = data.length;
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) channel.write(buffer);
+    }
+
+    /**
+     * Pads the file with a zero byte if needed so that the next IFD starts on a word boundary, as TIFF requires.
+     */
+    private static long align(FileChannel channel) throws IOException {
+        long position = channel.position();
+        if ((position & 1) != 0) {
+            channel.write(ByteBuffer.allocate(1));
+            position++;
+        }
+        return position;
+    }
+
+    private static long[] slice(long[] values, int page, int length) {
+        long[] slice = new long[length];
+        System.arraycopy(values, page * length, slice, 0, length);
+        return slice;
+    }
+
+    private static byte[] longs(short type, long... values) {
+        int size = type == SHORT ? 2 : type == LONG ? 4 : 8;
+        ByteBuffer buffer = ByteBuffer.allocate(size * values.length).order(ByteOrder.LITTLE_ENDIAN);
+        for (long v : values) {
+            if (type == SHORT) buffer.putShort((short) v);
+            else if (type == LONG) buffer.putInt((int) v);
+            else buffer.putLong(v);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Builds a BigTIFF IFD to be written at {@code position}. Values longer than eight bytes follow the entries; the
+     * next IFD, if any, follows those at the next word boundary.
+     */
+    private static ByteBuffer getIfd(List<Entry> entries, long position, boolean hasNext) {
+        int entriesSize = 8 + entries.size() * 20 + 8;
+        int overflow = 0;
+        for (Entry e : entries) {
+            if (e.value.length > 8) overflow += (e.value.length + 1) & ~1;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(entriesSize + overflow).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putLong(entries.size());
+        long overflowOffset = position + entriesSize;
+        int overflowIndex = entriesSize;
+        for (Entry e : entries) {
+            buffer.putShort((short) e.tag).putShort(e.type).putLong(e.count);
+            if (e.value.length <= 8) {
+                buffer.put(e.value);
+                for (int i = e.value.length; i < 8; i++) buffer.put((byte) 0);
+            } else {
+                buffer.putLong(overflowOffset);
+                int start = buffer.position();
+                buffer.position(overflowIndex);
+                buffer.put(e.value);
+                buffer.position(start);
+                int padded = (e.value.length + 1) & ~1;
+                overflowOffset += padded;
+                overflowIndex += padded;
+            }
+        }
+        buffer.putLong(hasNext ? (position + buffer.capacity() + 1) & ~1L : 0);
+        buffer.position(0);
+        return buffer;
+    }
+
+    private static String getOmeXml(RandomAccessibleInterval<?> img, PixelType pixelType) {
+        long[] sizes = new long[5];
+        for (int d = 0; d < sizes.length; d++) {
+            sizes[d] = d < img.numDimensions() ? img.dimension(d) : 1;
+        }
+        StringBuilder xml = new StringBuilder();
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+        xml.append("<OME xmlns=\"http://www.openmicroscopy.org/Schemas/OME/2016-06\">");
+        xml.append("<Image ID=\"Image:0\">");
+        xml.append(String.format("<Pixels ID=\"Pixels:0\" DimensionOrder=\"XYZCT\" Type=\"%s\" BigEndian=\"false\" "
+                        + "SizeX=\"%d\" SizeY=\"%d\" SizeZ=\"%d\" SizeC=\"%d\" SizeT=\"%d\">", pixelType.omeType,
+                sizes[0], sizes[1], sizes[2], sizes[3], sizes[4]));
+        for (int c = 0; c < sizes[3]; c++) {
+            xml.append(String.format("<Channel ID=\"Channel:0:%d\" SamplesPerPixel=\"1\"/>", c));
+        }
+        xml.append("<TiffData/></Pixels></Image></OME>");
+        return xml.toString();
+    }
+
+    private static class Entry {
+        private final int tag;
+        private final short type;
+        private final long count;
+        private final byte[] value;
+
+        Entry(int tag, short type, long count, byte[] value) {
+            this.tag = tag;
+            this.type = type;
+            this.count = count;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c)  2020, David J. Barry
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.calm.slidej.properties;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records the input and every parameter that affects segmentation, so that the labellings and distance maps written
+ * by one run can be reused by another that differs only in its analysis parameters.
+ */
+public class SegmentationFingerprint {
+    public static final String FILE_NAME = "segmentation_fingerprint.txt";
+
+    private final List<String> lines = new ArrayList<>();
+
+    public SegmentationFingerprint(SlideJParams props, File input, int series, int nChannels) {
+        lines.add(String.format("%s %s", SlideJParams.TITLE, props.getVersion()));
+        lines.add(String.format("Input=%s|%d|%d", input.getName(), input.length(), input.lastModified()));
+        lines.add(String.format("Series=%d", series));
+        int nSteps = Integer.parseInt(props.getProperty(SlideJParams.N_STEPS));
+        lines.add(String.format("%s=%d", SlideJParams.N_STEPS, nSteps));
+        add(props, SlideJParams.SIGNED_DISTANCE_MAP, SlideJParams.DEFAULT_SIGNED_DISTANCE_MAP);
+        add(props, SlideJParams.THRESHOLD_BINS, SlideJParams.DEFAULT_THRESHOLD_BINS);
+        add(props, SlideJParams.THRESHOLD_SAMPLE_STRIDE, SlideJParams.DEFAULT_THRESHOLD_SAMPLE_STRIDE);
+        add(props, SlideJParams.TILE_SIZE, SlideJParams.DEFAULT_TILE_SIZE);
+        add(props, SlideJParams.TISSUE_MASK, SlideJParams.DEFAULT_TISSUE_MASK);
+        add(props, SlideJParams.TISSUE_MASK_BIN, SlideJParams.DEFAULT_TISSUE_MASK_BIN);
+        for (int i = 0; i < Math.max(nSteps, nChannels); i++) {
+            addStep(props, SlideJParams.CHANNEL_FOR_STEP, i, Integer.toString(i));
+            addStep(props, SlideJParams.THRESHOLD_CHANNEL, i, SlideJParams.DEFAULT_THRESHOLD_CHANNEL);
+            addStep(props, SlideJParams.THRESHOLD, i, SlideJParams.DEFAULT_THRESHOLD_METHOD);
+            addStep(props, SlideJParams.MAN_THRESH_VAL, i, "1.0");
+            addStep(props, SlideJParams.FILTER_RADIUS, i, SlideJParams.DEFAULT_FILTER_RADIUS);
+            addStep(props, SlideJParams.TOP_HAT, i, SlideJParams.DEFAULT_TH_CHANNEL);
+            addStep(props, SlideJParams.TH_FILTER_RADIUS, i, SlideJParams.DEFAULT_TH_FILTER_RADIUS);
+            addStep(props, SlideJParams.SKELETONISE, i, SlideJParams.DEFAULT_SKEL_CHANNEL);
+        }
+    }
+
+    private void add(SlideJParams props, String key, String defaultVal) {
+        lines.add(String.format("%s=%s", key, props.getProperty(key, defaultVal)));
+    }
+
+    private void addStep(SlideJParams props, String key, int step, String defaultVal) {
+        lines.add(String.format("%s %d=%s", key, step, props.getStepProperty(key, step, defaultVal)));
+    }
+
+    public void save(File dir) throws IOException {
+        Files.write(new File(dir, FILE_NAME).toPath(), lines, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * True if the fingerprint saved in the given output directory was produced from the same input and parameters.
+     */
+    public boolean matches(File dir) {
+        File saved = new File(dir, FILE_NAME);
+        if (!saved.exists()) return false;
+        try {
+            return lines.equals(Files.readAllLines(saved.toPath(), StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
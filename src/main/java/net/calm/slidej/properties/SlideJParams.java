@@ -44,20 +44,64 @@ public class SlideJParams extends Properties {
     public static final String DEFAULT_FILTER_RADIUS = "2.0";
     public static final String DEFAULT_TH_FILTER_RADIUS = "5.0";
     public static final String DEFAULT_THRESHOLD_METHOD = "Default";
+    public static final String THRESHOLD_BINS = "Threshold histogram bins";
+    public static final String DEFAULT_THRESHOLD_BINS = "256";
+    public static final String THRESHOLD_SAMPLE_STRIDE = "Threshold histogram sampling stride";
+    public static final String DEFAULT_THRESHOLD_SAMPLE_STRIDE = "1";
     public static final String THRESHOLD_CHANNEL = "Segment";
     public static final String DEFAULT_THRESHOLD_CHANNEL = "true";
     public static final String DEFAULT_TH_CHANNEL = "false";
     public static final String DEFAULT_SKEL_CHANNEL = "false";
     public static final String COLOC = "Colocalise";
     public static final String DO_3D = "3D Analysis";
+    public static final String FLOAT_MEDIAN = "Median estimation for non-integer channels";
+    public static final String DEFAULT_FLOAT_MEDIAN = "Approximate";
+    public static final String OBJECT_MEDIAN_BINS = "Object median histogram bins";
+    public static final String DEFAULT_OBJECT_MEDIAN_BINS = "128";
+    public static final String SIGNED_DISTANCE_MAP = "Signed distance map";
+    public static final String DEFAULT_SIGNED_DISTANCE_MAP = "false";
     public static final String NEIGHBOURHOOD_X = "Neighbourhood size x";
     public static final String NEIGHBOURHOOD_Y = "Neighbourhood size y";
     public static final String NEIGHBOURHOOD_Z = "Neighbourhood size z";
+    public static final String NEIGHBOURHOOD_STRIDE = "Neighbourhood stride";
+    public static final String DEFAULT_NEIGHBOURHOOD_STRIDE = "1.0";
     public static final int CELL_SIZE = 1000;
     public static final String OUTPUT_FILE_EXT = ".ome.btf";
     public static final String N_STEPS = "Number of steps";
     public static final String CHANNEL_FOR_STEP = "Channel for";
     public static final int CELL_IMG_DIM = 100;
+    public static final String STORAGE = "Intermediate image storage";
+    public static final String DEFAULT_STORAGE = "Memory";
+    public static final String CELL_DIMENSIONS = "Intermediate image cell size";
+    public static final String DEFAULT_CELL_DIMENSIONS = "Auto";
+    public static final String CACHE_SIZE = "Disk cache size (cells)";
+    public static final String DEFAULT_CACHE_SIZE = "1000";
+    public static final String CACHE_IO_THREADS = "Disk cache I/O threads";
+    public static final String DEFAULT_CACHE_IO_THREADS = "2";
+    public static final String TILE_SIZE = "Tile size";
+    public static final String DEFAULT_TILE_SIZE = "256";
+    public static final String STEP_MEMORY_BUDGET = "Step memory budget (MB)";
+    public static final String DEFAULT_STEP_MEMORY_BUDGET = "0";
+    public static final String WRITE_THREADS = "Output writer threads";
+    public static final String DEFAULT_WRITE_THREADS = "2";
+    public static final String WRITE_BUFFER = "Output write buffer (MB)";
+    public static final String DEFAULT_WRITE_BUFFER = "4096";
+    public static final String RESULTS_FORMAT = "Results format";
+    public static final String DEFAULT_RESULTS_FORMAT = "CSV";
+    public static final String OUTPUT_FORMAT = "Output image format";
+    public static final String DEFAULT_OUTPUT_FORMAT = "OME-TIFF";
+    public static final String CHUNK_SIZE = "Output chunk size";
+    public static final String DEFAULT_CHUNK_SIZE = "128";
+    public static final String LABEL_COMPRESSION = "Labelling compression";
+    public static final String DEFAULT_LABEL_COMPRESSION = "LZW";
+    public static final String MAP_COMPRESSION = "Distance map compression";
+    public static final String DEFAULT_MAP_COMPRESSION = "LZW";
+    public static final String PYRAMIDS = "Multiresolution pyramids";
+    public static final String DEFAULT_PYRAMIDS = "false";
+    public static final String TISSUE_MASK = "Tissue mask";
+    public static final String DEFAULT_TISSUE_MASK = "false";
+    public static final String TISSUE_MASK_BIN = "Tissue mask bin size";
+    public static final String DEFAULT_TISSUE_MASK_BIN = "16";
     public static final int X_AXIS = 0;
     public static final int Y_AXIS = 1;
     public static final int Z_AXIS = 2;
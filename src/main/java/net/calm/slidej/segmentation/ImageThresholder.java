@@ -25,43 +25,50 @@
 package net.calm.slidej.segmentation;
 
 import ij.process.AutoThresholder;
-import net.calm.slidej.properties.SlideJParams;
+import net.calm.slidej.concurrent.BlockProcessor;
+import net.calm.slidej.concurrent.TaskScheduler;
+import net.calm.slidej.io.ImgStorage;
+import net.calm.slidej.stats.MinMaxFinder;
 import net.calm.slidej.util.Utils;
-import net.imglib2.algorithm.stats.ComputeMinMax;
-import net.imglib2.algorithm.stats.Histogram;
-import net.imglib2.algorithm.stats.RealBinMapper;
+import net.imglib2.Interval;
 import net.imglib2.img.Img;
-import net.imglib2.img.cell.CellImgFactory;
 import net.imglib2.loops.LoopBuilder;
 import net.imglib2.type.logic.BitType;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.view.Views;
 
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 public class ImageThresholder {
+    public static final long DEFAULT_BLOCK_SIZE = 256;
     private final Img<UnsignedShortType> input;
     private final String method;
     private Img<BitType> output;
+    private int nBins = 256;
+    private long[] blockSize;
+    private List<Interval> tissueBlocks;
 
     public ImageThresholder(final Img<UnsignedShortType> input, Path tmpDir, final String method) {
         this.input = input;
         this.method = method;
-        this.output = (new CellImgFactory<>(new BitType(), SlideJParams.CELL_IMG_DIM)).create(input);
+        this.output = ImgStorage.create(new BitType(), input);
     }
 
     public ImageThresholder(final Img<UnsignedShortType> input) {
         this.input = input;
         this.method = "Manual";
-        this.output = (new CellImgFactory<>(new BitType(), SlideJParams.CELL_IMG_DIM)).create(input);
+        this.output = ImgStorage.create(new BitType(), input);
     }
 
-    public void threshold() {
-        UnsignedShortType min = new UnsignedShortType();
-        UnsignedShortType max = new UnsignedShortType();
-        ComputeMinMax.computeMinMax(input, min, max);
-        Histogram<UnsignedShortType> hist = new Histogram<>(new RealBinMapper<>(min, max, 256), input);
-        hist.process();
-        int threshBin = (new AutoThresholder()).getThreshold(method, hist.getHistogram());
+    /**
+     * Binarises with the threshold found from a histogram that has already been counted, e.g. by
+     * {@link TiledFilter#setHistogram} while the input was filtered.
+     */
+    public void threshold(MinMaxFinder finder) {
+        int threshBin = (new AutoThresholder()).getThreshold(method, finder.rebin(nBins));
 
 //        Method[] methods = ThresholdNamespace.class.getDeclaredMethods();
 //        Method threshMethod = null;
@@ -84,7 +91,7 @@ public class ImageThresholder {
 //            System.out.println(String.format("Could not threshold image: %s", e.toString()));
 //        }
 
-        thresholdImage(hist.getBinCenter(threshBin));
+        thresholdImage(new UnsignedShortType((int) Math.round(finder.getBinCenter(threshBin, nBins))));
 
 //        output = Thresholder.threshold(input, hist.getBinCenter(threshBin), true, Runtime.getRuntime().availableProcessors());
     }
@@ -96,7 +103,43 @@ public class ImageThresholder {
         fg.set(true);
         bg.set(false);
 
-        LoopBuilder.setImages(input, output).multiThreaded().forEachPixel((in, out) -> out.set(in.get() > threshold.getInteger() ? fg : bg));
+        List<Interval> blocks = tissueBlocks != null ? tissueBlocks : BlockProcessor.getBlocks(input, getBlockSize());
+        List<Runnable> tasks = new ArrayList<>();
+        for (Interval block : blocks) {
+            tasks.add(() -> LoopBuilder.setImages(Views.interval(input, block), Views.interval(output, block))
+                    .forEachPixel((in, out) -> out.set(in.get() > threshold.getInteger() ? fg : bg)));
+        }
+        TaskScheduler.runAll(tasks);
+    }
+
+    private long[] getBlockSize() {
+        if (blockSize != null) return blockSize;
+        long[] size = new long[input.numDimensions()];
+        Arrays.fill(size, DEFAULT_BLOCK_SIZE);
+        return size;
+    }
+
+    /**
+     * Sets the size of the blocks that are binarised in parallel, e.g. the tile size of the filter that produced the
+     * input.
+     */
+    public void setBlockSize(long[] blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Restricts the thresholding to blocks that hold tissue; the output is background elsewhere.
+     */
+    public void setTissueMask(TissueMask tissueMask, long[] blockSize) {
+        this.blockSize = blockSize;
+        tissueBlocks = new ArrayList<>();
+        for (Interval block : BlockProcessor.getBlocks(input, blockSize)) {
+            if (tissueMask.intersects(block)) tissueBlocks.add(block);
+        }
+    }
+
+    public void setNBins(int nBins) {
+        this.nBins = nBins;
     }
 
     public Img<BitType> getOutput() {
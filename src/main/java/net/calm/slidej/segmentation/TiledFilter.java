@@ -0,0 +1,128 @@
+/*
+ * Copyright (c)  2020, David J. Barry
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.calm.slidej.segmentation;
+
+import net.calm.slidej.concurrent.BlockProcessor;
+import net.calm.slidej.stats.MinMaxFinder;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.gauss3.Gauss3;
+import net.imglib2.algorithm.morphology.StructuringElements;
+import net.imglib2.algorithm.morphology.TopHat;
+import net.imglib2.algorithm.neighborhood.Shape;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import java.util.List;
+
+/**
+ * Gaussian (and optional top-hat) filtering of a channel, one tile at a time. Each tile is filtered into a small
+ * buffer that extends far enough beyond the tile for the top-hat opening to be exact, and only the tile core is
+ * written to the output, so no full-size intermediates are created. If a tissue mask is set, tiles that lie entirely
+ * outside tissue are skipped and left at zero.
+ * <p>
+ * With a known threshold the filtered tile is binarised straight away and the filtered image is never stored. When
+ * the threshold has to be found from the data, a histogram can be counted from each tile as it is filtered, so the
+ * filtered image is read only once more, to binarise it.
+ */
+public class TiledFilter {
+    private final double[] sigma;
+    private final int[] topHatSpan;
+    private final long[] tileSize;
+    private TissueMask tissueMask;
+    private MinMaxFinder histogram;
+
+    public TiledFilter(double[] sigma, int[] topHatSpan, long[] tileSize) {
+        this.sigma = sigma;
+        this.topHatSpan = topHatSpan;
+        this.tileSize = tileSize;
+    }
+
+    public long[] getHalo() {
+        long[] halo = new long[sigma.length];
+        if (topHatSpan != null) {
+            for (int d = 0; d < halo.length; d++) {
+                halo[d] = 2L * topHatSpan[d];
+            }
+        }
+        return halo;
+    }
+
+    public void filter(RandomAccessibleInterval<UnsignedShortType> input, RandomAccessibleInterval<UnsignedShortType> output) {
+        long[] halo = getHalo();
+        List<Shape> strel = topHatSpan != null ? StructuringElements.rectangle(topHatSpan) : null;
+        BlockProcessor.process(input, tileSize, tile -> {
+            if (tissueMask != null && !tissueMask.intersects(tile)) return;
+            RandomAccessibleInterval<UnsignedShortType> filtered = filterTile(input, tile, halo, strel);
+            if (histogram != null) histogram.process(filtered);
+            LoopBuilder.setImages(filtered, Views.interval(output, tile)).forEachPixel((in, out) -> out.set(in));
+        });
+    }
+
+    /**
+     * Filters each tile and writes voxels above the threshold to the output as foreground.
+     */
+    public void binarise(RandomAccessibleInterval<UnsignedShortType> input, RandomAccessibleInterval<BitType> output,
+                         int threshold) {
+        long[] halo = getHalo();
+        List<Shape> strel = topHatSpan != null ? StructuringElements.rectangle(topHatSpan) : null;
+        BlockProcessor.process(input, tileSize, tile -> {
+            if (tissueMask != null && !tissueMask.intersects(tile)) return;
+            LoopBuilder.setImages(filterTile(input, tile, halo, strel), Views.interval(output, tile))
+                    .forEachPixel((in, out) -> out.set(in.get() > threshold));
+        });
+    }
+
+    public void setTissueMask(TissueMask tissueMask) {
+        this.tissueMask = tissueMask;
+    }
+
+    /**
+     * Counts every filtered tile into the given histogram.
+     */
+    public void setHistogram(MinMaxFinder histogram) {
+        this.histogram = histogram;
+    }
+
+    private RandomAccessibleInterval<UnsignedShortType> filterTile(RandomAccessibleInterval<UnsignedShortType> input,
+                                                                Interval tile, long[] halo, List<Shape> strel) {
+        Interval buffered = BlockProcessor.expand(tile, halo, input);
+        Img<UnsignedShortType> buffer = ArrayImgs.unsignedShorts(Intervals.dimensionsAsLongArray(buffered));
+        Gauss3.gauss(sigma, Views.extendValue(input, new UnsignedShortType()),
+                Views.translate(buffer, buffered.minAsLongArray()));
+
+        Img<UnsignedShortType> filtered = buffer;
+        if (strel != null) {
+            filtered = TopHat.topHat(buffer, strel, 1);
+        }
+
+        return Views.interval(Views.translate(filtered, buffered.minAsLongArray()), tile);
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (c)  2020, David J. Barry
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.calm.slidej.segmentation;
+
+import ij.process.AutoThresholder;
+import net.calm.slidej.transform.Downsampler;
+import net.calm.slidej.util.Utils;
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converters;
+import net.imglib2.img.Img;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.view.Views;
+
+import java.util.Arrays;
+
+/**
+ * Coarse map of where a slide holds tissue. Every spatial axis is binned by averaging a strided sample of the voxels
+ * in each bin, each channel's bins are thresholded with Otsu's method, and a bin is tissue if it is above threshold in
+ * any channel. The mask is dilated by one bin so that neighbourhoods and tiles at the edge of the tissue are kept.
+ */
+public class TissueMask {
+    private static final int SAMPLES_PER_BIN = 4;
+    private static final int N_BINS = 256;
+
+    private final int cAxis;
+    private final long[] binSize;
+    private final long[] maskDims;
+    private final boolean[] mask;
+
+    private TissueMask(int cAxis, long[] binSize, long[] maskDims, boolean[] mask) {
+        this.cAxis = cAxis;
+        this.binSize = binSize;
+        this.maskDims = maskDims;
+        this.mask = mask;
+    }
+
+    /**
+     * @param bin approximate bin size, in voxels, along every spatial axis
+     */
+    public static <T extends RealType<T>> TissueMask compute(RandomAccessibleInterval<T> img, int cAxis, int bin) {
+        int nSpatial = img.numDimensions() - 1;
+        long[] strides = new long[nSpatial];
+        int[] factors = new int[nSpatial];
+        long[] binSize = new long[nSpatial];
+        for (int d = 0, i = 0; d < img.numDimensions(); d++) {
+            if (d == cAxis) continue;
+            long size = Math.max(1, Math.min(bin, img.dimension(d)));
+            strides[i] = Math.max(1, size / SAMPLES_PER_BIN);
+            factors[i] = (int) Math.max(1, size / strides[i]);
+            binSize[i] = strides[i] * factors[i];
+            i++;
+        }
+        long[] maskDims = null;
+        boolean[] mask = null;
+        boolean thresholded = false;
+        for (int c = 0; c < img.dimension(cAxis); c++) {
+            RandomAccessibleInterval<FloatType> sample = Converters.convert(
+                    Views.subsample(Views.zeroMin(Views.hyperSlice(img, cAxis, c)), strides),
+                    (in, out) -> out.setReal(in.getRealDouble()), new FloatType());
+            Img<FloatType> binned = Downsampler.downsample(sample, factors, false);
+            if (mask == null) {
+                maskDims = binned.dimensionsAsLongArray();
+                mask = new boolean[(int) binned.size()];
+            }
+            thresholded |= threshold(binned, maskDims, mask);
+        }
+        if (!thresholded) Arrays.fill(mask, true);
+        TissueMask tissueMask = new TissueMask(cAxis, binSize, maskDims, dilate(mask, maskDims));
+        Utils.timeStampOutput(String.format("%.1f%% of the volume is tissue.", 100.0 * tissueMask.getTissueFraction()));
+        return tissueMask;
+    }
+
+    /**
+     * Marks the bins that Otsu's method puts above threshold. Returns false if the channel is uniform.
+     */
+    private static boolean threshold(Img<FloatType> binned, long[] maskDims, boolean[] mask) {
+        float min = Float.MAX_VALUE;
+        float max = -Float.MAX_VALUE;
+        for (FloatType v : binned) {
+            min = Math.min(min, v.get());
+            max = Math.max(max, v.get());
+        }
+        if (!(max > min)) return false;
+        double width = (max - min) / (N_BINS - 1.0);
+        int[] histogram = new int[N_BINS];
+        for (FloatType v : binned) {
+            histogram[(int) ((v.get() - min) / width)]++;
+        }
+        int threshold = (new AutoThresholder()).getThreshold(AutoThresholder.Method.Otsu, histogram);
+        long[] pos = new long[maskDims.length];
+        Cursor<FloatType> cursor = Views.flatIterable(binned).localizingCursor();
+        while (cursor.hasNext()) {
+            float v = cursor.next().get();
+            if ((int) ((v - min) / width) > threshold) {
+                cursor.localize(pos);
+                mask[(int) IntervalIndexer.positionToIndex(pos, maskDims)] = true;
+            }
+        }
+        return true;
+    }
+
+    private static boolean[] dilate(boolean[] mask, long[] dims) {
+        boolean[] dilated = mask.clone();
+        long[] pos = new long[dims.length];
+        long[] lo = new long[dims.length];
+        long[] hi = new long[dims.length];
+        for (int index = 0; index < mask.length; index++) {
+            if (!mask[index]) continue;
+            IntervalIndexer.indexToPosition(index, dims, pos);
+            for (int d = 0; d < dims.length; d++) {
+                lo[d] = Math.max(0, pos[d] - 1);
+                hi[d] = Math.min(dims[d] - 1, pos[d] + 1);
+            }
+            forEach(lo, hi, dims, i -> {
+                dilated[i] = true;
+                return false;
+            });
+        }
+        return dilated;
+    }
+
+    private interface IndexVisitor {
+        boolean visit(int index);
+    }
+
+    /**
+     * Visits every mask index in [lo, hi] until the visitor returns true.
+     */
+    private static boolean forEach(long[] lo, long[] hi, long[] dims, IndexVisitor visitor) {
+        long[] p = lo.clone();
+        while (true) {
+            if (visitor.visit((int) IntervalIndexer.positionToIndex(p, dims))) return true;
+            int d = 0;
+            for (; d < p.length; d++) {
+                if (++p[d] <= hi[d]) break;
+                p[d] = lo[d];
+            }
+            if (d == p.length) return false;
+        }
+    }
+
+    /**
+     * True if any part of the interval lies in tissue. The interval may span the spatial axes only, or all axes of the
+     * image the mask was computed from, in which case the channel axis is ignored.
+     */
+    public boolean intersects(Interval interval) {
+        int n = maskDims.length;
+        boolean hasChannels = interval.numDimensions() > n;
+        long[] lo = new long[n];
+        long[] hi = new long[n];
+        for (int d = 0, i = 0; d < interval.numDimensions(); d++) {
+            if (hasChannels && d == cAxis) continue;
+            lo[i] = Math.min(maskDims[i] - 1, Math.max(0, interval.min(d) / binSize[i]));
+            hi[i] = Math.min(maskDims[i] - 1, Math.max(0, interval.max(d) / binSize[i]));
+            i++;
+        }
+        return forEach(lo, hi, maskDims, i -> mask[i]);
+    }
+
+    public double getTissueFraction() {
+        int count = 0;
+        for (boolean b : mask) {
+            if (b) count++;
+        }
+        return mask.length > 0 ? (double) count / mask.length : 1.0;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c)  2020, David J. Barry
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.calm.slidej.server;
+
+import net.calm.slidej.SlideJ;
+import net.calm.slidej.utils.StageTimings;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * A single image submitted to a {@link JobServer}.
+ */
+public class Job implements Runnable {
+
+    public enum State {QUEUED, RUNNING, DONE, FAILED}
+
+    private final int id;
+    private final File file;
+    private final int series;
+    private final File props;
+    private final Path tmpDir;
+    private final int[] neighbourhoodSize;
+    private final File previousOutput;
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private volatile State state = State.QUEUED;
+    private volatile StageTimings timings;
+    private volatile String error;
+
+    /**
+     * @param previousOutput output directory of an earlier run whose segmentation may be reused, or null
+     */
+    public Job(int id, File file, int series, File props, Path tmpDir, int[] neighbourhoodSize, File previousOutput) {
+        this.id = id;
+        this.file = file;
+        this.series = series;
+        this.props = props;
+        this.tmpDir = tmpDir;
+        this.neighbourhoodSize = neighbourhoodSize;
+        this.previousOutput = previousOutput;
+    }
+
+    @Override
+    public void run() {
+        state = State.RUNNING;
+        try {
+            SlideJ s = new SlideJ(props, tmpDir);
+            timings = s.getTimings();
+            s.setPreviousOutput(previousOutput);
+            if (s.load(file, series, neighbourhoodSize)) {
+                state = State.DONE;
+            } else {
+                error = String.join("; ", s.getFailures());
+                state = State.FAILED;
+            }
+        } catch (Throwable t) {
+            error = t.toString();
+            state = State.FAILED;
+        } finally {
+            finished.countDown();
+        }
+    }
+
+    public void await() throws InterruptedException {
+        finished.await();
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * One-line, tab-separated summary: id, state, input, current stage and the time spent in each stage so far.
+     */
+    public String describe() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(id).append('\t').append(state).append('\t').append(file.getAbsolutePath())
+                .append('\t').append(series).append('\t').append(Arrays.toString(neighbourhoodSize));
+        StageTimings t = timings;
+        if (t != null) {
+            String stage = t.getCurrentStage();
+            if (stage != null) sb.append("\tstage=").append(stage);
+            for (Map.Entry<String, Double> e : t.getSeconds().entrySet()) {
+                sb.append(String.format("\t%s=%.1fs", e.getKey(), e.getValue()));
+            }
+        }
+        if (error != null) sb.append("\terror=").append(error.replace('\t', ' ').replace('\n', ' '));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c)  2020, David J. Barry
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.calm.slidej.server;
+
+import net.calm.slidej.utils.Utils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+/**
+ * Submits an image to a running {@link JobServer} and waits for it to finish, so that the server can be used in place
+ * of launching a new JVM per image.
+ */
+public class JobClient {
+
+    /**
+     * @return true if the job completed successfully
+     */
+    public static boolean submitAndWait(int port, File file, int series, File props, Path tmpDir,
+                                        int[] neighbourhoodSize, File previousOutput) throws IOException {
+        StringBuilder neighbourhood = new StringBuilder();
+        for (int n : neighbourhoodSize) {
+            if (neighbourhood.length() > 0) neighbourhood.append(',');
+            neighbourhood.append(n);
+        }
+        String submit = String.join(JobServer.SEPARATOR, "SUBMIT", file.getAbsolutePath(), String.valueOf(series),
+                props == null ? "-" : props.getAbsolutePath(),
+                tmpDir == null ? "-" : tmpDir.toAbsolutePath().toString(), neighbourhood.toString(),
+                previousOutput == null ? "-" : previousOutput.getAbsolutePath());
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true)) {
+            String id = expectOk(request(out, in, submit));
+            Utils.timeStampOutput(String.format("Submitted job %s", id));
+            String status = expectOk(request(out, in, String.join(JobServer.SEPARATOR, "WAIT", id)));
+            Utils.timeStampOutput(status);
+            String[] fields = status.split(JobServer.SEPARATOR);
+            return fields.length > 1 && fields[1].equals(Job.State.DONE.toString());
+        }
+    }
+
+    private static String request(PrintWriter out, BufferedReader in, String request) throws IOException {
+        out.println(request);
+        String response = in.readLine();
+        if (response == null) throw new IOException("Job server closed the connection.");
+        return response;
+    }
+
+    private static String expectOk(String response) throws IOException {
+        if (!response.startsWith("OK")) throw new IOException(response);
+        return response.substring(2).trim();
+    }
+}
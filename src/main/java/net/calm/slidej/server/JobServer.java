@@ -0,0 +1,192 @@
+/*
+ * Copyright (c)  2020, David J. Barry
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.calm.slidej.server;
+
+import net.calm.iaclasslibrary.UtilClasses.GenUtils;
+import net.calm.slidej.utils.Utils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps one JVM, with its SciJava context, thread pools and JIT-compiled code, alive between images. Jobs are accepted
+ * over a socket bound to the loopback interface and run at most {@code concurrency} at a time. Storage settings for
+ * intermediate images are global to the JVM, so jobs run concurrently should share them.
+ * <p>
+ * The protocol is line based, with tab-separated fields so that paths may contain spaces:
+ * <pre>
+ * SUBMIT  file  series  properties|-  tmpDir|-  x,y,z  [previousOutput|-]  -&gt; OK id
+ * STATUS  id                                                              -&gt; OK status
+ * WAIT    id                                                              -&gt; OK status, once the job has finished
+ * LIST                                                                    -&gt; one status per line, then END
+ * SHUTDOWN                                                                -&gt; OK; queued jobs are completed first
+ * </pre>
+ * previousOutput is the output directory of an earlier run whose segmentation may be reused, as with the -r option.
+ * Failures are reported as {@code ERROR message}. A status is the output of {@link Job#describe()}.
+ */
+public class JobServer {
+    public static final int DEFAULT_PORT = 7373;
+    public static final String SEPARATOR = "\t";
+
+    private final int port;
+    private final ExecutorService jobExecutor;
+    private final ExecutorService connectionExecutor = Executors.newCachedThreadPool();
+    private final Map<Integer, Job> jobs = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger(1);
+    private volatile boolean running = true;
+    private ServerSocket serverSocket;
+
+    public JobServer(int port, int concurrency) {
+        this.port = port;
+        this.jobExecutor = Executors.newFixedThreadPool(Math.max(1, concurrency));
+    }
+
+    /**
+     * Accepts connections until a SHUTDOWN request is received, then waits for outstanding jobs to finish.
+     */
+    public void run() throws IOException {
+        serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        Utils.timeStampOutput(String.format("Listening for jobs on %s", serverSocket.getLocalSocketAddress()));
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                connectionExecutor.submit(() -> handle(socket));
+            } catch (SocketException e) {
+                if (running) throw e;
+            }
+        }
+        connectionExecutor.shutdown();
+        jobExecutor.shutdown();
+        try {
+            jobExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Utils.timeStampOutput("Job server stopped.");
+    }
+
+    private void handle(Socket socket) {
+        try (Socket s = socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8), true)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.trim().isEmpty()) continue;
+                try {
+                    if (!respond(line.split(SEPARATOR), out)) break;
+                } catch (RuntimeException | InterruptedException e) {
+                    out.println(String.format("ERROR %s", e));
+                }
+            }
+        } catch (IOException e) {
+            GenUtils.logError(e, "Job server connection failed.");
+        }
+    }
+
+    private boolean respond(String[] request, PrintWriter out) throws InterruptedException {
+        switch (request[0].trim().toUpperCase()) {
+            case "SUBMIT":
+                if (request.length < 6) {
+                    out.println("ERROR SUBMIT requires file, series, properties, tmpDir and neighbourhood");
+                    return true;
+                }
+                if (!running) {
+                    out.println("ERROR Server is shutting down");
+                    return true;
+                }
+                Job job = new Job(nextId.getAndIncrement(), new File(request[1]), Integer.parseInt(request[2].trim()),
+                        request[3].equals("-") ? null : new File(request[3]),
+                        Paths.get(request[4].equals("-") ? System.getProperty("java.io.tmpdir") : request[4]),
+                        parseNeighbourhood(request[5]),
+                        request.length < 7 || request[6].equals("-") ? null : new File(request[6]));
+                jobs.put(job.getId(), job);
+                jobExecutor.submit(job);
+                Utils.timeStampOutput(String.format("Queued job %s", job.describe()));
+                out.println(String.format("OK %d", job.getId()));
+                return true;
+            case "STATUS":
+                out.println(String.format("OK %s", getJob(request).describe()));
+                return true;
+            case "WAIT":
+                Job waiting = getJob(request);
+                waiting.await();
+                out.println(String.format("OK %s", waiting.describe()));
+                return true;
+            case "LIST":
+                for (Job j : jobs.values()) {
+                    out.println(j.describe());
+                }
+                out.println("END");
+                return true;
+            case "SHUTDOWN":
+                running = false;
+                out.println("OK");
+                try {
+                    serverSocket.close();
+                } catch (IOException e) {
+                    GenUtils.logError(e, "Failed to close job server socket.");
+                }
+                return false;
+            default:
+                out.println(String.format("ERROR Unknown request %s", request[0]));
+                return true;
+        }
+    }
+
+    private Job getJob(String[] request) {
+        if (request.length < 2) throw new IllegalArgumentException("No job id given");
+        Job job = jobs.get(Integer.parseInt(request[1].trim()));
+        if (job == null) throw new IllegalArgumentException(String.format("No job with id %s", request[1]));
+        return job;
+    }
+
+    static int[] parseNeighbourhood(String s) {
+        String[] neighbourhood = s.split(",");
+        int[] neighbourhoodSize = new int[neighbourhood.length];
+        for (int j = 0; j < neighbourhood.length; j++) {
+            neighbourhoodSize[j] = Integer.parseInt(neighbourhood[j].trim());
+        }
+        if (neighbourhoodSize.length < 3) {
+            neighbourhoodSize = new int[]{neighbourhoodSize[0], neighbourhoodSize[0], neighbourhoodSize[0]};
+        }
+        return neighbourhoodSize;
+    }
+}
@@ -0,0 +1,405 @@
+/*
+ * Copyright (c)  2020, David J. Barry
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.calm.slidej.stats;
+
+import java.util.Arrays;
+
+/**
+ * Summary statistics for every label of a labelled image, accumulated in a single pass over the voxels. All state is
+ * held in primitive arrays, so the cost per voxel is constant regardless of the number of objects. Each label gets a
+ * slot in those arrays when its first value is added, so memory grows with the number of labels actually seen rather
+ * than with the highest label.
+ * Medians are taken from a fixed number of histogram bins per label, which are moved, and widened by factors of two,
+ * to follow the range of values seen - for integer data the median is exact as long as the range of values within an
+ * object is smaller than the number of bins. Otherwise, and for non-integer data, the median is approximate: it is
+ * the centre of the bin holding the middle value, so the error grows with the range of values within the object and
+ * shrinks as the number of bins goes up.
+ * <p>
+ * Statistics gathered separately, e.g. one instance per worker thread, can be combined with {@link #merge}.
+ */
+public class LabelStatistics {
+    private static final int INITIAL_CAPACITY = 64;
+    private static final double FLOAT_BIN_WIDTH = 1.0 / 1024.0;
+
+    private final int nBins;
+    private final boolean integerValues;
+    private final int[] binBuffer;
+    private int capacity;
+    private int nSlots;
+    private int maxLabel;
+    private int[] slots;
+    private int[] slotLabels;
+    private long[] n;
+    private double[] mean;
+    private double[] m2;
+    private double[] m3;
+    private double[] m4;
+    private double[] sum;
+    private double[] sumSq;
+    private double[] sumLogs;
+    private double[] product;
+    private double[] min;
+    private double[] max;
+    private double[] binStart;
+    private double[] binWidth;
+    private int[] histogram;
+
+    public LabelStatistics(int nBins, boolean integerValues) {
+        this.nBins = nBins;
+        this.integerValues = integerValues;
+        this.binBuffer = new int[nBins];
+        this.capacity = 0;
+        this.maxLabel = 0;
+        this.slots = new int[0];
+        this.slotLabels = new int[0];
+        this.n = new long[0];
+        this.mean = new double[0];
+        this.m2 = new double[0];
+        this.m3 = new double[0];
+        this.m4 = new double[0];
+        this.sum = new double[0];
+        this.sumSq = new double[0];
+        this.sumLogs = new double[0];
+        this.product = new double[0];
+        this.min = new double[0];
+        this.max = new double[0];
+        this.binStart = new double[0];
+        this.binWidth = new double[0];
+        this.histogram = new int[0];
+        grow(INITIAL_CAPACITY);
+    }
+
+    private void grow(int minCapacity) {
+        int newCapacity = Math.max(minCapacity, 2 * capacity);
+        slotLabels = Arrays.copyOf(slotLabels, newCapacity);
+        n = Arrays.copyOf(n, newCapacity);
+        mean = Arrays.copyOf(mean, newCapacity);
+        m2 = Arrays.copyOf(m2, newCapacity);
+        m3 = Arrays.copyOf(m3, newCapacity);
+        m4 = Arrays.copyOf(m4, newCapacity);
+        sum = Arrays.copyOf(sum, newCapacity);
+        sumSq = Arrays.copyOf(sumSq, newCapacity);
+        sumLogs = Arrays.copyOf(sumLogs, newCapacity);
+        product = Arrays.copyOf(product, newCapacity);
+        min = Arrays.copyOf(min, newCapacity);
+        max = Arrays.copyOf(max, newCapacity);
+        binStart = Arrays.copyOf(binStart, newCapacity);
+        binWidth = Arrays.copyOf(binWidth, newCapacity);
+        histogram = Arrays.copyOf(histogram, newCapacity * nBins);
+        capacity = newCapacity;
+    }
+
+    /**
+     * Returns the slot of the label, or -1 if no value has been added for it.
+     */
+    private int slotOf(int label) {
+        return label < slots.length ? slots[label] - 1 : -1;
+    }
+
+    private int addSlot(int label) {
+        if (label >= slots.length) slots = Arrays.copyOf(slots, Math.max(label + 1, 2 * slots.length));
+        if (slots[label] > 0) return slots[label] - 1;
+        if (nSlots >= capacity) grow(nSlots + 1);
+        if (label > maxLabel) maxLabel = label;
+        slotLabels[nSlots] = label;
+        slots[label] = ++nSlots;
+        return nSlots - 1;
+    }
+
+    public void addValue(int label, double x) {
+        int slot = addSlot(label);
+        long n1 = n[slot]++;
+        long nl = n1 + 1;
+        double delta = x - mean[slot];
+        double deltaN = delta / nl;
+        double deltaN2 = deltaN * deltaN;
+        double term1 = delta * deltaN * n1;
+        mean[slot] += deltaN;
+        m4[slot] += term1 * deltaN2 * (nl * nl - 3 * nl + 3) + 6.0 * deltaN2 * m2[slot] - 4.0 * deltaN * m3[slot];
+        m3[slot] += term1 * deltaN * (nl - 2) - 3.0 * deltaN * m2[slot];
+        m2[slot] += term1;
+
+        sum[slot] += x;
+        sumSq[slot] += x * x;
+        sumLogs[slot] += Math.log(x);
+        if (n1 == 0) {
+            product[slot] = x;
+            min[slot] = x;
+            max[slot] = x;
+            binWidth[slot] = integerValues ? 1.0 : FLOAT_BIN_WIDTH;
+            binStart[slot] = Double.isInfinite(x) || Double.isNaN(x) ? 0.0 : Math.floor(x / binWidth[slot]) * binWidth[slot];
+        } else {
+            product[slot] *= x;
+            if (x < min[slot]) min[slot] = x;
+            if (x > max[slot]) max[slot] = x;
+        }
+        if (!Double.isInfinite(x) && !Double.isNaN(x)) histogram[slot * nBins + getBin(slot, x)]++;
+    }
+
+    /**
+     * Adds all values seen by another instance with the same number of bins, as if they had been added to this one.
+     */
+    public void merge(LabelStatistics other) {
+        if (other.nBins != nBins) throw new IllegalArgumentException("Cannot merge statistics with different bins.");
+        for (int otherSlot = 0; otherSlot < other.nSlots; otherSlot++) {
+            long nb = other.n[otherSlot];
+            if (nb < 1) continue;
+            int slot = addSlot(other.slotLabels[otherSlot]);
+            long na = n[slot];
+            if (na < 1) {
+                copySlot(other, slot, otherSlot);
+                continue;
+            }
+            double nl = na + nb;
+            double delta = other.mean[otherSlot] - mean[slot];
+            double delta2 = delta * delta;
+            double m2a = m2[slot];
+            double m3a = m3[slot];
+            mean[slot] += delta * nb / nl;
+            m4[slot] += other.m4[otherSlot] + delta2 * delta2 * na * nb * (na * na - na * nb + nb * nb) / (nl * nl * nl)
+                    + 6.0 * delta2 * (na * na * other.m2[otherSlot] + nb * nb * m2a) / (nl * nl)
+                    + 4.0 * delta * (na * other.m3[otherSlot] - nb * m3a) / nl;
+            m3[slot] += other.m3[otherSlot] + delta2 * delta * na * nb * (na - nb) / (nl * nl)
+                    + 3.0 * delta * (na * other.m2[otherSlot] - nb * m2a) / nl;
+            m2[slot] += other.m2[otherSlot] + delta2 * na * nb / nl;
+            n[slot] = na + nb;
+            sum[slot] += other.sum[otherSlot];
+            sumSq[slot] += other.sumSq[otherSlot];
+            sumLogs[slot] += other.sumLogs[otherSlot];
+            product[slot] *= other.product[otherSlot];
+            min[slot] = Math.min(min[slot], other.min[otherSlot]);
+            max[slot] = Math.max(max[slot], other.max[otherSlot]);
+            mergeHistogram(other, slot, otherSlot);
+        }
+    }
+
+    private void copySlot(LabelStatistics other, int slot, int otherSlot) {
+        n[slot] = other.n[otherSlot];
+        mean[slot] = other.mean[otherSlot];
+        m2[slot] = other.m2[otherSlot];
+        m3[slot] = other.m3[otherSlot];
+        m4[slot] = other.m4[otherSlot];
+        sum[slot] = other.sum[otherSlot];
+        sumSq[slot] = other.sumSq[otherSlot];
+        sumLogs[slot] = other.sumLogs[otherSlot];
+        product[slot] = other.product[otherSlot];
+        min[slot] = other.min[otherSlot];
+        max[slot] = other.max[otherSlot];
+        binStart[slot] = other.binStart[otherSlot];
+        binWidth[slot] = other.binWidth[otherSlot];
+        System.arraycopy(other.histogram, otherSlot * nBins, histogram, slot * nBins, nBins);
+    }
+
+    /**
+     * Bin widths are powers of two times the same base width and bin starts are multiples of the width, so both
+     * histograms fit exactly into bins of the larger width, widened until the combined range of values fits - the same
+     * rule {@link #addValue} follows.
+     */
+    private void mergeHistogram(LabelStatistics other, int slot, int otherSlot) {
+        double newWidth = Math.max(binWidth[slot], other.binWidth[otherSlot]);
+        double low = Double.isInfinite(min[slot]) || Double.isNaN(min[slot])
+                ? Math.min(binStart[slot], other.binStart[otherSlot]) : min[slot];
+        double high = Double.isInfinite(max[slot]) || Double.isNaN(max[slot])
+                ? Math.max(binStart[slot] + (nBins - 1) * binWidth[slot],
+                other.binStart[otherSlot] + (nBins - 1) * other.binWidth[otherSlot]) : max[slot];
+        double newStart = Math.floor(low / newWidth) * newWidth;
+        while (high >= newStart + nBins * newWidth) {
+            newWidth *= 2.0;
+            newStart = Math.floor(low / newWidth) * newWidth;
+        }
+
+        int offset = slot * nBins;
+        Arrays.fill(binBuffer, 0);
+        rebin(histogram, offset, binStart[slot], binWidth[slot], newStart, newWidth);
+        rebin(other.histogram, otherSlot * nBins, other.binStart[otherSlot], other.binWidth[otherSlot], newStart, newWidth);
+        System.arraycopy(binBuffer, 0, histogram, offset, nBins);
+        binStart[slot] = newStart;
+        binWidth[slot] = newWidth;
+    }
+
+    private void rebin(int[] source, int offset, double start, double width, double newStart, double newWidth) {
+        for (int b = 0; b < nBins; b++) {
+            if (source[offset + b] > 0) {
+                int index = Math.min(nBins - 1, (int) ((start + b * width - newStart) / newWidth));
+                binBuffer[index] += source[offset + b];
+            }
+        }
+    }
+
+    private int getBin(int slot, double x) {
+        double start = binStart[slot];
+        double width = binWidth[slot];
+        if (x >= start && x < start + nBins * width) {
+            return (int) ((x - start) / width);
+        }
+        double newWidth = width;
+        double newStart = Math.floor(min[slot] / newWidth) * newWidth;
+        while (max[slot] >= newStart + nBins * newWidth) {
+            newWidth *= 2.0;
+            newStart = Math.floor(min[slot] / newWidth) * newWidth;
+        }
+
+        int offset = slot * nBins;
+        Arrays.fill(binBuffer, 0);
+        for (int b = 0; b < nBins; b++) {
+            if (histogram[offset + b] > 0) {
+                binBuffer[(int) ((start + b * width - newStart) / newWidth)] += histogram[offset + b];
+            }
+        }
+        System.arraycopy(binBuffer, 0, histogram, offset, nBins);
+        binStart[slot] = newStart;
+        binWidth[slot] = newWidth;
+        return Math.min(nBins - 1, (int) ((x - newStart) / newWidth));
+    }
+
+    /**
+     * Highest label for which a value has been added.
+     */
+    public int getMaxLabel() {
+        return maxLabel;
+    }
+
+    public long getN(int label) {
+        int slot = slotOf(label);
+        return slot < 0 ? 0 : n[slot];
+    }
+
+    public double getMean(int label) {
+        int slot = slotOf(label);
+        return getN(label) > 0 ? mean[slot] : Double.NaN;
+    }
+
+    public double getMedian(int label) {
+        int slot = slotOf(label);
+        long count = getN(label);
+        if (count == 0) return Double.NaN;
+        long lower = (count - 1) / 2;
+        long upper = count / 2;
+        long cumulative = 0;
+        double lowerValue = Double.NaN;
+        int offset = slot * nBins;
+        for (int b = 0; b < nBins; b++) {
+            cumulative += histogram[offset + b];
+            if (Double.isNaN(lowerValue) && cumulative > lower) {
+                lowerValue = getBinValue(slot, b);
+            }
+            if (cumulative > upper) {
+                return (lowerValue + getBinValue(slot, b)) / 2.0;
+            }
+        }
+        return lowerValue;
+    }
+
+    private double getBinValue(int slot, int bin) {
+        if (integerValues && binWidth[slot] == 1.0) return binStart[slot] + bin;
+        return binStart[slot] + (bin + 0.5) * binWidth[slot];
+    }
+
+    public double getMin(int label) {
+        int slot = slotOf(label);
+        return getN(label) > 0 ? min[slot] : Double.NaN;
+    }
+
+    public double getMax(int label) {
+        int slot = slotOf(label);
+        return getN(label) > 0 ? max[slot] : Double.NaN;
+    }
+
+    public double getSum(int label) {
+        int slot = slotOf(label);
+        return getN(label) > 0 ? sum[slot] : Double.NaN;
+    }
+
+    public double getSumsq(int label) {
+        int slot = slotOf(label);
+        return getN(label) > 0 ? sumSq[slot] : Double.NaN;
+    }
+
+    public double getProduct(int label) {
+        int slot = slotOf(label);
+        return getN(label) > 0 ? product[slot] : Double.NaN;
+    }
+
+    public double getSecondMoment(int label) {
+        int slot = slotOf(label);
+        return getN(label) > 0 ? m2[slot] : Double.NaN;
+    }
+
+    public double getVariance(int label) {
+        int slot = slotOf(label);
+        long count = getN(label);
+        if (count == 0) return Double.NaN;
+        if (count == 1) return 0.0;
+        return m2[slot] / (count - 1);
+    }
+
+    public double getPopulationVariance(int label) {
+        int slot = slotOf(label);
+        long count = getN(label);
+        return count > 0 ? m2[slot] / count : Double.NaN;
+    }
+
+    public double getStandardDeviation(int label) {
+        return Math.sqrt(getVariance(label));
+    }
+
+    public double getQuadraticMean(int label) {
+        int slot = slotOf(label);
+        long count = getN(label);
+        return count > 0 ? Math.sqrt(sumSq[slot] / count) : Double.NaN;
+    }
+
+    public double getGeometricMean(int label) {
+        int slot = slotOf(label);
+        long count = getN(label);
+        return count > 0 ? Math.exp(sumLogs[slot] / count) : Double.NaN;
+    }
+
+    /**
+     * Bias-corrected sample skewness, as reported by Apache Commons Math.
+     */
+    public double getSkewness(int label) {
+        int slot = slotOf(label);
+        long count = getN(label);
+        if (count < 3) return Double.NaN;
+        double variance = m2[slot] / (count - 1);
+        if (variance < 10E-20) return 0.0;
+        return (count * m3[slot]) / ((count - 1.0) * (count - 2.0) * Math.sqrt(variance) * variance);
+    }
+
+    /**
+     * Bias-corrected sample excess kurtosis, as reported by Apache Commons Math.
+     */
+    public double getKurtosis(int label) {
+        int slot = slotOf(label);
+        long count = getN(label);
+        if (count <= 3) return Double.NaN;
+        double variance = m2[slot] / (count - 1);
+        if (variance < 10E-20) return 0.0;
+        double nd = count;
+        return (nd * (nd + 1) * m4[slot]) / ((nd - 1) * (nd - 2) * (nd - 3) * variance * variance)
+                - (3.0 * (nd - 1) * (nd - 1)) / ((nd - 2) * (nd - 3));
+    }
+}
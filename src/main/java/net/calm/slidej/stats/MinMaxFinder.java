@@ -24,5 +24,113 @@
 
 package net.calm.slidej.stats;
 
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.view.Views;
+
+import java.util.List;
+
+/**
+ * Finds the minimum, maximum and full-resolution (65536-bin) histogram of an integer image in one multithreaded
+ * pass. Each chunk of the image is counted into its own histogram and the chunk histograms are summed afterwards.
+ * {@link #process} adds to the histogram and may be called concurrently, e.g. once per tile.
+ */
 public class MinMaxFinder {
+    public static final int N_BINS = 65536;
+    private final int sampleStride;
+    private final long[] histogram = new long[N_BINS];
+    private long count;
+    private int min;
+    private int max;
+
+    public MinMaxFinder() {
+        this(1);
+    }
+
+    /**
+     * @param sampleStride only every sampleStride-th voxel in x and y is counted
+     */
+    public MinMaxFinder(int sampleStride) {
+        this.sampleStride = Math.max(1, sampleStride);
+    }
+
+    public <T extends IntegerType<T>> void process(RandomAccessibleInterval<T> input) {
+        RandomAccessibleInterval<T> sample = input;
+        if (sampleStride > 1) {
+            long[] steps = new long[input.numDimensions()];
+            for (int d = 0; d < steps.length; d++) {
+                steps[d] = d < 2 ? sampleStride : 1;
+            }
+            sample = Views.subsample(input, steps);
+        }
+
+        List<long[]> chunkHistograms = LoopBuilder.setImages(sample).multiThreaded().forEachChunk(chunk -> {
+            long[] chunkHistogram = new long[N_BINS];
+            chunk.forEachPixel(pixel -> chunkHistogram[pixel.getInteger()]++);
+            return chunkHistogram;
+        });
+
+        add(chunkHistograms);
+    }
+
+    private synchronized void add(List<long[]> chunkHistograms) {
+        for (long[] chunkHistogram : chunkHistograms) {
+            for (int b = 0; b < N_BINS; b++) {
+                histogram[b] += chunkHistogram[b];
+            }
+        }
+
+        count = 0;
+        min = -1;
+        max = -1;
+        for (int b = 0; b < N_BINS; b++) {
+            if (histogram[b] > 0) {
+                if (min < 0) min = b;
+                max = b;
+                count += histogram[b];
+            }
+        }
+    }
+
+    /**
+     * Rebins the histogram into nBins bins spanning [min, max], with the lowest and highest bins centred on min and
+     * max respectively.
+     */
+    public synchronized int[] rebin(int nBins) {
+        int[] rebinned = new int[nBins];
+        if (count < 1) return rebinned;
+        double binWidth = getBinWidth(nBins);
+        for (int b = min; b <= max; b++) {
+            if (histogram[b] < 1) continue;
+            int index = binWidth > 0.0 ? (int) ((b - min + binWidth / 2.0) / binWidth) : 0;
+            index = Math.min(Math.max(index, 0), nBins - 1);
+            rebinned[index] = (int) Math.min(Integer.MAX_VALUE, (long) rebinned[index] + histogram[b]);
+        }
+        return rebinned;
+    }
+
+    public synchronized double getBinCenter(int bin, int nBins) {
+        return min + bin * getBinWidth(nBins);
+    }
+
+    private double getBinWidth(int nBins) {
+        return nBins > 1 ? (max - min) / (nBins - 1.0) : 0.0;
+    }
+
+    public long[] getHistogram() {
+        return histogram;
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized int getMin() {
+        return min;
+    }
+
+    public synchronized int getMax() {
+        return max;
+    }
 }
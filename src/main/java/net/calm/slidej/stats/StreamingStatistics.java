@@ -0,0 +1,301 @@
+/*
+ * Copyright (c)  2020, David J. Barry
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.calm.slidej.stats;
+
+import org.apache.commons.math3.stat.descriptive.rank.PSquarePercentile;
+import org.apache.commons.math3.stat.descriptive.rank.Percentile;
+import org.apache.commons.math3.util.ResizableDoubleArray;
+
+import java.util.Arrays;
+
+/**
+ * Fixed-memory accumulator that produces every summary statistic reported by the analysers from a single pass over
+ * the data. Central moments are updated incrementally, so no voxel values are retained unless an exact median is
+ * requested for non-integer data.
+ */
+public class StreamingStatistics {
+
+    public enum MedianMode {
+        /**
+         * Exact median from a 65536-bin histogram - values must be integers in the range [0, 65535].
+         */
+        HISTOGRAM,
+        /**
+         * P-square estimate of the median using constant memory.
+         */
+        APPROXIMATE,
+        /**
+         * Exact median from the stored values.
+         */
+        EXACT
+    }
+
+    public static final int N_BINS = 65536;
+
+    private final MedianMode medianMode;
+    private final long[] histogram;
+    private final PSquarePercentile pSquare;
+    private final ResizableDoubleArray values;
+    private long n;
+    private double mean;
+    private double m2;
+    private double m3;
+    private double m4;
+    private double sum;
+    private double sumSq;
+    private double sumLogs;
+    private double sumInverses;
+    private double product;
+    private double min;
+    private double max;
+    private int minBin;
+    private int maxBin;
+    private boolean histogramValid;
+
+    public StreamingStatistics(MedianMode medianMode) {
+        this.medianMode = medianMode;
+        this.histogram = medianMode == MedianMode.HISTOGRAM ? new long[N_BINS] : null;
+        this.pSquare = medianMode == MedianMode.APPROXIMATE ? new PSquarePercentile(50.0) : null;
+        this.values = medianMode == MedianMode.EXACT ? new ResizableDoubleArray() : null;
+        this.minBin = N_BINS;
+        this.maxBin = -1;
+        clear();
+    }
+
+    public void clear() {
+        n = 0;
+        mean = 0.0;
+        m2 = 0.0;
+        m3 = 0.0;
+        m4 = 0.0;
+        sum = 0.0;
+        sumSq = 0.0;
+        sumLogs = 0.0;
+        sumInverses = 0.0;
+        product = 1.0;
+        min = Double.NaN;
+        max = Double.NaN;
+        histogramValid = true;
+        if (histogram != null && maxBin >= minBin) {
+            Arrays.fill(histogram, minBin, maxBin + 1, 0L);
+        }
+        minBin = N_BINS;
+        maxBin = -1;
+        if (pSquare != null) pSquare.clear();
+        if (values != null) values.clear();
+    }
+
+    public void addValue(double x) {
+        long n1 = n++;
+        double delta = x - mean;
+        double deltaN = delta / n;
+        double deltaN2 = deltaN * deltaN;
+        double term1 = delta * deltaN * n1;
+        mean += deltaN;
+        m4 += term1 * deltaN2 * (n * n - 3 * n + 3) + 6.0 * deltaN2 * m2 - 4.0 * deltaN * m3;
+        m3 += term1 * deltaN * (n - 2) - 3.0 * deltaN * m2;
+        m2 += term1;
+
+        sum += x;
+        sumSq += x * x;
+        sumLogs += Math.log(x);
+        sumInverses += 1.0 / x;
+        product *= x;
+        if (n1 == 0) {
+            min = x;
+            max = x;
+        } else if (x < min) {
+            min = x;
+        } else if (x > max) {
+            max = x;
+        }
+
+        switch (medianMode) {
+            case HISTOGRAM:
+                int bin = (int) x;
+                if (bin != x || bin < 0 || bin >= N_BINS) {
+                    histogramValid = false;
+                } else {
+                    histogram[bin]++;
+                    if (bin < minBin) minBin = bin;
+                    if (bin > maxBin) maxBin = bin;
+                }
+                break;
+            case APPROXIMATE:
+                pSquare.increment(x);
+                break;
+            case EXACT:
+                values.addElement(x);
+        }
+    }
+
+    public long getN() {
+        return n;
+    }
+
+    public double getMean() {
+        return n > 0 ? mean : Double.NaN;
+    }
+
+    public double getMedian() {
+        if (n == 0) return Double.NaN;
+        switch (medianMode) {
+            case HISTOGRAM:
+                return histogramValid ? getHistogramMedian() : Double.NaN;
+            case APPROXIMATE:
+                return pSquare.getResult();
+            default:
+                return (new Percentile()).evaluate(values.getElements(), 50.0);
+        }
+    }
+
+    private double getHistogramMedian() {
+        long lower = (n - 1) / 2;
+        long upper = n / 2;
+        long cumulative = 0;
+        double lowerValue = Double.NaN;
+        for (int b = minBin; b <= maxBin; b++) {
+            cumulative += histogram[b];
+            if (Double.isNaN(lowerValue) && cumulative > lower) {
+                lowerValue = b;
+            }
+            if (cumulative > upper) {
+                return (lowerValue + b) / 2.0;
+            }
+        }
+        return lowerValue;
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    public double getSum() {
+        return n > 0 ? sum : Double.NaN;
+    }
+
+    public double getSumsq() {
+        return n > 0 ? sumSq : Double.NaN;
+    }
+
+    public double getSumOfLogs() {
+        return n > 0 ? sumLogs : Double.NaN;
+    }
+
+    public double getProduct() {
+        return n > 0 ? product : Double.NaN;
+    }
+
+    public double getSecondMoment() {
+        return n > 0 ? m2 : Double.NaN;
+    }
+
+    public double getVariance() {
+        if (n == 0) return Double.NaN;
+        if (n == 1) return 0.0;
+        return m2 / (n - 1);
+    }
+
+    public double getPopulationVariance() {
+        return n > 0 ? m2 / n : Double.NaN;
+    }
+
+    public double getStandardDeviation() {
+        return Math.sqrt(getVariance());
+    }
+
+    public double getQuadraticMean() {
+        return n > 0 ? Math.sqrt(sumSq / n) : Double.NaN;
+    }
+
+    public double getGeometricMean() {
+        return n > 0 ? Math.exp(sumLogs / n) : Double.NaN;
+    }
+
+    public double getHarmonicMean() {
+        return n > 0 ? n / sumInverses : Double.NaN;
+    }
+
+    /**
+     * Bias-corrected sample skewness, as reported by Apache Commons Math.
+     */
+    public double getSkewness() {
+        if (n < 3) return Double.NaN;
+        double variance = m2 / (n - 1);
+        if (variance < 10E-20) return 0.0;
+        return (n * m3) / ((n - 1.0) * (n - 2.0) * Math.sqrt(variance) * variance);
+    }
+
+    /**
+     * Bias-corrected sample excess kurtosis, as reported by Apache Commons Math.
+     */
+    public double getKurtosis() {
+        if (n <= 3) return Double.NaN;
+        double variance = m2 / (n - 1);
+        if (variance < 10E-20) return 0.0;
+        double nd = n;
+        return (nd * (nd + 1) * m4) / ((nd - 1) * (nd - 2) * (nd - 3) * variance * variance)
+                - (3.0 * (nd - 1) * (nd - 1)) / ((nd - 2) * (nd - 3));
+    }
+
+    /**
+     * Central moment of the given order (1 to 4) divided by the number of values, as reported by ImageJ Ops.
+     */
+    public double getMomentAboutMean(int order) {
+        if (n == 0) return Double.NaN;
+        switch (order) {
+            case 1:
+                return 0.0;
+            case 2:
+                return m2 / n;
+            case 3:
+                return m3 / n;
+            case 4:
+                return m4 / n;
+            default:
+                throw new IllegalArgumentException(String.format("Unsupported moment order: %d", order));
+        }
+    }
+
+    /**
+     * Skewness normalised by the sample standard deviation, as reported by ImageJ Ops.
+     */
+    public double getOpsSkewness() {
+        double std = getStandardDeviation();
+        return std != 0.0 ? getMomentAboutMean(3) / (std * std * std) : Double.NaN;
+    }
+
+    /**
+     * Kurtosis normalised by the sample standard deviation, as reported by ImageJ Ops.
+     */
+    public double getOpsKurtosis() {
+        double std = getStandardDeviation();
+        return std != 0.0 ? getMomentAboutMean(4) / (std * std * std * std) : Double.NaN;
+    }
+}
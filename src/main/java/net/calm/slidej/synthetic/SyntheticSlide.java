@@ -0,0 +1,299 @@
+/*
+ * Copyright (c)  2020, David J. Barry
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.calm.slidej.synthetic;
+
+import io.scif.config.SCIFIOConfig;
+import io.scif.img.ImgSaver;
+import io.scif.img.SCIFIOImgPlus;
+import net.calm.slidej.io.SharedContext;
+import net.calm.slidej.util.Utils;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.CalibratedAxis;
+import net.imagej.axis.DefaultLinearAxis;
+import net.imglib2.Cursor;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.img.DiskCachedCellImgOptions;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgFactory;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgOptions;
+import net.imglib2.cache.img.SingleCellArrayImg;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates a multi-channel 16-bit test volume of blobs and filaments on a noisy background and writes it as
+ * OME-TIFF. Pixels are rendered cell by cell as the writer asks for them, so the volume never has to fit in memory;
+ * the same seed always gives the same image. Channel 0 holds the blobs, channel 1 the filaments and any further
+ * channels mix the two with independent brightness, so that channels are partially correlated.
+ */
+public class SyntheticSlide {
+    public static final int CELL_EDGE = 256;
+    private static final double EDGE_WIDTH = 1.0;
+
+    private long[] dims = new long[]{512, 512, 64};
+    private int nChannels = 2;
+    private double[] calibration = new double[]{0.5, 0.5, 2.0};
+    private double blobDensity = 100.0;
+    private double blobRadius = 4.0;
+    private double filamentDensity = 20.0;
+    private double filamentRadius = 1.0;
+    private double filamentLength = 40.0;
+    private int background = 100;
+    private double noise = 20.0;
+    private long seed = 1;
+
+    private final List<Shape> shapes = new ArrayList<>();
+    private int[][] buckets;
+    private int[] bucketSizes;
+    private long[] nBuckets;
+
+    /**
+     * Size in voxels as x, y, z.
+     */
+    public SyntheticSlide dimensions(long... dims) {
+        this.dims = dims;
+        return this;
+    }
+
+    public SyntheticSlide channels(int nChannels) {
+        this.nChannels = nChannels;
+        return this;
+    }
+
+    /**
+     * Voxel size in microns as x, y, z. Objects are round in physical space, so anisotropic voxels make them
+     * anisotropic in voxel space.
+     */
+    public SyntheticSlide calibration(double... calibration) {
+        this.calibration = calibration;
+        return this;
+    }
+
+    /**
+     * Blobs per 10^6 cubic microns and their mean radius in microns.
+     */
+    public SyntheticSlide blobs(double density, double radius) {
+        this.blobDensity = density;
+        this.blobRadius = radius;
+        return this;
+    }
+
+    /**
+     * Filaments per 10^6 cubic microns, their radius and mean length in microns.
+     */
+    public SyntheticSlide filaments(double density, double radius, double length) {
+        this.filamentDensity = density;
+        this.filamentRadius = radius;
+        this.filamentLength = length;
+        return this;
+    }
+
+    /**
+     * Background level and standard deviation of the Gaussian noise added to every voxel.
+     */
+    public SyntheticSlide noise(int background, double sd) {
+        this.background = background;
+        this.noise = sd;
+        return this;
+    }
+
+    public SyntheticSlide seed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    public long getNumVoxels() {
+        return dims[0] * dims[1] * dims[2] * nChannels;
+    }
+
+    public void write(File file) throws Exception {
+        layout();
+        long[] imgDims = new long[]{dims[0], dims[1], dims[2], nChannels};
+        long cellsPerPlane = ((dims[0] + CELL_EDGE - 1) / CELL_EDGE) * ((dims[1] + CELL_EDGE - 1) / CELL_EDGE);
+        ReadOnlyCachedCellImgFactory factory = new ReadOnlyCachedCellImgFactory(ReadOnlyCachedCellImgOptions.options()
+                .cellDimensions(CELL_EDGE, CELL_EDGE, 1, 1)
+                .cacheType(DiskCachedCellImgOptions.CacheType.BOUNDED)
+                .maxCacheSize(2 * cellsPerPlane));
+        CachedCellImg<UnsignedShortType, ?> img = factory.create(imgDims, new UnsignedShortType(), this::render);
+        ImgPlus<UnsignedShortType> imgPlus = new ImgPlus<>(img, file.getName(), new CalibratedAxis[]{
+                new DefaultLinearAxis(Axes.X, "\u00b5m", calibration[0]),
+                new DefaultLinearAxis(Axes.Y, "\u00b5m", calibration[1]),
+                new DefaultLinearAxis(Axes.Z, "\u00b5m", calibration[2]),
+                new DefaultLinearAxis(Axes.CHANNEL)});
+        Utils.timeStampOutput(String.format("Writing %s: %s voxels, %d channels, %d objects.", file.getAbsolutePath(),
+                Arrays.toString(dims), nChannels, shapes.size()));
+        SCIFIOConfig config = new SCIFIOConfig();
+        config.writerSetCompression("Uncompressed");
+        (new ImgSaver(SharedContext.getScifio().getContext())).saveImg(file.getAbsolutePath(),
+                new SCIFIOImgPlus<>(imgPlus), config);
+    }
+
+    /**
+     * Places every object and indexes it by the cell columns its bounding box overlaps.
+     */
+    private void layout() {
+        shapes.clear();
+        Random r = new Random(seed);
+        double volume = dims[0] * calibration[0] * dims[1] * calibration[1] * dims[2] * calibration[2];
+        long nBlobs = Math.round(volume / 1e6 * blobDensity);
+        long nFilaments = Math.round(volume / 1e6 * filamentDensity);
+        double[] brightness = new double[nChannels];
+        for (long i = 0; i < nBlobs; i++) {
+            double[] centre = randomPoint(r);
+            double radius = blobRadius * (0.5 + r.nextDouble());
+            for (int c = 0; c < nChannels; c++) {
+                brightness[c] = c == 1 ? 0.0 : 1000.0 + 2000.0 * r.nextDouble();
+            }
+            shapes.add(new Shape(centre, centre, radius, brightness));
+        }
+        for (long i = 0; i < nFilaments; i++) {
+            double[] start = randomPoint(r);
+            double[] end = new double[3];
+            double length = filamentLength * (0.5 + r.nextDouble());
+            double[] direction = new double[]{r.nextGaussian(), r.nextGaussian(), r.nextGaussian()};
+            double norm = Math.sqrt(direction[0] * direction[0] + direction[1] * direction[1] + direction[2] * direction[2]);
+            for (int d = 0; d < 3; d++) {
+                end[d] = start[d] + direction[d] / norm * length;
+            }
+            for (int c = 0; c < nChannels; c++) {
+                brightness[c] = c == 0 ? 0.0 : 1000.0 + 2000.0 * r.nextDouble();
+            }
+            shapes.add(new Shape(start, end, filamentRadius, brightness));
+        }
+
+        nBuckets = new long[]{(dims[0] + CELL_EDGE - 1) / CELL_EDGE, (dims[1] + CELL_EDGE - 1) / CELL_EDGE, dims[2]};
+        int nTotal = (int) (nBuckets[0] * nBuckets[1] * nBuckets[2]);
+        buckets = new int[nTotal][];
+        bucketSizes = new int[nTotal];
+        for (int i = 0; i < shapes.size(); i++) {
+            long[] min = new long[3];
+            long[] max = new long[3];
+            shapes.get(i).bounds(min, max);
+            for (long z = min[2]; z <= max[2]; z++) {
+                for (long y = min[1] / CELL_EDGE; y <= max[1] / CELL_EDGE; y++) {
+                    for (long x = min[0] / CELL_EDGE; x <= max[0] / CELL_EDGE; x++) {
+                        add((int) ((z * nBuckets[1] + y) * nBuckets[0] + x), i);
+                    }
+                }
+            }
+        }
+    }
+
+    private void add(int bucket, int shape) {
+        if (buckets[bucket] == null) buckets[bucket] = new int[4];
+        if (bucketSizes[bucket] == buckets[bucket].length)
+            buckets[bucket] = Arrays.copyOf(buckets[bucket], 2 * bucketSizes[bucket]);
+        buckets[bucket][bucketSizes[bucket]++] = shape;
+    }
+
+    private double[] randomPoint(Random r) {
+        return new double[]{r.nextDouble() * dims[0] * calibration[0], r.nextDouble() * dims[1] * calibration[1],
+                r.nextDouble() * dims[2] * calibration[2]};
+    }
+
+    private void render(SingleCellArrayImg<UnsignedShortType, ?> cell) {
+        long x0 = cell.min(0);
+        long y0 = cell.min(1);
+        long z = cell.min(2);
+        int c = (int) cell.min(3);
+        int bucket = (int) ((z * nBuckets[1] + y0 / CELL_EDGE) * nBuckets[0] + x0 / CELL_EDGE);
+        Random r = new Random(seed * 31 + (long) bucket * nChannels + c);
+        double[] p = new double[3];
+        p[2] = z * calibration[2];
+        Cursor<UnsignedShortType> cursor = cell.localizingCursor();
+        while (cursor.hasNext()) {
+            UnsignedShortType t = cursor.next();
+            p[0] = cursor.getLongPosition(0) * calibration[0];
+            p[1] = cursor.getLongPosition(1) * calibration[1];
+            double value = 0.0;
+            for (int i = 0; i < bucketSizes[bucket]; i++) {
+                value = Math.max(value, shapes.get(buckets[bucket][i]).intensity(p, c));
+            }
+            value += background + r.nextGaussian() * noise;
+            t.set((int) Math.max(0, Math.min(65535, Math.round(value))));
+        }
+    }
+
+    /**
+     * A capsule: a sphere when start and end coincide, otherwise a tube with rounded ends. Coordinates are in
+     * microns.
+     */
+    private class Shape {
+        private final double[] start;
+        private final double[] axis = new double[3];
+        private final double lengthSq;
+        private final double radius;
+        private final float[] brightness;
+
+        Shape(double[] start, double[] end, double radius, double[] brightness) {
+            this.start = start;
+            double l = 0.0;
+            for (int d = 0; d < 3; d++) {
+                axis[d] = end[d] - start[d];
+                l += axis[d] * axis[d];
+            }
+            this.lengthSq = l;
+            this.radius = radius;
+            this.brightness = new float[brightness.length];
+            for (int c = 0; c < brightness.length; c++) {
+                this.brightness[c] = (float) brightness[c];
+            }
+        }
+
+        void bounds(long[] min, long[] max) {
+            for (int d = 0; d < 3; d++) {
+                double lo = Math.min(start[d], start[d] + axis[d]) - radius - EDGE_WIDTH * calibration[d];
+                double hi = Math.max(start[d], start[d] + axis[d]) + radius + EDGE_WIDTH * calibration[d];
+                min[d] = Math.max(0, (long) Math.floor(lo / calibration[d]));
+                max[d] = Math.min(dims[d] - 1, (long) Math.ceil(hi / calibration[d]));
+            }
+        }
+
+        double intensity(double[] p, int c) {
+            if (brightness[c] <= 0.0f) return 0.0;
+            double t = 0.0;
+            if (lengthSq > 0.0) {
+                for (int d = 0; d < 3; d++) {
+                    t += (p[d] - start[d]) * axis[d];
+                }
+                t = Math.max(0.0, Math.min(1.0, t / lengthSq));
+            }
+            double distSq = 0.0;
+            for (int d = 0; d < 3; d++) {
+                double delta = p[d] - (start[d] + t * axis[d]);
+                distSq += delta * delta;
+            }
+            double dist = Math.sqrt(distSq);
+            if (dist <= radius) return brightness[c];
+            double edge = EDGE_WIDTH * calibration[0];
+            return dist < radius + edge ? brightness[c] * (1.0 - (dist - radius) / edge) : 0.0;
+        }
+    }
+}
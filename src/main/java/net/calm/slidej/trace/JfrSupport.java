@@ -0,0 +1,118 @@
+/*
+ * Copyright (c)  2020, David J. Barry
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.calm.slidej.trace;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Emits spans as {@code net.calm.slidej.Span} Flight Recorder events. The build targets Java 8, where jdk.jfr is not
+ * part of the platform API, so the event type is defined at run time through jdk.jfr.EventFactory; on JVMs without
+ * it every call is a no-op. Events are only recorded while a recording is active, e.g. when the JVM is started with
+ * -XX:StartFlightRecording.
+ */
+class JfrSupport {
+    static final String EVENT_NAME = "net.calm.slidej.Span";
+    private static final String[] FIELDS = {"name", "parent", "voxels", "bytesRead", "storageBytesRead",
+            "bytesWritten", "threads", "heapHighWater", "gcMillis"};
+    private static final Class<?>[] TYPES = {String.class, String.class, long.class, long.class, long.class, long.class,
+            int.class, long.class, long.class};
+
+    private static Object factory;
+    private static Method newEvent;
+    private static Method begin;
+    private static Method end;
+    private static Method set;
+    private static Method shouldCommit;
+    private static Method commit;
+
+    static {
+        try {
+            Class<?> annotationElement = Class.forName("jdk.jfr.AnnotationElement");
+            Class<?> valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor");
+            Class<?> eventFactory = Class.forName("jdk.jfr.EventFactory");
+            Class<?> event = Class.forName("jdk.jfr.Event");
+            Constructor<?> annotation = annotationElement.getConstructor(Class.class, Object.class);
+            List<Object> annotations = new ArrayList<>();
+            annotations.add(annotation.newInstance(annotationClass("jdk.jfr.Name"), EVENT_NAME));
+            annotations.add(annotation.newInstance(annotationClass("jdk.jfr.Label"), "SlideJ Span"));
+            annotations.add(annotation.newInstance(annotationClass("jdk.jfr.Category"), new String[]{"SlideJ"}));
+            Constructor<?> field = valueDescriptor.getConstructor(Class.class, String.class);
+            List<Object> fields = new ArrayList<>();
+            for (int i = 0; i < FIELDS.length; i++) {
+                fields.add(field.newInstance(TYPES[i], FIELDS[i]));
+            }
+            factory = eventFactory.getMethod("create", List.class, List.class).invoke(null, annotations, fields);
+            newEvent = eventFactory.getMethod("newEvent");
+            begin = event.getMethod("begin");
+            end = event.getMethod("end");
+            set = event.getMethod("set", int.class, Object.class);
+            shouldCommit = event.getMethod("shouldCommit");
+            commit = event.getMethod("commit");
+        } catch (Throwable t) {
+            factory = null;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Class<? extends Annotation> annotationClass(String name) throws ClassNotFoundException {
+        return (Class<? extends Annotation>) Class.forName(name);
+    }
+
+    static boolean isAvailable() {
+        return factory != null;
+    }
+
+    static Object begin() {
+        if (factory == null) return null;
+        try {
+            Object event = newEvent.invoke(factory);
+            begin.invoke(event);
+            return event;
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    static void commit(Object event, Span span) {
+        if (event == null) return;
+        try {
+            end.invoke(event);
+            if (!(Boolean) shouldCommit.invoke(event)) return;
+            Object[] values = {span.getName(), span.getParent() == null ? null : span.getParent().getName(),
+                    span.getVoxels(), span.getBytesRead(), span.getStorageBytesRead(), span.getBytesWritten(),
+                    span.getThreads(), span.getHeapHighWater(), span.getGcMillis()};
+            for (int i = 0; i < values.length; i++) {
+                set.invoke(event, i, values[i]);
+            }
+            commit.invoke(event);
+        } catch (ReflectiveOperationException e) {
+            // Tracing must never fail a run
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c)  2020, David J. Barry
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.calm.slidej.trace;
+
+/**
+ * A timed region of a run, recorded by a {@link Tracer}. Counters may be set at any point before {@link #end()}.
+ */
+public class Span {
+    private final Tracer tracer;
+    private final String name;
+    private final Span parent;
+    private final String thread;
+    private final long startNanos;
+    private final long startGcMillis;
+    private final long startGcCount;
+    private final long[] startIo;
+    private final Object jfrEvent;
+    private long endNanos = -1;
+    private long gcMillis;
+    private long gcCount;
+    private long voxels;
+    private long bytesRead = -1;
+    private long storageBytesRead = -1;
+    private long bytesWritten;
+    private int threads = 1;
+    private long heapHighWater;
+
+    Span(Tracer tracer, String name, Span parent, long heapUsed) {
+        this.tracer = tracer;
+        this.name = name;
+        this.parent = parent;
+        this.thread = Thread.currentThread().getName();
+        this.startGcMillis = Tracer.getGcMillis();
+        this.startGcCount = Tracer.getGcCount();
+        this.startIo = Tracer.getIoCounters();
+        this.heapHighWater = heapUsed;
+        this.jfrEvent = JfrSupport.begin();
+        this.startNanos = System.nanoTime();
+    }
+
+    public Span setVoxels(long voxels) {
+        this.voxels = voxels;
+        return this;
+    }
+
+    public Span setBytesWritten(long bytesWritten) {
+        this.bytesWritten = bytesWritten;
+        return this;
+    }
+
+    public Span setThreads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    public void end() {
+        synchronized (this) {
+            if (endNanos >= 0) return;
+            endNanos = System.nanoTime();
+            gcMillis = Tracer.getGcMillis() - startGcMillis;
+            gcCount = Tracer.getGcCount() - startGcCount;
+            long[] io = Tracer.getIoCounters();
+            if (startIo != null && io != null) {
+                bytesRead = io[0] - startIo[0];
+                storageBytesRead = io[1] - startIo[1];
+            }
+        }
+        tracer.finish(this);
+        JfrSupport.commit(jfrEvent, this);
+    }
+
+    synchronized void sampleHeap(long used) {
+        if (endNanos < 0 && used > heapHighWater) heapHighWater = used;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Span getParent() {
+        return parent;
+    }
+
+    public String getThread() {
+        return thread;
+    }
+
+    long getStartNanos() {
+        return startNanos;
+    }
+
+    public synchronized double getDurationSeconds() {
+        return ((endNanos < 0 ? System.nanoTime() : endNanos) - startNanos) / 1e9;
+    }
+
+    public long getVoxels() {
+        return voxels;
+    }
+
+    /**
+     * Bytes the whole process read through read calls while the span was open, or -1 if the system does not report
+     * it. Memory-mapped reads are not included.
+     */
+    public synchronized long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * Bytes the whole process caused to be fetched from storage while the span was open, including memory-mapped
+     * reads but not pages already in the page cache, or -1 if the system does not report it.
+     */
+    public synchronized long getStorageBytesRead() {
+        return storageBytesRead;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Highest used heap, in bytes, seen while the span was open. Heap is shared, so concurrent spans see each
+     * other's allocations.
+     */
+    public synchronized long getHeapHighWater() {
+        return heapHighWater;
+    }
+
+    /**
+     * Time all collectors spent collecting while the span was open, in milliseconds, JVM-wide.
+     */
+    public synchronized long getGcMillis() {
+        return gcMillis;
+    }
+
+    public synchronized long getGcCount() {
+        return gcCount;
+    }
+}
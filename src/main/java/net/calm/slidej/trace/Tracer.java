@@ -0,0 +1,221 @@
+/*
+ * Copyright (c)  2020, David J. Barry
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.calm.slidej.trace;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the spans of one run and writes them as a JSON report. Each span is also emitted as a JDK Flight Recorder
+ * event when the running JVM supports it. Heap use is sampled in the background so that every open span records the
+ * highest used heap seen while it was open.
+ */
+public class Tracer {
+    public static final long SAMPLE_INTERVAL_MS = 50;
+
+    private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+
+    private final long startNanos = System.nanoTime();
+    private final long startMillis = System.currentTimeMillis();
+    private final List<Span> open = new CopyOnWriteArrayList<>();
+    private final List<Span> finished = new ArrayList<>();
+    private final LinkedHashMap<String, String> info = new LinkedHashMap<>();
+    private ScheduledExecutorService sampler;
+
+    public Span start(String name) {
+        return start(name, null);
+    }
+
+    public Span start(String name, Span parent) {
+        Span span = new Span(this, name, parent, getHeapUsed());
+        open.add(span);
+        startSampler();
+        return span;
+    }
+
+    /**
+     * Adds a top-level entry to the report, e.g. the input file or the version.
+     */
+    public synchronized void putInfo(String key, Object value) {
+        info.put(key, String.valueOf(value));
+    }
+
+    void finish(Span span) {
+        open.remove(span);
+        synchronized (this) {
+            finished.add(span);
+        }
+    }
+
+    private synchronized void startSampler() {
+        if (sampler != null) return;
+        sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "slidej-heap-sampler");
+            t.setDaemon(true);
+            return t;
+        });
+        sampler.scheduleAtFixedRate(() -> {
+            long used = getHeapUsed();
+            for (Span s : open) {
+                s.sampleHeap(used);
+            }
+        }, SAMPLE_INTERVAL_MS, SAMPLE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void close() {
+        if (sampler != null) {
+            sampler.shutdownNow();
+            sampler = null;
+        }
+    }
+
+    public synchronized List<Span> getSpans() {
+        return new ArrayList<>(finished);
+    }
+
+    public static long getHeapUsed() {
+        return MEMORY.getHeapMemoryUsage().getUsed();
+    }
+
+    public static long getHeapMax() {
+        return MEMORY.getHeapMemoryUsage().getMax();
+    }
+
+    static long getGcMillis() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, gc.getCollectionTime());
+        }
+        return total;
+    }
+
+    static long getGcCount() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, gc.getCollectionCount());
+        }
+        return total;
+    }
+
+    /**
+     * Returns the rchar and read_bytes counters of /proc/self/io, or null where that file does not exist.
+     */
+    static long[] getIoCounters() {
+        File io = new File("/proc/self/io");
+        if (!io.canRead()) return null;
+        long[] counters = new long[]{-1, -1};
+        try {
+            for (String line : Files.readAllLines(io.toPath(), StandardCharsets.US_ASCII)) {
+                if (line.startsWith("rchar:")) counters[0] = Long.parseLong(line.substring(6).trim());
+                else if (line.startsWith("read_bytes:")) counters[1] = Long.parseLong(line.substring(11).trim());
+            }
+        } catch (IOException | NumberFormatException e) {
+            return null;
+        }
+        return counters[0] < 0 || counters[1] < 0 ? null : counters;
+    }
+
+    /**
+     * Writes the report. Spans still open are not included.
+     */
+    public synchronized void writeReport(File file) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        for (Map.Entry<String, String> e : info.entrySet()) {
+            sb.append("  ").append(quote(e.getKey())).append(": ").append(quote(e.getValue())).append(",\n");
+        }
+        sb.append("  \"startTimeMillis\": ").append(startMillis).append(",\n");
+        sb.append("  \"processors\": ").append(Runtime.getRuntime().availableProcessors()).append(",\n");
+        sb.append("  \"maxHeapBytes\": ").append(getHeapMax()).append(",\n");
+        sb.append("  \"jfrEvents\": ").append(JfrSupport.isAvailable()).append(",\n");
+        sb.append("  \"spans\": [");
+        List<Span> spans = new ArrayList<>(finished);
+        spans.sort((a, b) -> Long.compare(a.getStartNanos(), b.getStartNanos()));
+        for (int i = 0; i < spans.size(); i++) {
+            Span s = spans.get(i);
+            sb.append(i == 0 ? "\n" : ",\n");
+            sb.append("    {\"name\": ").append(quote(s.getName()));
+            sb.append(", \"parent\": ").append(s.getParent() == null ? "null" : quote(s.getParent().getName()));
+            sb.append(", \"thread\": ").append(quote(s.getThread()));
+            sb.append(String.format(", \"startSeconds\": %.3f", (s.getStartNanos() - startNanos) / 1e9));
+            sb.append(String.format(", \"durationSeconds\": %.3f", s.getDurationSeconds()));
+            sb.append(", \"voxels\": ").append(s.getVoxels());
+            sb.append(", \"bytesRead\": ").append(s.getBytesRead());
+            sb.append(", \"storageBytesRead\": ").append(s.getStorageBytesRead());
+            sb.append(", \"bytesWritten\": ").append(s.getBytesWritten());
+            sb.append(", \"threads\": ").append(s.getThreads());
+            sb.append(", \"heapHighWaterBytes\": ").append(s.getHeapHighWater());
+            sb.append(", \"gcMillis\": ").append(s.getGcMillis());
+            sb.append(", \"gcCount\": ").append(s.getGcCount());
+            sb.append("}");
+        }
+        sb.append("\n  ]\n}\n");
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8))) {
+            out.print(sb);
+        }
+    }
+
+    static String quote(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+                    else sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
@@ -24,39 +24,164 @@
 
 package net.calm.slidej.transform;
 
-import net.calm.slidej.binary.Inverter;
-import net.calm.slidej.properties.SlideJParams;
-import net.imagej.ImageJ;
-import net.imagej.ops.OpService;
+import net.calm.slidej.concurrent.TaskScheduler;
+import net.calm.slidej.io.ImgStorage;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.algorithm.morphology.distance.DistanceTransform;
 import net.imglib2.img.Img;
-import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.img.ImgFactory;
+import net.imglib2.iterator.LocalizingIntervalIterator;
+import net.imglib2.loops.LoopBuilder;
 import net.imglib2.type.logic.BitType;
 import net.imglib2.type.numeric.real.FloatType;
 
-import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 
 public class DistanceTransformer {
 
-    public static Img<FloatType> calcDistanceMap(Img<BitType> binary, double[] cals, Path tmpDir, boolean inverted) {
-        OpService os = (new ImageJ()).op();
-        Img<FloatType> output = (new CellImgFactory<>(new FloatType(), SlideJParams.CELL_IMG_DIM)).create(binary);
+    public static final int FOREGROUND = 0;
+    public static final int BACKGROUND = 1;
+    private static final float INF = Float.MAX_VALUE;
 
-        if (!inverted) {
-            //return ImgView.wrap(os.image().distancetransform(output, binary, cals), output.factory());
-            DistanceTransform.binaryTransform(binary, output, DistanceTransform.DISTANCE_TYPE.EUCLIDIAN, cals);
-            return output;
-        } else {
-            //RandomAccessibleInterval<BitType> invertedBinary = new CellImgFactory<>(new BitType()).create(dims);
-            //IterableInterval<BitType> invertedBinaryInterval = Views.iterable(invertedBinary);
-            //invertedBinaryInterval = os.image().invert(invertedBinaryInterval, Views.iterable(binary));
+    /**
+     * Computes the distance to the nearest foreground voxel and the distance to the nearest background voxel in the
+     * same set of separable passes, without creating an inverted copy of the binary. Distances are squared and
+     * weighted per dimension, as in {@link DistanceTransform#binaryTransform}.
+     *
+     * @return the maps indexed by {@link #FOREGROUND} and {@link #BACKGROUND}
+     */
+    public static List<Img<FloatType>> calcDistanceMaps(Img<BitType> binary, double[] cals) {
+        ImgFactory<FloatType> factory = ImgStorage.factory(new FloatType());
+        List<Img<FloatType>> maps = new ArrayList<>();
+        maps.add(factory.create(binary));
+        maps.add(factory.create(binary));
+        for (int d = 0; d < binary.numDimensions(); d++) {
+            transformDimension(binary, maps.get(FOREGROUND), maps.get(BACKGROUND), d, cals[d]);
+        }
+        return maps;
+    }
 
-            Img<BitType> invertedBinary = Inverter.invertImage(binary);
+    /**
+     * Single signed map - positive outside objects (distance to the nearest foreground voxel) and negative inside
+     * (distance to the nearest background voxel).
+     */
+    public static Img<FloatType> calcSignedDistanceMap(Img<BitType> binary, double[] cals) {
+        List<Img<FloatType>> maps = calcDistanceMaps(binary, cals);
+        LoopBuilder.setImages(maps.get(FOREGROUND), maps.get(BACKGROUND)).multiThreaded()
+                .forEachPixel((fg, bg) -> fg.set(fg.get() - bg.get()));
+        return maps.get(FOREGROUND);
+    }
 
-            //return ImgView.wrap(os.image().distancetransform(output, invertedBinary, cals), output.factory());
-            DistanceTransform.binaryTransform(invertedBinary, output, DistanceTransform.DISTANCE_TYPE.EUCLIDIAN, cals);
-            return output;
+    private static void transformDimension(RandomAccessibleInterval<BitType> binary, RandomAccessibleInterval<FloatType> fgMap,
+                                           RandomAccessibleInterval<FloatType> bgMap, int dim, double weight) {
+        int nDims = binary.numDimensions();
+        int splitDim = -1;
+        for (int d = 0; d < nDims; d++) {
+            if (d != dim && (splitDim < 0 || binary.dimension(d) > binary.dimension(splitDim))) splitDim = d;
         }
+        long[] min = binary.minAsLongArray();
+        long[] max = binary.maxAsLongArray();
+        max[dim] = min[dim];
+        int nChunks = splitDim < 0 ? 1 : (int) Math.min(binary.dimension(splitDim), TaskScheduler.getParallelism() * 4L);
+        List<Runnable> tasks = new ArrayList<>();
+        for (int chunk = 0; chunk < nChunks; chunk++) {
+            long[] chunkMin = min.clone();
+            long[] chunkMax = max.clone();
+            if (splitDim >= 0) {
+                chunkMin[splitDim] = min[splitDim] + chunk * binary.dimension(splitDim) / nChunks;
+                chunkMax[splitDim] = min[splitDim] + (chunk + 1) * binary.dimension(splitDim) / nChunks - 1;
+                if (chunkMax[splitDim] < chunkMin[splitDim]) continue;
+            }
+            FinalInterval lineStarts = new FinalInterval(chunkMin, chunkMax);
+            tasks.add(() -> transformLines(binary, fgMap, bgMap, lineStarts, dim, weight));
+        }
+        TaskScheduler.runAll(tasks);
     }
 
+    private static void transformLines(RandomAccessibleInterval<BitType> binary, RandomAccessibleInterval<FloatType> fgMap,
+                                       RandomAccessibleInterval<FloatType> bgMap, FinalInterval lineStarts, int dim,
+                                       double weight) {
+        int n = (int) binary.dimension(dim);
+        double[] fgCost = new double[n];
+        double[] bgCost = new double[n];
+        double[] fgDist = new double[n];
+        double[] bgDist = new double[n];
+        int[] v = new int[n];
+        double[] z = new double[n + 1];
+        RandomAccess<BitType> binaryAccess = binary.randomAccess();
+        RandomAccess<FloatType> fgAccess = fgMap.randomAccess();
+        RandomAccess<FloatType> bgAccess = bgMap.randomAccess();
+        LocalizingIntervalIterator starts = new LocalizingIntervalIterator(lineStarts);
+        long[] position = new long[binary.numDimensions()];
+        while (starts.hasNext()) {
+            starts.fwd();
+            starts.localize(position);
+            if (dim == 0) {
+                binaryAccess.setPosition(position);
+                for (int i = 0; i < n; i++) {
+                    boolean foreground = binaryAccess.get().get();
+                    fgCost[i] = foreground ? 0.0 : INF;
+                    bgCost[i] = foreground ? INF : 0.0;
+                    binaryAccess.fwd(dim);
+                }
+            } else {
+                fgAccess.setPosition(position);
+                bgAccess.setPosition(position);
+                for (int i = 0; i < n; i++) {
+                    fgCost[i] = fgAccess.get().getRealDouble();
+                    bgCost[i] = bgAccess.get().getRealDouble();
+                    fgAccess.fwd(dim);
+                    bgAccess.fwd(dim);
+                }
+            }
+            lowerEnvelope(fgCost, fgDist, v, z, weight);
+            lowerEnvelope(bgCost, bgDist, v, z, weight);
+            fgAccess.setPosition(position);
+            bgAccess.setPosition(position);
+            for (int i = 0; i < n; i++) {
+                fgAccess.get().setReal(Math.min(fgDist[i], INF));
+                bgAccess.get().setReal(Math.min(bgDist[i], INF));
+                fgAccess.fwd(dim);
+                bgAccess.fwd(dim);
+            }
+        }
+    }
+
+    /**
+     * One-dimensional squared distance transform of a sampled function (Felzenszwalb and Huttenlocher). Samples at
+     * {@link #INF} are treated as absent.
+     */
+    private static void lowerEnvelope(double[] f, double[] d, int[] v, double[] z, double weight) {
+        int n = f.length;
+        int k = -1;
+        for (int q = 0; q < n; q++) {
+            if (f[q] >= INF) continue;
+            double s = Double.NEGATIVE_INFINITY;
+            while (k >= 0) {
+                int p = v[k];
+                s = ((f[q] + weight * q * q) - (f[p] + weight * p * p)) / (2.0 * weight * (q - p));
+                if (s > z[k]) break;
+                k--;
+            }
+            k++;
+            v[k] = q;
+            z[k] = k == 0 ? Double.NEGATIVE_INFINITY : s;
+            z[k + 1] = Double.POSITIVE_INFINITY;
+        }
+        if (k < 0) {
+            for (int q = 0; q < n; q++) {
+                d[q] = INF;
+            }
+            return;
+        }
+        k = 0;
+        for (int q = 0; q < n; q++) {
+            while (z[k + 1] < q) k++;
+            int p = v[k];
+            d[q] = weight * (q - p) * (q - p) + f[p];
+        }
+    }
 }
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c)  2020, David J. Barry
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.calm.slidej.transform;
+
+import net.calm.slidej.concurrent.TaskScheduler;
+import net.calm.slidej.io.ImgStorage;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Block downsampling by integer factors. Intensity images are averaged over each block; label images take the most
+ * frequent value in the block, so no labels are invented where objects meet. Blocks at the upper edges may be
+ * partial. Slabs of the output are computed in parallel.
+ */
+public class Downsampler {
+
+    public static <T extends RealType<T> & NativeType<T>> Img<T> downsample(RandomAccessibleInterval<T> img,
+                                                                           int[] factors, boolean labels) {
+        int nDims = img.numDimensions();
+        RandomAccessibleInterval<T> source = Views.zeroMin(img);
+        long[] sourceDims = source.dimensionsAsLongArray();
+        long[] dims = new long[nDims];
+        int blockSize = 1;
+        for (int d = 0; d < nDims; d++) {
+            dims[d] = (sourceDims[d] + factors[d] - 1) / factors[d];
+            blockSize *= factors[d];
+        }
+        Img<T> output = ImgStorage.factory(Util.getTypeFromInterval(img).createVariable()).create(dims);
+
+        int slabAxis = nDims - 1;
+        List<Long> slices = new ArrayList<>();
+        for (long z = 0; z < dims[slabAxis]; z++) slices.add(z);
+        List<Runnable> tasks = new ArrayList<>();
+        for (List<Long> chunk : TaskScheduler.partition(slices, TaskScheduler.getChunkCount(slices.size()))) {
+            long[] min = new long[nDims];
+            long[] max = new long[nDims];
+            for (int d = 0; d < nDims; d++) max[d] = dims[d] - 1;
+            min[slabAxis] = chunk.get(0);
+            max[slabAxis] = chunk.get(chunk.size() - 1);
+            RandomAccessibleInterval<T> slab = Views.interval(output, new FinalInterval(min, max));
+            final int size = blockSize;
+            tasks.add(() -> downsampleSlab(source, sourceDims, slab, factors, labels, size));
+        }
+        TaskScheduler.runAll(tasks);
+        return output;
+    }
+
+    private static <T extends RealType<T>> void downsampleSlab(RandomAccessibleInterval<T> source, long[] sourceDims,
+                                                               RandomAccessibleInterval<T> slab, int[] factors,
+                                                               boolean labels, int blockSize) {
+        int nDims = source.numDimensions();
+        RandomAccess<T> in = source.randomAccess();
+        Cursor<T> out = Views.flatIterable(slab).localizingCursor();
+        long[] lo = new long[nDims];
+        long[] hi = new long[nDims];
+        long[] p = new long[nDims];
+        double[] block = new double[blockSize];
+        while (out.hasNext()) {
+            out.fwd();
+            for (int d = 0; d < nDims; d++) {
+                lo[d] = out.getLongPosition(d) * factors[d];
+                hi[d] = Math.min(lo[d] + factors[d], sourceDims[d]) - 1;
+                p[d] = lo[d];
+            }
+            int n = 0;
+            while (true) {
+                in.setPosition(p);
+                block[n++] = in.get().getRealDouble();
+                int d = 0;
+                for (; d < nDims; d++) {
+                    if (++p[d] <= hi[d]) break;
+                    p[d] = lo[d];
+                }
+                if (d == nDims) break;
+            }
+            out.get().setReal(labels ? mode(block, n) : mean(block, n));
+        }
+    }
+
+    private static double mean(double[] values, int n) {
+        double sum = 0.0;
+        for (int i = 0; i < n; i++) sum += values[i];
+        return sum / n;
+    }
+
+    /**
+     * The most frequent value; ties go to the smallest.
+     */
+    private static double mode(double[] values, int n) {
+        Arrays.sort(values, 0, n);
+        double best = values[0];
+        int bestCount = 0;
+        int run = 0;
+        for (int i = 0; i < n; i++) {
+            run = i > 0 && values[i] == values[i - 1] ? run + 1 : 1;
+            if (run > bestCount) {
+                bestCount = run;
+                best = values[i];
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c)  2020, David J. Barry
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.calm.slidej.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Wall-clock time spent in each stage of a run. Starting a stage ends the previous one. Safe to read from another
+ * thread while the run is in progress.
+ */
+public class StageTimings {
+    private final LinkedHashMap<String, Long> durations = new LinkedHashMap<>();
+    private String current;
+    private long currentStart;
+
+    public synchronized void start(String stage) {
+        stop();
+        current = stage;
+        currentStart = System.nanoTime();
+    }
+
+    public synchronized void stop() {
+        if (current == null) return;
+        Long previous = durations.get(current);
+        durations.put(current, (previous == null ? 0L : previous) + System.nanoTime() - currentStart);
+        current = null;
+    }
+
+    public synchronized String getCurrentStage() {
+        return current;
+    }
+
+    /**
+     * Seconds spent in each stage so far, in the order the stages were first entered. The stage in progress is
+     * included up to now.
+     */
+    public synchronized LinkedHashMap<String, Double> getSeconds() {
+        LinkedHashMap<String, Double> seconds = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> e : durations.entrySet()) {
+            seconds.put(e.getKey(), e.getValue() / 1e9);
+        }
+        if (current != null) {
+            Double previous = seconds.get(current);
+            seconds.put(current, (previous == null ? 0.0 : previous) + (System.nanoTime() - currentStart) / 1e9);
+        }
+        return seconds;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Double> e : getSeconds().entrySet()) {
+            if (sb.length() > 0) sb.append(", ");
+            sb.append(String.format("%s: %.1f s", e.getKey(), e.getValue()));
+        }
+        return sb.toString();
+    }
+}
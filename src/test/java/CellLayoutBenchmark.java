@@ -0,0 +1,91 @@
+/*
+ * Copyright (c)  2020, David J. Barry
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import net.calm.slidej.io.CellLayout;
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.img.Img;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Cursor throughput over analysis neighbourhoods for isotropic and neighbourhood-aligned cell layouts. Arguments are
+ * the image size and neighbourhood size in x, y and z, e.g. {@code CellLayoutBenchmark 4096 4096 10 512 512 10}.
+ */
+public class CellLayoutBenchmark {
+    private static final int REPEATS = 5;
+
+    public static void main(String[] args) {
+        long[] dims = new long[]{Long.parseLong(args[0]), Long.parseLong(args[1]), Long.parseLong(args[2])};
+        int[] neighbourhood = new int[]{Integer.parseInt(args[3]), Integer.parseInt(args[4]), Integer.parseInt(args[5])};
+
+        List<int[]> layouts = new ArrayList<>();
+        layouts.add(new int[]{100, 100, 100});
+        layouts.add(new int[]{256, 256, (int) dims[2]});
+        layouts.add(CellLayout.align(dims, neighbourhood));
+
+        for (int[] layout : layouts) {
+            Img<UnsignedShortType> img = (new CellImgFactory<>(new UnsignedShortType(), layout)).create(dims);
+            int value = 0;
+            for (UnsignedShortType t : img) {
+                t.set(value++ & 0xFFFF);
+            }
+            double best = 0.0;
+            long checksum = 0;
+            for (int r = 0; r < REPEATS; r++) {
+                long start = System.nanoTime();
+                checksum = 0;
+                for (Interval neighbourhoodInterval : getNeighbourhoods(dims, neighbourhood)) {
+                    Cursor<UnsignedShortType> c = Views.interval(img, neighbourhoodInterval).cursor();
+                    while (c.hasNext()) {
+                        checksum += c.next().get();
+                    }
+                }
+                best = Math.max(best, Intervals.numElements(dims) / ((System.nanoTime() - start) / 1e9) / 1e6);
+            }
+            System.out.println(String.format("Cells %s: %.0f Mvoxels/s (checksum %d)", Arrays.toString(layout), best, checksum));
+        }
+    }
+
+    private static List<Interval> getNeighbourhoods(long[] dims, int[] neighbourhood) {
+        List<Interval> intervals = new ArrayList<>();
+        for (long z = 0; z < dims[2]; z += neighbourhood[2]) {
+            for (long y = 0; y < dims[1]; y += neighbourhood[1]) {
+                for (long x = 0; x < dims[0]; x += neighbourhood[0]) {
+                    intervals.add(Intervals.createMinMax(x, y, z,
+                            Math.min(x + neighbourhood[0], dims[0]) - 1,
+                            Math.min(y + neighbourhood[1], dims[1]) - 1,
+                            Math.min(z + neighbourhood[2], dims[2]) - 1));
+                }
+            }
+        }
+        return intervals;
+    }
+}
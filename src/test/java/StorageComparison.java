@@ -0,0 +1,146 @@
+/*
+ * Copyright (c)  2020, David J. Barry
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import net.calm.slidej.io.DiskCacheOptions;
+import net.calm.slidej.io.ImgStorage;
+import net.calm.slidej.segmentation.ImageThresholder;
+import net.calm.slidej.transform.DistanceTransformer;
+import net.imglib2.FinalDimensions;
+import net.imglib2.img.Img;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.Random;
+
+/**
+ * Runs the threshold and distance map stages on a synthetic volume with intermediates held on the heap or in the disk
+ * cache, and reports wall time and peak resident set size. Each mode must run in its own JVM, e.g.
+ * <pre>
+ * StorageComparison Memory 2048 2048 32 /tmp/cache
+ * StorageComparison Disk 2048 2048 32 /tmp/cache
+ * </pre>
+ * or {@code StorageComparison Compare 2048 2048 32 /tmp/cache}, which runs both modes in child JVMs with the same
+ * class path and JVM options, prints the two results together with their ratios, and fails if the two modes do not
+ * give the same checksum.
+ */
+public class StorageComparison {
+    private static final Pattern RESULT = Pattern.compile("(\\w+): ([0-9.]+) s, peak RSS ([0-9]+) kB, checksum (\\S+)");
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String mode = args[0];
+        if (mode.equalsIgnoreCase("Compare")) {
+            compare(args);
+            return;
+        }
+        long[] dims = new long[]{Long.parseLong(args[1]), Long.parseLong(args[2]), Long.parseLong(args[3])};
+        if (mode.equalsIgnoreCase("Disk")) {
+            ImgStorage.useDiskCache((new DiskCacheOptions(Paths.get(args[4]))).cellDimensions(64).maxCacheSize(1000).numIoThreads(2));
+        } else {
+            ImgStorage.useHeap(64);
+        }
+
+        long start = System.nanoTime();
+        Img<UnsignedShortType> img = ImgStorage.create(new UnsignedShortType(), new FinalDimensions(dims));
+        Random random = new Random(1);
+        for (UnsignedShortType t : img) {
+            t.set(random.nextInt(1000) + (random.nextInt(100) == 0 ? 30000 : 0));
+        }
+        ImageThresholder thresholder = new ImageThresholder(img);
+        thresholder.thresholdImage(new UnsignedShortType(10000));
+        Img<BitType> binary = thresholder.getOutput();
+        List<Img<FloatType>> maps = DistanceTransformer.calcDistanceMaps(binary, new double[]{1.0, 1.0, 1.0});
+        double checksum = 0.0;
+        for (Img<FloatType> map : maps) {
+            for (FloatType t : map) {
+                checksum += t.get();
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.println(String.format("%s: %.1f s, peak RSS %s, checksum %e", mode, seconds, getPeakRss(), checksum));
+        System.exit(0);
+    }
+
+    private static void compare(String[] args) throws IOException, InterruptedException {
+        List<String> results = new ArrayList<>();
+        for (String mode : new String[]{"Memory", "Disk"}) {
+            List<String> command = new ArrayList<>();
+            command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+            command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(StorageComparison.class.getName());
+            command.add(mode);
+            command.addAll(Arrays.asList(args).subList(1, args.length));
+            Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    System.out.println(line);
+                    if (line.startsWith(mode + ":")) results.add(line);
+                }
+            }
+            if (process.waitFor() != 0) results.add(String.format("%s: failed with exit code %d", mode, process.exitValue()));
+        }
+        System.out.println();
+        for (String result : results) {
+            System.out.println(result);
+        }
+        Matcher memory = RESULT.matcher(results.size() == 2 ? results.get(0) : "");
+        Matcher disk = RESULT.matcher(results.size() == 2 ? results.get(1) : "");
+        if (!memory.matches() || !disk.matches()) {
+            System.out.println("No comparison: a mode failed or did not report its peak RSS.");
+            System.exit(1);
+        }
+        System.out.println(String.format("Disk / Memory: wall time x%.2f, peak RSS x%.2f",
+                Double.parseDouble(disk.group(2)) / Double.parseDouble(memory.group(2)),
+                Double.parseDouble(disk.group(3)) / Double.parseDouble(memory.group(3))));
+        if (!memory.group(4).equals(disk.group(4))) {
+            System.out.println("Checksums differ: the two modes produced different distance maps.");
+            System.exit(1);
+        }
+    }
+
+    private static String getPeakRss() throws IOException {
+        try (BufferedReader reader = new BufferedReader(new FileReader("/proc/self/status"))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("VmHWM:")) return line.substring(6).trim();
+            }
+        }
+        return "unavailable";
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c)  2020, David J. Barry
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.calm.slidej.benchmark;
+
+import net.calm.slidej.analysis.Analyser;
+import net.calm.slidej.concurrent.TaskScheduler;
+import net.calm.slidej.io.ImgStorage;
+import net.calm.slidej.io.ResultsSink;
+import net.imglib2.img.Img;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-neighbourhood intensity statistics, as computed by AnalyserThread.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+@Fork(1)
+public class AnalyserBenchmark {
+    @Param({"256x256x32", "512x512x64"})
+    public String volume;
+
+    @Param({"64", "256"})
+    public int cellSize;
+
+    @Param({"32", "128"})
+    public int neighbourhood;
+
+    @Param({"1", "3"})
+    public int channels;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    private Img<UnsignedShortType> img;
+
+    @Setup
+    public void setup() {
+        TaskScheduler.setParallelism(threads);
+        ImgStorage.useHeap(cellSize);
+        img = BenchmarkImages.intensities(BenchmarkImages.parseVolume(volume), channels);
+    }
+
+    @Benchmark
+    public long statistics() throws IOException {
+        Analyser<UnsignedShortType> a = new Analyser<>(
+                new int[]{neighbourhood, neighbourhood, (int) Math.min(neighbourhood, img.dimension(2)), 1},
+                new String[]{"X", "Y", "Z", "Channel"}, new double[]{1.0, 1.0, 1.0, 2.0}, new int[]{0, 1, 2, 3},
+                false);
+        a.setIntegerChannels(channels);
+        try (ResultsSink sink = BenchmarkImages.results("statistics")) {
+            a.analyse(img, sink);
+            return sink.getRowCount();
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (c)  2020, David J. Barry
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.calm.slidej.benchmark;
+
+import net.calm.slidej.io.ImgStorage;
+import net.calm.slidej.io.ResultsFormat;
+import net.calm.slidej.io.ResultsSink;
+import net.imglib2.Cursor;
+import net.imglib2.FinalDimensions;
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Reproducible synthetic volumes for the benchmarks: spherical objects on a noisy background, their labelling and
+ * binary mask, and a random network of one-voxel-wide lines standing in for a skeleton. Images are allocated through
+ * {@link ImgStorage}, so they use whatever cell size the benchmark has configured.
+ */
+final class BenchmarkImages {
+    static final long SEED = 42;
+    static final int BACKGROUND = 100;
+    static final double NOISE = 20.0;
+    static final int MIN_RADIUS = 3;
+    static final int MAX_RADIUS = 8;
+    static final int VOXELS_PER_OBJECT = 16 * 16 * 16;
+
+    private BenchmarkImages() {
+    }
+
+    /**
+     * Parses a volume given as "XxYxZ", e.g. "512x512x64".
+     */
+    static long[] parseVolume(String volume) {
+        String[] parts = volume.split("x");
+        return new long[]{Long.parseLong(parts[0]), Long.parseLong(parts[1]), Long.parseLong(parts[2])};
+    }
+
+    /**
+     * A results sink in a fresh temporary directory, so the benchmarks include the cost of writing rows to disk.
+     */
+    static ResultsSink results(String name) throws IOException {
+        File dir = File.createTempFile("slidej-bench", "");
+        if (!dir.delete() || !dir.mkdir()) throw new IOException("Cannot create " + dir);
+        dir.deleteOnExit();
+        File file = new File(dir, name);
+        new File(file.getPath() + ResultsFormat.CSV.getExtension()).deleteOnExit();
+        return new ResultsSink(file.getPath(), ResultsFormat.CSV);
+    }
+
+    static List<long[]> spheres(long[] dims) {
+        Random r = new Random(SEED);
+        long nVoxels = dims[0] * dims[1] * dims[2];
+        int nSpheres = (int) Math.max(1, Math.min(65535, nVoxels / VOXELS_PER_OBJECT));
+        List<long[]> spheres = new ArrayList<>();
+        for (int i = 0; i < nSpheres; i++) {
+            spheres.add(new long[]{(long) (r.nextDouble() * dims[0]), (long) (r.nextDouble() * dims[1]),
+                    (long) (r.nextDouble() * dims[2]), MIN_RADIUS + r.nextInt(MAX_RADIUS - MIN_RADIUS + 1)});
+        }
+        return spheres;
+    }
+
+    /**
+     * Spheres labelled 1, 2, ... in the order they are generated; later spheres overwrite earlier ones.
+     */
+    static Img<UnsignedShortType> labels(long[] dims) {
+        Img<UnsignedShortType> labels = ImgStorage.create(new UnsignedShortType(), new FinalDimensions(dims));
+        RandomAccess<UnsignedShortType> ra = labels.randomAccess();
+        List<long[]> spheres = spheres(dims);
+        for (int i = 0; i < spheres.size(); i++) {
+            long[] s = spheres.get(i);
+            long r = s[3];
+            for (long z = Math.max(0, s[2] - r); z <= Math.min(dims[2] - 1, s[2] + r); z++) {
+                for (long y = Math.max(0, s[1] - r); y <= Math.min(dims[1] - 1, s[1] + r); y++) {
+                    for (long x = Math.max(0, s[0] - r); x <= Math.min(dims[0] - 1, s[0] + r); x++) {
+                        long dx = x - s[0], dy = y - s[1], dz = z - s[2];
+                        if (dx * dx + dy * dy + dz * dz > r * r) continue;
+                        ra.setPosition(new long[]{x, y, z});
+                        ra.get().set(i + 1);
+                    }
+                }
+            }
+        }
+        return labels;
+    }
+
+    static Img<BitType> binary(long[] dims) {
+        Img<UnsignedShortType> labels = labels(dims);
+        Img<BitType> binary = ImgStorage.create(new BitType(), labels);
+        Cursor<UnsignedShortType> in = labels.localizingCursor();
+        RandomAccess<BitType> out = binary.randomAccess();
+        while (in.hasNext()) {
+            int label = in.next().get();
+            if (label < 1) continue;
+            out.setPosition(in);
+            out.get().set(true);
+        }
+        return binary;
+    }
+
+    /**
+     * Channels are appended as the last dimension unless nChannels is zero, in which case a single 3D channel is
+     * returned. Each channel gives every object its own brightness, so channels are partially correlated.
+     */
+    static Img<UnsignedShortType> intensities(long[] dims, int nChannels) {
+        Img<UnsignedShortType> labels = labels(dims);
+        long[] outDims = nChannels > 0 ? new long[]{dims[0], dims[1], dims[2], nChannels} : dims;
+        Img<UnsignedShortType> img = ImgStorage.create(new UnsignedShortType(), new FinalDimensions(outDims));
+        int nSpheres = spheres(dims).size();
+        Random r = new Random(SEED + 1);
+        int[][] brightness = new int[Math.max(1, nChannels)][nSpheres + 1];
+        for (int[] b : brightness) {
+            for (int i = 1; i <= nSpheres; i++) {
+                b[i] = 500 + r.nextInt(3000);
+            }
+        }
+        RandomAccess<UnsignedShortType> ra = labels.randomAccess();
+        Cursor<UnsignedShortType> c = img.localizingCursor();
+        long[] pos = new long[3];
+        while (c.hasNext()) {
+            UnsignedShortType t = c.next();
+            pos[0] = c.getLongPosition(0);
+            pos[1] = c.getLongPosition(1);
+            pos[2] = c.getLongPosition(2);
+            ra.setPosition(pos);
+            int channel = nChannels > 0 ? c.getIntPosition(3) : 0;
+            double value = BACKGROUND + brightness[channel][ra.get().get()] + r.nextGaussian() * NOISE;
+            t.set((int) Math.max(0, Math.min(65535, Math.round(value))));
+        }
+        return img;
+    }
+
+    /**
+     * Random straight segments of 26-connected voxels with value 255.
+     */
+    static Img<UnsignedShortType> skeleton(long[] dims) {
+        Img<UnsignedShortType> img = ImgStorage.create(new UnsignedShortType(), new FinalDimensions(dims));
+        RandomAccess<UnsignedShortType> ra = img.randomAccess();
+        Random r = new Random(SEED);
+        long nVoxels = dims[0] * dims[1] * dims[2];
+        long nSegments = Math.max(1, nVoxels / VOXELS_PER_OBJECT);
+        long[] pos = new long[3];
+        for (long s = 0; s < nSegments; s++) {
+            for (int d = 0; d < 3; d++) {
+                pos[d] = (long) (r.nextDouble() * dims[d]);
+            }
+            int[] step = new int[]{r.nextInt(3) - 1, r.nextInt(3) - 1, r.nextInt(3) - 1};
+            int length = 4 + r.nextInt(16);
+            for (int i = 0; i < length; i++) {
+                boolean inside = true;
+                for (int d = 0; d < 3; d++) {
+                    if (pos[d] < 0 || pos[d] >= dims[d]) inside = false;
+                }
+                if (!inside) break;
+                ra.setPosition(pos);
+                ra.get().set(255);
+                for (int d = 0; d < 3; d++) {
+                    pos[d] += step[d];
+                }
+            }
+        }
+        return img;
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c)  2020, David J. Barry
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.calm.slidej.benchmark;
+
+import net.calm.slidej.SlideJ;
+import net.calm.slidej.io.SharedContext;
+import net.calm.slidej.properties.SlideJParams;
+import net.calm.slidej.synthetic.SyntheticSlide;
+import net.calm.slidej.trace.Span;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Paths;
+
+/**
+ * Runs the full pipeline on a generated slide and reports throughput, bytes read and peak heap use per stage. Bytes
+ * read come from /proc/self/io, so they are only reported on Linux. Needs no input data or network access.
+ * Arguments are a working directory, the volume as XxYxZ, the number of channels and optionally the neighbourhood
+ * size, e.g. {@code EndToEndBenchmark /tmp/slidej 2048x2048x64 3 256,256,10}, followed by any of these options for
+ * the generated slide:
+ * <pre>
+ * --blobs density,radius             blobs per 10^6 cubic microns and their mean radius in microns
+ * --filaments density,radius,length  filaments per 10^6 cubic microns, their radius and mean length in microns
+ * --noise background,sd              background level and noise standard deviation
+ * --calibration x,y,z                voxel size in microns
+ * --seed n
+ * </pre>
+ * The generated slide is reused if one with the same settings already exists in the working directory.
+ */
+public class EndToEndBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        File dir = new File(args[0]);
+        long[] dims = BenchmarkImages.parseVolume(args[1]);
+        int nChannels = Integer.parseInt(args[2]);
+        int[] neighbourhood = new int[]{256, 256, 10};
+        SyntheticSlide slide = (new SyntheticSlide()).dimensions(dims).channels(nChannels);
+        StringBuilder settings = new StringBuilder();
+        for (int i = 3; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                String[] n = args[i].split(",");
+                for (int d = 0; d < neighbourhood.length; d++) {
+                    neighbourhood[d] = Integer.parseInt(n[Math.min(d, n.length - 1)]);
+                }
+                continue;
+            }
+            if (i + 1 >= args.length) throw new IllegalArgumentException(String.format("No value given for %s", args[i]));
+            double[] v = parseValues(args[i + 1]);
+            switch (args[i]) {
+                case "--blobs":
+                    slide.blobs(v[0], v[1]);
+                    break;
+                case "--filaments":
+                    slide.filaments(v[0], v[1], v[2]);
+                    break;
+                case "--noise":
+                    slide.noise((int) v[0], v[1]);
+                    break;
+                case "--calibration":
+                    slide.calibration(v);
+                    break;
+                case "--seed":
+                    slide.seed((long) v[0]);
+                    break;
+                default:
+                    throw new IllegalArgumentException(String.format("Unknown option %s", args[i]));
+            }
+            settings.append(args[i]).append(args[i + 1]);
+            i++;
+        }
+        if (!dir.exists() && !dir.mkdirs()) throw new IllegalArgumentException(String.format("Cannot create %s", dir));
+
+        File input = new File(dir, settings.length() == 0
+                ? String.format("synthetic_%s_%dc.ome.btf", args[1], nChannels)
+                : String.format("synthetic_%s_%dc_%08x.ome.btf", args[1], nChannels, settings.toString().hashCode()));
+        if (!input.exists()) {
+            long start = System.nanoTime();
+            slide.write(input);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.println(String.format("Generated %d voxels in %.1f s (%.1f Mvoxels/s)", slide.getNumVoxels(),
+                    seconds, slide.getNumVoxels() / seconds / 1e6));
+        }
+
+        File props = writeProperties(dir, nChannels);
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            pool.resetPeakUsage();
+        }
+        long start = System.nanoTime();
+        SlideJ s = new SlideJ(props, Paths.get(dir.getAbsolutePath()));
+        boolean ok = s.load(input, 0, neighbourhood);
+        double total = (System.nanoTime() - start) / 1e9;
+        if (!ok) {
+            for (String failure : s.getFailures()) {
+                System.err.println("Failed: " + failure);
+            }
+        }
+
+        long runRead = -1;
+        long runStorageRead = -1;
+        System.out.println();
+        System.out.println(String.format("%-40s %10s %14s %12s %12s %12s %10s", "Stage", "Seconds", "Mvoxels/s",
+                "Read (MB)", "Storage (MB)", "Heap (MB)", "GC (s)"));
+        for (Span span : s.getTracer().getSpans()) {
+            String name = span.getParent() == null ? span.getName()
+                    : span.getParent().getParent() == null ? "  " + span.getName() : "    " + span.getName();
+            double seconds = span.getDurationSeconds();
+            System.out.println(String.format("%-40s %10.2f %14s %12s %12s %12.0f %10.2f", name, seconds,
+                    span.getVoxels() > 0 ? String.format("%.1f", span.getVoxels() / seconds / 1e6) : "-",
+                    formatMegabytes(span.getBytesRead()), formatMegabytes(span.getStorageBytesRead()),
+                    span.getHeapHighWater() / 1e6, span.getGcMillis() / 1e3));
+            if (span.getName().equals("Run") && span.getBytesRead() >= 0) {
+                runRead = span.getBytesRead();
+                runStorageRead = span.getStorageBytesRead();
+            }
+        }
+        if (runRead >= 0) {
+            System.out.println(String.format("Run read %.2f GB through read calls and %.2f GB from storage; the input "
+                            + "file is %.2f GB and holds %.2f GB of pixel data", runRead / 1e9, runStorageRead / 1e9,
+                    input.length() / 1e9, slide.getNumVoxels() * 2 / 1e9));
+        }
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) peak += pool.getPeakUsage().getUsed();
+        }
+        if (ok) {
+            System.out.println(String.format("Total: %.1f s, %.1f Mvoxels/s, peak heap %.0f MB of %.0f MB", total,
+                    slide.getNumVoxels() / total / 1e6, peak / 1e6, Runtime.getRuntime().maxMemory() / 1e6));
+        } else {
+            System.out.println(String.format("Total: %.1f s, FAILED with %d error(s); throughput not reported, peak "
+                    + "heap %.0f MB of %.0f MB", total, s.getFailures().size(), peak / 1e6,
+                    Runtime.getRuntime().maxMemory() / 1e6));
+        }
+        SharedContext.dispose();
+        System.exit(ok ? 0 : 1);
+    }
+
+    private static String formatMegabytes(long bytes) {
+        return bytes < 0 ? "-" : String.format("%.0f", bytes / 1e6);
+    }
+
+    private static double[] parseValues(String values) {
+        String[] parts = values.split(",");
+        double[] output = new double[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            output[i] = Double.parseDouble(parts[i].trim());
+        }
+        return output;
+    }
+
+    /**
+     * One segmentation step per channel, up to two, with colocalisation when there is more than one channel.
+     */
+    private static File writeProperties(File dir, int nChannels) throws Exception {
+        SlideJParams props = new SlideJParams();
+        int nSteps = Math.min(2, nChannels);
+        props.setProperty(SlideJParams.OUTPUT_LOC, dir.getAbsolutePath());
+        props.setProperty(SlideJParams.N_STEPS, String.valueOf(nSteps));
+        props.setProperty(SlideJParams.DO_3D, "true");
+        props.setProperty(SlideJParams.COLOC, String.valueOf(nChannels > 1));
+        for (int s = 0; s < nSteps; s++) {
+            props.setChannelProperty(SlideJParams.CHANNEL_FOR_STEP, String.valueOf(s), s);
+            props.setChannelProperty(SlideJParams.THRESHOLD_CHANNEL, "true", s);
+            props.setChannelProperty(SlideJParams.THRESHOLD, "Otsu", s);
+            props.setChannelProperty(SlideJParams.FILTER_RADIUS, "1.0", s);
+        }
+        File file = new File(dir, "synthetic_properties.xml");
+        try (OutputStream out = new FileOutputStream(file)) {
+            props.storeToXML(out, "Synthetic benchmark");
+        }
+        return file;
+    }
+}